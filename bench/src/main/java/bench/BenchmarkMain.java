@@ -0,0 +1,43 @@
+package bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler, so every result has its
+ * allocation rate (gc.alloc.rate.norm, B/op) next to its time (ns/op).
+ * Takes the usual JMH options; unless -rff is given, results are also
+ * written to jmh-result.json for comparing runs.
+ * @author jay
+ *
+ */
+public class BenchmarkMain {
+
+	private static final String RESULT_FILE = "jmh-result.json";
+
+	public static void main(String[] args){
+		try{
+			CommandLineOptions cmd = new CommandLineOptions(args);
+			ChainedOptionsBuilder options = new OptionsBuilder().parent(cmd)
+					.addProfiler(GCProfiler.class);
+			if(!cmd.getResult().hasValue()){
+				options.resultFormat(ResultFormatType.JSON).result(RESULT_FILE);
+			}
+			new Runner(options.build()).run();
+		}
+		catch(CommandLineOptionException cloe){
+			System.err.println("Bad options: " + cloe.getMessage());
+			System.exit(1);
+		}
+		catch(RunnerException re){
+			System.err.println("Benchmarks failed: " + re.getMessage());
+			System.exit(1);
+		}
+	}
+}
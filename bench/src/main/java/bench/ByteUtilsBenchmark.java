@@ -0,0 +1,45 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import utils.ByteUtils;
+
+/**
+ * Big endian field assembly from bytes.
+ * @author jay
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ByteUtilsBenchmark {
+
+	/* Not final, so the JIT can't fold the results */
+	private byte a = (byte) 0x9a;
+	private byte b = 0x12;
+	private byte c = (byte) 0xfe;
+	private byte d = 0x34;
+
+	@Benchmark
+	public int make16(){
+		return ByteUtils.make16(a, b);
+	}
+
+	@Benchmark
+	public int make32(){
+		return ByteUtils.make32(a, b, c, d);
+	}
+}
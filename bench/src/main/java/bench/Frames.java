@@ -0,0 +1,74 @@
+package bench;
+
+import mxproto.InvalidPacketException;
+import mxproto.MxDefs;
+import mxproto.MxPacket;
+
+/**
+ * Frames as units send them, for the benchmarks to work on.
+ * @author jay
+ *
+ */
+public abstract class Frames {
+
+	/* Aux bytes before the sample of an event */
+	public static final int EVENT_AUX = 3;
+
+	/**
+	 * Data section of a GPS event: aux bytes, then a full sample with
+	 * DOPs, altitude and satellite ids.
+	 * @return Data section.
+	 */
+	public static byte[] gpsData(){
+		byte[] data = new byte[EVENT_AUX + 35];
+		int p = EVENT_AUX;
+		/* 2024-05-17 13:45:30.250, last valid a second earlier */
+		p = put32(data, p, (24 << 26) | (5 << 22) | (17 << 17)
+				| (13 << 12) | (45 << 6) | 30);
+		p = put16(data, p, 250);
+		p = put32(data, p, (24 << 26) | (5 << 22) | (17 << 17)
+				| (13 << 12) | (45 << 6) | 29);
+		data[p++] = 1;
+		p = put32(data, p, 57700000);
+		p = put32(data, p, 11900000);
+		p = put16(data, p, 50);
+		p = put16(data, p, 180);
+		data[p++] = 7;
+		data[p++] = 12;
+		data[p++] = 9;
+		data[p++] = 15;
+		p = put32(data, p, 1234);
+		p = put32(data, p, 0x01020304);
+		return data;
+	}
+
+	/**
+	 * A GPS event from FUNC_GPS.
+	 * @param seq Sequence number.
+	 * @return Encoded frame.
+	 */
+	public static MxPacket gpsEvent(int seq){
+		byte[] data = gpsData();
+		try{
+			return new MxPacket(data.length + MxDefs.HEADER_SIZE + 1, 0, seq,
+					MxDefs.FUNC_GPS, MxDefs.FUNC_APPLICATION, MxDefs.CMD_EVENT, data);
+		}
+		catch(InvalidPacketException ipe){
+			throw new IllegalStateException(ipe);
+		}
+	}
+
+	private static int put16(byte[] b, int p, int v){
+		b[p] = (byte) (v >> 8);
+		b[p + 1] = (byte) v;
+		return p + 2;
+	}
+
+	private static int put32(byte[] b, int p, int v){
+		b[p] = (byte) (v >> 24);
+		b[p + 1] = (byte) (v >> 16);
+		b[p + 2] = (byte) (v >> 8);
+		b[p + 3] = (byte) v;
+		return p + 4;
+	}
+}
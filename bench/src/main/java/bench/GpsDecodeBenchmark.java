@@ -0,0 +1,57 @@
+package bench;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import mxproto.GpsDecoder;
+import mxproto.GpsRecord;
+import mxproto.MxPacketView;
+
+/**
+ * The decoding part of MxParser.handleGpsData, without the row assembly
+ * and DB work that follows it.
+ * @author jay
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class GpsDecodeBenchmark {
+
+	private MxPacketView view;
+	private GpsRecord record;
+	private int timestamp;
+
+	@Setup
+	public void setup(){
+		byte[] frame = Frames.gpsEvent(1).getPacketBytes();
+		view = new MxPacketView().wrap(ByteBuffer.wrap(frame), 0, frame.length);
+		record = new GpsRecord();
+		timestamp = view.getData32(Frames.EVENT_AUX);
+	}
+
+	@Benchmark
+	public GpsRecord decode(){
+		GpsDecoder.decode(view, Frames.EVENT_AUX, record);
+		return record;
+	}
+
+	@Benchmark
+	public long toEpochMillis(){
+		return GpsDecoder.toEpochMillis(timestamp);
+	}
+}
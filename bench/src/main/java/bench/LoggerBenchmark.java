@@ -0,0 +1,95 @@
+package bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import logger.Event;
+import logger.EventLog;
+import logger.LogLevel;
+import logger.Logger;
+
+/**
+ * What logging costs the calling thread. Formatting and writing happen on
+ * the logger's own thread; when it falls behind, INFO messages are dropped,
+ * so under this load the enabled cases mostly measure claiming a slot and
+ * the drop path.
+ * @author jay
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LoggerBenchmark {
+
+	private static final Event ACKED = new Event(LogLevel.INFO,
+			"Acked packet SEQ {} CMD {}.");
+
+	private Logger logger;
+	private Logger binaryLogger;
+	private File eventDir;
+
+	/* Not final, so the JIT can't fold them */
+	private String session = "ClientSocket #1";
+	private String message = "Adding packet with DST 5";
+	private int seq = 3;
+	private int cmd = 0x10;
+
+	@Setup
+	public void setup() throws IOException {
+		logger = new Logger(LogLevel.INFO, "/dev/null", false);
+		binaryLogger = new Logger(LogLevel.INFO, "/dev/null", false);
+		eventDir = Files.createTempDirectory("mx-bench-events").toFile();
+		EventLog events = new EventLog(eventDir, EventLog.DEFAULT_SEGMENT_SIZE,
+				EventLog.DEFAULT_ROTATE_INTERVAL, 2);
+		events.open();
+		binaryLogger.setEventLog(events);
+	}
+
+	@TearDown
+	public void tearDown(){
+		logger.dispose();
+		binaryLogger.dispose();
+		File[] files = eventDir.listFiles();
+		if(files != null) for(File f : files) f.delete();
+		eventDir.delete();
+	}
+
+	/* Below the threshold */
+	@Benchmark
+	public void logFiltered(){
+		logger.log(LogLevel.DEBUG, "%s: %s.", session, message);
+	}
+
+	@Benchmark
+	public void logFormatted(){
+		logger.log(LogLevel.INFO, "%s: %s.", session, message);
+	}
+
+	/* Without an event log, events are rendered by the logger's thread */
+	@Benchmark
+	public void eventText(){
+		logger.event(ACKED, 1, seq, cmd);
+	}
+
+	@Benchmark
+	public void eventBinary(){
+		binaryLogger.event(ACKED, 1, seq, cmd);
+	}
+}
@@ -0,0 +1,115 @@
+package bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import mxproto.InvalidPacketException;
+import mxproto.MxDefs;
+import mxproto.MxFrameDecoder;
+import mxproto.MxFrameListener;
+import mxproto.MxPacket;
+import mxproto.MxPacketView;
+import mxproto.MxPacketWriter;
+
+/**
+ * The MX codec: parsing, building and ACKing a GPS event frame, both with
+ * MxPacket and with the view and writer the sessions use.
+ * @author jay
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MxPacketBenchmark {
+
+	private byte[] frame;
+	private byte[] data;
+	private MxPacket packet;
+	private MxPacketView view;
+	private ByteBuffer ackBuf;
+
+	private MxFrameDecoder decoder;
+	private ByteArrayInputStream in;
+	private MxFrameListener listener;
+
+	@Setup
+	public void setup(final Blackhole blackhole){
+		packet = Frames.gpsEvent(1);
+		frame = packet.getPacketBytes();
+		data = packet.getData();
+		view = new MxPacketView().wrap(ByteBuffer.wrap(frame), 0, frame.length);
+		ackBuf = ByteBuffer.allocate(MxPacketWriter.ACK_SIZE);
+
+		decoder = new MxFrameDecoder();
+		decoder.attach(ByteBuffer.allocateDirect(4*MxDefs.PACKET_MAX_SIZE));
+		in = new ByteArrayInputStream(frame);
+		final MxPacketView frameView = new MxPacketView();
+		listener = new MxFrameListener(){
+			public void onFrame(ByteBuffer buf, int offset, int length){
+				blackhole.consume(frameView.wrap(buf, offset, length).getSeq());
+			}
+			public void onResync(int skipped){
+				throw new IllegalStateException("Resync in benchmark frame");
+			}
+		};
+	}
+
+	@Benchmark
+	public MxPacket parsePacket() throws InvalidPacketException {
+		return MxPacket.parsePacket(frame, frame.length);
+	}
+
+	@Benchmark
+	public int calculateCRC(){
+		return MxPacket.calculateCRC(frame.length, frame);
+	}
+
+	@Benchmark
+	public MxPacket createACKPacket(){
+		return MxPacket.createACKPacket(packet);
+	}
+
+	@Benchmark
+	public MxPacket construct() throws InvalidPacketException {
+		return new MxPacket(data.length + MxDefs.HEADER_SIZE + 1, 0, 1,
+				MxDefs.FUNC_GPS, MxDefs.FUNC_APPLICATION, MxDefs.CMD_EVENT, data);
+	}
+
+	@Benchmark
+	public byte[] getData(){
+		return packet.getData();
+	}
+
+	/* What a session does per received frame instead of createACKPacket */
+	@Benchmark
+	public ByteBuffer writeAck(){
+		ackBuf.clear();
+		MxPacketWriter.writeAck(ackBuf, view);
+		return ackBuf;
+	}
+
+	/* Read into the ring, find, CRC check and hand out one frame */
+	@Benchmark
+	public void decodeFrame() throws IOException {
+		in.reset();
+		decoder.readFrom(in);
+		decoder.decode(listener);
+	}
+}
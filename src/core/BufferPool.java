@@ -0,0 +1,196 @@
+package core;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Fixed size direct buffers shared by all sessions, cut from larger slabs
+ * and never freed. Sessions borrow a buffer only while they have data in
+ * flight and give it back as soon as they are idle, so idle connections
+ * hold none.
+ * <p>
+ * Buffers held between passes, i.e. read buffers and bytes a slow peer
+ * has not taken yet, count against a global byte budget. Once it is used
+ * up {@link #acquire()} fails until buffers are returned. Buffers that are
+ * always returned within a single pass are taken with
+ * {@link #acquireTransient()}, which never fails.
+ * @author jay
+ *
+ */
+public class BufferPool {
+
+	/* Holds the largest frame twice, which the decoder needs */
+	public static final int DEFAULT_CHUNK_SIZE = 256;
+
+	/* 64MB, i.e. a read buffer for 256k connections at once */
+	public static final long DEFAULT_MAX_BYTES = 64L*1024*1024;
+
+	private static final int CHUNKS_PER_SLAB = 256;
+
+	private int chunkSize;
+	private long maxBytes;
+
+	private ByteBuffer[] free;
+	private int freeCount;
+
+	/* Metrics */
+	private long allocatedBytes;
+	private long budgetedBytes;
+	private long peakBudgetedBytes;
+	private long inUseBytes;
+	private long denied;
+
+	private ReentrantLock lock;
+
+	/**
+	 * Create a pool with default chunk size and budget.
+	 */
+	public BufferPool(){
+		this(DEFAULT_CHUNK_SIZE, DEFAULT_MAX_BYTES);
+	}
+
+	/**
+	 * Create a pool with custom chunk size and budget.
+	 * @param chunkSize Size of every buffer.
+	 * @param maxBytes Budget for buffers held between passes.
+	 */
+	public BufferPool(int chunkSize, long maxBytes){
+		this.chunkSize = chunkSize;
+		this.maxBytes = maxBytes;
+		this.free = new ByteBuffer[CHUNKS_PER_SLAB];
+		this.freeCount = 0;
+		this.lock = new ReentrantLock();
+	}
+
+	public int getChunkSize(){
+		return chunkSize;
+	}
+
+	/**
+	 * Borrows a buffer to hold across passes, e.g. for reading.
+	 * @return A cleared buffer, or null if the budget is used up.
+	 */
+	public ByteBuffer acquire(){
+		lock.lock();
+		try{
+			if(budgetedBytes + chunkSize > maxBytes){
+				denied++;
+				return null;
+			}
+			budgetedBytes += chunkSize;
+			peakBudgetedBytes = Math.max(peakBudgetedBytes, budgetedBytes);
+			return take();
+		}
+		finally{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Borrows a buffer that will be returned with {@link #releaseTransient}
+	 * before the borrowing pass ends.
+	 * @return A cleared buffer.
+	 */
+	public ByteBuffer acquireTransient(){
+		lock.lock();
+		try{
+			return take();
+		}
+		finally{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns a buffer taken with {@link #acquire()}.
+	 * @param buf Buffer to return.
+	 */
+	public void release(ByteBuffer buf){
+		lock.lock();
+		try{
+			budgetedBytes -= chunkSize;
+			put(buf);
+		}
+		finally{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns a buffer taken with {@link #acquireTransient()}.
+	 * @param buf Buffer to return.
+	 */
+	public void releaseTransient(ByteBuffer buf){
+		lock.lock();
+		try{
+			put(buf);
+		}
+		finally{
+			lock.unlock();
+		}
+	}
+
+	private ByteBuffer take(){
+		if(freeCount == 0) allocateSlab();
+		ByteBuffer buf = free[--freeCount];
+		free[freeCount] = null;
+		inUseBytes += chunkSize;
+		buf.clear();
+		return buf;
+	}
+
+	private void put(ByteBuffer buf){
+		free[freeCount++] = buf;
+		inUseBytes -= chunkSize;
+	}
+
+	private void allocateSlab(){
+		ByteBuffer slab = ByteBuffer.allocateDirect(chunkSize*CHUNKS_PER_SLAB);
+		/* Room for every chunk, all of which may be returned */
+		int chunks = (int) (allocatedBytes/chunkSize) + CHUNKS_PER_SLAB;
+		if(free.length < chunks){
+			ByteBuffer[] grown = new ByteBuffer[chunks];
+			System.arraycopy(free, 0, grown, 0, freeCount);
+			free = grown;
+		}
+		for(int i=0;i<CHUNKS_PER_SLAB;i++){
+			slab.limit((i + 1)*chunkSize);
+			slab.position(i*chunkSize);
+			free[freeCount++] = slab.slice();
+		}
+		allocatedBytes += slab.capacity();
+	}
+
+	/* Metrics, for monitoring */
+
+	public long getAllocatedBytes(){
+		return allocatedBytes;
+	}
+
+	public long getInUseBytes(){
+		return inUseBytes;
+	}
+
+	public long getBudgetedBytes(){
+		return budgetedBytes;
+	}
+
+	public long getPeakBudgetedBytes(){
+		return peakBudgetedBytes;
+	}
+
+	public long getMaxBytes(){
+		return maxBytes;
+	}
+
+	public long getDeniedCount(){
+		return denied;
+	}
+
+	@Override
+	public String toString(){
+		return String.format("BufferPool: %d/%d bytes in use (%d held, peak %d, " +
+				"budget %d), %d requests denied", inUseBytes, allocatedBytes,
+				budgetedBytes, peakBudgetedBytes, maxBytes, denied);
+	}
+}
@@ -0,0 +1,234 @@
+package core;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.util.concurrent.locks.ReentrantLock;
+
+import mxproto.MxDefs;
+import utils.SegmentFiles;
+
+/**
+ * Records the MX frames of all sessions, both ways, for replaying real
+ * traffic offline with {@link Replay}. Frames go to memory mapped capture
+ * files, a new one when the current is full; the oldest are deleted beyond
+ * maxFiles. The next file is mapped ahead, and old ones deleted, by a
+ * thread of the recorder's own, so recording a frame never touches the
+ * file system. Frames arriving while the next file is still being mapped
+ * are lost.
+ * <p>
+ * File layout, big endian: a header of MAGIC, the epoch time in ms and the
+ * System.nanoTime() it was taken at, and the epoch time the recorder was
+ * opened, which tells runs of the server apart, written when the file is
+ * started, so all zero in a file mapped ahead but never used; then
+ * records of
+ * <pre>
+ *  0  System.nanoTime() of the frame; 0 marks the end of the file
+ *  8  session
+ *  12 direction, INBOUND or OUTBOUND
+ *  13 reserved
+ *  14 frame length
+ *  16 frame
+ * </pre>
+ * @author jay
+ *
+ */
+public class CaptureRecorder {
+
+	public static final long DEFAULT_FILE_SIZE = 256L*1024*1024;
+	public static final int DEFAULT_MAX_FILES = 16;
+
+	public static final byte INBOUND = 0;
+	public static final byte OUTBOUND = 1;
+
+	static final long MAGIC = 0x4D58434150303031L; /* "MXCAP001" */
+	static final int HEADER_SIZE = 32;
+	static final int RECORD_HEADER_SIZE = 16;
+
+	/* Header fields */
+	static final int EPOCH = 8;
+	static final int ANCHOR = 16;
+	static final int RUN = 24;
+
+	/* Record fields */
+	static final int NANOS = 0;
+	static final int SESSION = 8;
+	static final int DIRECTION = 12;
+	static final int LENGTH = 14;
+
+	static final String FILE_PREFIX = "capture-";
+	static final String FILE_SUFFIX = ".mxc";
+
+	private long fileSize;
+	private int maxFiles;
+	private long run;
+
+	/* Capture files, the next mapped ahead */
+	private SegmentFiles files;
+
+	/* Guards everything below */
+	private ReentrantLock lock;
+	private MappedByteBuffer file;
+	private int position;
+	private long frames;
+	private long lost;
+
+	/**
+	 * Create a recorder with default file size and retention.
+	 * @param dir Directory to write to; created if needed.
+	 */
+	public CaptureRecorder(File dir){
+		this(dir, DEFAULT_FILE_SIZE, DEFAULT_MAX_FILES);
+	}
+
+	/**
+	 * Create a recorder.
+	 * @param dir Directory to write to; created if needed.
+	 * @param fileSize Bytes per capture file.
+	 * @param maxFiles Capture files kept.
+	 */
+	public CaptureRecorder(File dir, long fileSize, int maxFiles){
+		this.fileSize = Math.max(HEADER_SIZE + RECORD_HEADER_SIZE +
+				MxDefs.PACKET_MAX_SIZE, Math.min(fileSize, Integer.MAX_VALUE));
+		this.maxFiles = Math.max(1, maxFiles);
+		this.files = new SegmentFiles(dir, FILE_PREFIX, FILE_SUFFIX, this.fileSize);
+		this.lock = new ReentrantLock();
+	}
+
+	/**
+	 * Starts a capture file after any existing ones.
+	 * @throws IOException If the directory or file can't be written.
+	 */
+	public void open() throws IOException {
+		files.createDir();
+		run = System.currentTimeMillis();
+		long number = files.nextNumber();
+		MappedByteBuffer first = files.map(number);
+		lock.lock();
+		try{
+			start(first);
+		}
+		finally{
+			lock.unlock();
+		}
+		files.startPreparer("CaptureRecorder", number + 1, maxFiles);
+	}
+
+	/* Starts writing to a file, after its header */
+	private void start(MappedByteBuffer f){
+		f.putLong(0, MAGIC);
+		f.putLong(EPOCH, System.currentTimeMillis());
+		f.putLong(ANCHOR, System.nanoTime());
+		f.putLong(RUN, run);
+		file = f;
+		position = HEADER_SIZE;
+	}
+
+	/**
+	 * Records one frame.
+	 * @param session Session the frame belongs to.
+	 * @param direction INBOUND or OUTBOUND.
+	 * @param buf Buffer holding the frame; left untouched.
+	 * @param offset Frame start in buf.
+	 * @param length Frame length.
+	 */
+	public void record(int session, byte direction, ByteBuffer buf, int offset,
+			int length){
+		long now = System.nanoTime();
+		lock.lock();
+		try{
+			if(file == null){
+				lost++;
+				return;
+			}
+			if(position + RECORD_HEADER_SIZE + length > fileSize){
+				MappedByteBuffer n = files.takeNext();
+				if(n == null){
+					lost++;
+					return;
+				}
+				start(n);
+			}
+			int p = position;
+			file.putInt(p + SESSION, session);
+			file.put(p + DIRECTION, direction);
+			file.putShort(p + LENGTH, (short) length);
+			for(int i=0;i<length;i++)
+				file.put(p + RECORD_HEADER_SIZE + i, buf.get(offset + i));
+			/* Last, a record with a time is complete */
+			file.putLong(p + NANOS, now);
+			position += RECORD_HEADER_SIZE + length;
+			frames++;
+		}
+		finally{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Records the frames between a buffer's position and limit, e.g. a
+	 * batch of ACKs about to be written.
+	 * @param session Session the frames belong to.
+	 * @param direction INBOUND or OUTBOUND.
+	 * @param buf Buffer of whole frames; left untouched.
+	 */
+	public void recordAll(int session, byte direction, ByteBuffer buf){
+		int p = buf.position();
+		while(buf.limit() - p > MxDefs.LOM_LOW_OFFSET){
+			int length = buf.get(p + MxDefs.LOM_LOW_OFFSET) & 0xFF;
+			if(length == 0 || p + length > buf.limit()) break;
+			record(session, direction, buf, p, length);
+			p += length;
+		}
+	}
+
+	/**
+	 * Stops recording and flushes the current file to disk. The spare file
+	 * is deleted.
+	 */
+	public void close(){
+		MappedByteBuffer last;
+		lock.lock();
+		try{
+			last = file;
+			file = null;
+		}
+		finally{
+			lock.unlock();
+		}
+		files.close();
+		if(last != null) last.force();
+	}
+
+	public long getFrameCount(){
+		lock.lock();
+		try{
+			return frames;
+		}
+		finally{
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public String toString(){
+		lock.lock();
+		try{
+			return "CaptureRecorder: " + frames + " frames recorded, " + lost +
+					" lost";
+		}
+		finally{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Capture files in a directory, oldest first.
+	 * @param dir Directory.
+	 * @return Capture files.
+	 */
+	static File[] listFiles(File dir){
+		return SegmentFiles.list(dir, FILE_PREFIX, FILE_SUFFIX);
+	}
+}
@@ -0,0 +1,229 @@
+package core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+
+import database.DBHandler;
+import logger.LogLevel;
+import logger.Logger;
+
+/**
+ * A connection served by an {@link EventLoop}. Never blocks; all calls are
+ * made from the owning loop's thread.
+ * @author jay
+ *
+ */
+public class ChannelSession extends MxSession {
+
+	/* Outbound bytes a slow reader may leave queued before it is dropped */
+	private static final int MAX_PENDING_BYTES = 16*1024;
+
+	/* Wait before reading again when out of buffers or DB capacity */
+	private static final long READ_RETRY_DELAY = 100;
+
+	private SocketChannel channel;
+	private SelectionKey key;
+	private EventLoop loop;
+	private boolean closed;
+
+	/* Bytes the socket would not take yet, in pool buffers ready to be
+	 * written; the queue is created when first needed */
+	private ArrayDeque<ByteBuffer> pendingWrites;
+	private int pendingBytes;
+
+	/* Turns reading back on after the pool denied a buffer */
+	private Timeout readRetryTimer;
+
+	/**
+	 * Create a session for an accepted, non-blocking channel.
+	 * @param channel Accepted channel.
+	 * @param id Numerical ID of session.
+	 * @param timers Wheel to schedule the session's timers on.
+	 * @param buffers Pool to borrow read and write buffers from.
+	 * @param dispatcher Handlers of received packets.
+	 * @param logger Logger to use.
+	 */
+	public ChannelSession(SocketChannel channel, int id, TimingWheel timers, 
+			BufferPool buffers, Dispatcher dispatcher, Logger logger){
+		super(id, boxIdOf(channel.socket().getInetAddress(), id), timers, 
+				buffers, dispatcher, logger);
+		this.channel = channel;
+		this.closed = false;
+		this.pendingBytes = 0;
+		final Runnable resume = new Runnable(){
+			public void run(){ resumeReading(); }
+		};
+		this.readRetryTimer = new Timeout(new Runnable(){
+			public void run(){ execute(resume); }
+		});
+	}
+
+	/**
+	 * Register with the loop's selector.
+	 * @param loop Loop that will serve this session.
+	 * @return True if successful.
+	 */
+	public boolean init(EventLoop loop){
+		this.loop = loop;
+		try{
+			channel.configureBlocking(false);
+			key = channel.register(loop.getSelector(), SelectionKey.OP_READ, this);
+		}
+		catch(IOException ioe){
+			logger.log(LogLevel.WARNING, "%s: error registering channel.",
+					this);
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	public String toString(){
+		return "ChannelSession #" + id;
+	}
+
+	/**
+	 * Called by the loop when the channel is readable.
+	 */
+	void onReadable(){
+		/* Out of memory budget, or the DB writers are behind - leave the
+		 * bytes in the socket for now, so TCP slows the device down */
+		if(DBHandler.isIngestSaturated() || !borrowReadBuffer()){
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+			timers.schedule(readRetryTimer, READ_RETRY_DELAY);
+			return;
+		}
+		try{
+			int len = decoder.readFrom(channel);
+			if(len > 0){
+				receive();
+			}
+			else if(len < 0){
+				logger.log(LogLevel.DEBUG, "%s: stream ended.", this);
+				closeSocket();
+				return;
+			}
+			/* Idle between frames, no need to hold a buffer */
+			returnReadBuffer(false);
+		}
+		catch(IOException ioe){
+			logger.log(LogLevel.WARNING, "%s: failed to read from socket.",
+					this);
+			closeSocket();
+		}
+	}
+
+	/**
+	 * Called by the loop when the channel can take more outbound bytes.
+	 */
+	void onWritable(){
+		try{
+			flushPending();
+		}
+		catch(IOException ioe){
+			logger.log(LogLevel.WARNING, "%s: failed to write to socket.",
+					this);
+			closeSocket();
+		}
+	}
+
+	private void resumeReading(){
+		if(closed) return;
+		key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+	}
+
+	@Override
+	protected void execute(Runnable task){
+		if(!closed) loop.execute(task);
+	}
+
+	@Override
+	protected void write(ByteBuffer[] bufs, int count) throws IOException {
+		if(closed) throw new IOException("Channel closed.");
+		if(pendingBytes == 0){
+			channel.write(bufs, 0, count);
+		}
+		int remaining = 0;
+		for(int i=0;i<count;i++) remaining += bufs[i].remaining();
+		if(remaining == 0) return;
+		if(pendingBytes + remaining > MAX_PENDING_BYTES){
+			logger.log(LogLevel.WARNING, "%s: peer not reading, " +
+					"dropping connection.", this);
+			/* Not from within the pass that is writing */
+			loop.execute(new Runnable(){
+				public void run(){ closeSocket(); }
+			});
+			throw new IOException("Write backlog over budget.");
+		}
+		/* Socket buffer full, keep a copy in pool buffers, which count
+		 * against its budget, and finish when the channel turns writable */
+		if(pendingWrites == null) pendingWrites = new ArrayDeque<ByteBuffer>();
+		ByteBuffer rest = null;
+		for(int i=0;i<count;i++){
+			ByteBuffer src = bufs[i];
+			while(src.hasRemaining()){
+				if(rest == null || !rest.hasRemaining()){
+					if(rest != null) pendingWrites.add((ByteBuffer) rest.flip());
+					rest = buffers.acquire();
+					if(rest == null){
+						logger.log(LogLevel.WARNING, "%s: out of buffers for " +
+								"unsent bytes, dropping connection.", this);
+						loop.execute(new Runnable(){
+							public void run(){ closeSocket(); }
+						});
+						throw new IOException("Out of buffers.");
+					}
+				}
+				int n = Math.min(src.remaining(), rest.remaining());
+				ByteBuffer part = src.duplicate();
+				part.limit(part.position() + n);
+				rest.put(part);
+				src.position(src.position() + n);
+				pendingBytes += n;
+			}
+		}
+		pendingWrites.add((ByteBuffer) rest.flip());
+		key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+	}
+
+	private void flushPending() throws IOException {
+		while(pendingBytes > 0){
+			ByteBuffer out = pendingWrites.peek();
+			pendingBytes -= channel.write(out);
+			if(out.hasRemaining()) return;
+			buffers.release(pendingWrites.poll());
+		}
+		key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+	}
+
+	/**
+	 * Closes the channel and drops it from its selector.
+	 */
+	@Override
+	public void closeSocket(){
+		if(closed) return;
+		closed = true;
+		stopTimers();
+		timers.cancel(readRetryTimer);
+		if(key != null) key.cancel();
+		try{
+			channel.close();
+		}
+		catch(IOException ioe){
+			// Swallow
+		}
+		if(pendingWrites != null){
+			ByteBuffer buf;
+			while((buf = pendingWrites.poll()) != null) buffers.release(buf);
+		}
+		pendingBytes = 0;
+		releaseBuffers();
+
+		logger.log(LogLevel.DEBUG, "%s: %s, %d resent packets dropped", this,
+				getRttEstimator(), getDuplicateFilter().getSuppressedCount());
+		logInfo("Terminated");
+	}
+}
@@ -5,86 +5,80 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
-import java.util.LinkedList;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantLock;
 
+import database.DBHandler;
 import logger.LogLevel;
 import logger.Logger;
-import mxproto.InvalidPacketException;
 import mxproto.MxDefs;
-import mxproto.MxPacket;
-import mxproto.MxParser;
 
 /**
  * What a single thread serving a specific connection will run.
  * @author jay
  *
  */
-public class ClientSocket implements Runnable {
-	
-	/* Check for incoming data every [ms] */
-	private static final int DEFAULT_READ_TIMEOUT = 666;
-	
-	/* Maximum time to wait for ACK before resend */
-	private static final int DEFAULT_RESEND_TIME = 5*1000*3;
-	
-	/* Number of resends - disable by using 0 */
-	private static final int MAX_RESENDS = 2;
-	
-	/* Close socket after 5 minutes of inactivity */
-	private static final int DEFAULT_CLOSE_TIMEOUT = 5*60*1000;
-	
-	/* Allocate 256 bytes per connection for incoming data */
-	private static final int BUF_SIZE = 256;
+public class ClientSocket extends MxSession implements Runnable {
+
+	/* Stop waiting for data this often to run due timer work [ms] */
+	private static final int DEFAULT_READ_TIMEOUT = TimingWheel.DEFAULT_TICK;
+
+	/* Wait before reading again while the DB writers are behind */
+	private static final long INGEST_RETRY_DELAY = 100;
 	
 	private Socket socket;
 	private DataInputStream ins;
 	private DataOutputStream outs;
 	private int readTimeout;
-	private int closeTimeout;
-	private int resendTime;
-	private int resendCount;
-	private int ackWaitTime;
-	private boolean ackPending;
-	private long inactiveTime;
-	private int id;
-	private int sequenceNr;
-	private byte[] buf;
-	
-	/* Currently using the MX protocol */
-	private LinkedList<ProtocolPacket> outQueue;
-	
-	public Logger logger;
+	private volatile boolean closed;
+
+	/* Gathers a write when the socket has no channel */
+	private byte[] writeBuf;
+
+	/* Held while handling data or timer work, never while blocked in read */
+	private ReentrantLock lock;
+
+	/* Timer work handed over by the wheel, run between reads */
+	private ConcurrentLinkedQueue<Runnable> tasks;
 	
 	/**
-	 * Create a client socket with default timeout between socket reads.
+	 * Create a client socket that runs its timer work within a wheel tick.
 	 * @param socket Base TCP socket.
 	 * @param id Numerical ID of socket.
+	 * @param timers Wheel to schedule the socket's timers on.
+	 * @param buffers Pool to borrow read and write buffers from.
+	 * @param dispatcher Handlers of received packets.
 	 * @param logger Logger to use.
 	 */
-	public ClientSocket(Socket socket, int id, Logger logger){
-		this(socket,DEFAULT_READ_TIMEOUT, id, logger);
+	public ClientSocket(Socket socket, int id, TimingWheel timers, 
+			BufferPool buffers, Dispatcher dispatcher, Logger logger){
+		this(socket,DEFAULT_READ_TIMEOUT, id, timers, buffers, dispatcher, 
+				logger);
 	}
 	
 	/**
 	 * Create a client socket with custom timeout.
 	 * @param socket Base TCP socket.
-	 * @param timeoutMillis Timeout between reads.
+	 * @param timeoutMillis Longest wait for data before running due timer
+	 * work, i.e. how late the session's timers may be.
 	 * @param id Numerical ID of socket-
+	 * @param timers Wheel to schedule the socket's timers on.
+	 * @param buffers Pool to borrow read and write buffers from.
+	 * @param dispatcher Handlers of received packets.
 	 * @param logger Logger to use.
 	 */
-	public ClientSocket(Socket socket, int timeoutMillis, int id, Logger logger){
+	public ClientSocket(Socket socket, int timeoutMillis, int id, 
+			TimingWheel timers, BufferPool buffers, Dispatcher dispatcher, 
+			Logger logger){
+		super(id, boxIdOf(socket.getInetAddress(), id), timers, buffers, 
+				dispatcher, logger);
 		this.socket = socket;
-		this.readTimeout = timeoutMillis;
-		this.closeTimeout = DEFAULT_CLOSE_TIMEOUT;
-		this.resendTime = DEFAULT_RESEND_TIME;
-		this.resendCount = 0;
-		this.ackWaitTime = 0;
-		this.ackPending = false;
-		this.id = id;
-		this.logger = logger;
-		this.inactiveTime = 0;
-		this.sequenceNr = 0;
-		this.outQueue = new LinkedList<ProtocolPacket>();
+		this.readTimeout = timeoutMillis > 0 ? timeoutMillis : DEFAULT_READ_TIMEOUT;
+		this.closed = false;
+		this.lock = new ReentrantLock();
+		this.tasks = new ConcurrentLinkedQueue<Runnable>();
 	}
 	
 	/**
@@ -96,11 +90,10 @@ public class ClientSocket implements Runnable {
 			this.ins = new DataInputStream(socket.getInputStream());
 			this.outs = new DataOutputStream(socket.getOutputStream());
 			socket.setSoTimeout(readTimeout);
-			buf = new byte[BUF_SIZE];
 		}
 		catch(IOException ioe){
-			logger.log(LogLevel.WARNING, this.toString() + 
-					": error initializing socket streams.");
+			logger.log(LogLevel.WARNING, "%s: error initializing socket streams.",
+					this);
 			return false;
 		}
 		return true;
@@ -111,188 +104,143 @@ public class ClientSocket implements Runnable {
 		return "ClientSocket #" + id;
 	}
 	
-	/**
-	 * Circular four byte sequence number. Unique for each clientSocket.
-	 * @return
-	 */
-	public int getSequence(){
-		return sequenceNr++ % 16;
-	}
-	
 	@Override
 	public void run(){
-		logger.log(LogLevel.DEBUG, this.toString() + ": up.");
-		
-		long prevTime = System.currentTimeMillis();
-		
-		/***************************************************************/
-		/* Construct and send a single example packet                  */
-		/***************************************************************/
-		
-			byte[] dataBytes = null;				
-			
-			/* Data section varies per MX packet
-			 * Typically the first two bytes represent a "type"
-			 */
-			dataBytes = new byte[2];
-			dataBytes[0] = 0;
-			dataBytes[1] = MxDefs.ANALOG_LI_ION_VOLTAGE;
-			//testBytes[2] = 4; // CONTINUOUS_PULSE;
-			//testBytes[3] = 20; // Pulse time
-			//testBytes[4] = 20; // Pulse time
-			
-			if(dataBytes != null)
-			try{
-				MxPacket packet = new MxPacket(
-						/* Length: DATA length + header size + CMD_ID */
-						dataBytes.length + MxDefs.HEADER_SIZE + 1, 
-						0, // Flags
-						getSequence(), // Sequence number
-						MxDefs.FUNC_APPLICATION, // Source, as good as any atm
-						MxDefs.FUNC_ANALOG, // Destination
-						MxDefs.CMD_READ, // Command ID
-						dataBytes); // Data section
-				
-				logInfo("Adding packet with DST " + packet.getDst());
-				
-				/* Queue the packet - packets are sent main loop */
-				outQueue.add(packet);
-			}
-			catch(InvalidPacketException ipe){
-				logger.log(LogLevel.WARNING, 
-						this.toString() + ": Tried to build invalid packet.");
-			}
-		
-		/***************************************************************/
-		/* End of example packet                                       */
-		/***************************************************************/
-		
+		/* A blocked thread can't give its buffer back, so it keeps one for
+		 * the whole connection */
+		if(!borrowReadBuffer()){
+			logger.log(LogLevel.WARNING, "%s: out of buffer memory, " +
+					"dropping connection.", this);
+			closeSocket();
+			return;
+		}
+
+		lock.lock();
+		try{
+			start();
+			serviceOutbound();
+		}
+		finally{
+			lock.unlock();
+		}
+
 		/* Main socket loop */
-		while(true){
+		while(!closed){
 			try{			
-				/* Read incoming */
-				int len = ins.read(buf, 0, BUF_SIZE);
+				runTasks();
+				if(closed) break;
+
+				/* DB writers are behind, let TCP slow the device down */
+				if(DBHandler.isIngestSaturated()){
+					Thread.sleep(INGEST_RETRY_DELAY);
+					continue;
+				}
+
+				/* Read incoming, through the stream as only it times out */
+				int len = decoder.readFrom(ins);
 				if(len > 0){
-					inactiveTime = 0;
-					/* Based on MX packets, thus must have a LoM on position 2. 
-					 * Might have read in multiple packets into the buffer, 
-					 * so loop until everything is read. */
-					while(len >= 2){
-						MxPacket packet = null;
-						int pktLen = buf[1] & 0xFF;
-						try{
-							packet = MxPacket.parsePacket(buf, len);
-						}
-						catch(InvalidPacketException ipe){
-							logger.log(LogLevel.WARNING, 
-									this.toString() + ": " + ipe.getMessage());
-							packet = null;
-						}
-						if(packet!=null){
-							/* Received a protocol layer ACK */
-							if(packet.isAck()){
-								matchQueue(packet);
-							}
-							/* Received something else - ACK and handle */
-							else{
-								MxPacket ackpack = MxPacket.createACKPacket(packet);
-								outs.write(ackpack.getPacketBytes());
-								outs.flush();
-								logInfo("Acked packet");
-							}
-							handlePacket(packet);
-						}
-						
-						/* A bugged packet may have been sent.. avoid infinite loop! */
-						if(pktLen == 0) 
-							pktLen = Math.min(MxDefs.HEADER_SIZE, len);
-						
-						for(int i=0;i<pktLen;i++){
-							buf[i] = buf[i+pktLen];
-						}
-						/* This many bytes were actually handled */
-						len -= pktLen;
+					lock.lock();
+					try{
+						receive();
+					}
+					finally{
+						lock.unlock();
 					}
 				}
 				else{
-					logger.log(LogLevel.DEBUG, this.toString() + 
-							": stream ended.");
+					logger.log(LogLevel.DEBUG, "%s: stream ended.", this);
 					break;
 				}
 			}
-			/* Single read timed out, no problem */
+			catch(InterruptedException ie){
+				break;
+			}
+			/* Single read timed out, run any timer work that came due */
 			catch(SocketTimeoutException ste){
-				if(inactiveTime > closeTimeout){
-					logger.log(LogLevel.INFO, 
-						String.format("%s: reached inactivity timeout (%ds).",
-						this.toString(), inactiveTime/1000));
-					break;
-				}
+				// Continue
 			}
-			/* Connection failure */
+			/* Connection failure, or closed by a timer */
 			catch(IOException ioe){
-				logger.log(LogLevel.WARNING, this.toString() + 
-						": failed to read from socket.");
+				if(!closed)
+					logger.log(LogLevel.WARNING, "%s: failed to read from socket.",
+							this);
 				break;
 			}
-			
-			/* Send outgoing */
-			if(!outQueue.isEmpty()){
-				if(ackPending){
-					if(resendCount >= MAX_RESENDS){
-						if(MAX_RESENDS > 0)
-							logger.log(LogLevel.DEBUG, 
-								this.toString() + ": Resend limit reached.");
-						outQueue.poll();
-						ackPending = false;
-					}
-					else if(ackWaitTime > resendTime){
-						resendCount++;
-						ackWaitTime = 0;
-						logger.log(LogLevel.DEBUG, 
-								this.toString() + ": Resending.");
-						
-						ProtocolPacket packet = outQueue.peek();
-						try{
-							outs.write(packet.getPacketBytes());
-							outs.flush();
-						}
-						catch(IOException ioe){
-							// Swallow
-						}
-					}
-				}
-				else{
-					logger.log(LogLevel.DEBUG, 
-							this.toString() + ": Sending.");
-					
-					ProtocolPacket packet = outQueue.peek();
-					try{
-						outs.write(packet.getPacketBytes());
-						outs.flush();
-						ackPending = true;
-						resendCount = 0;
-						ackWaitTime = 0;
-					}
-					catch(IOException ioe){
-						// Swallow
-					}
-				}
-			}
-			
-			long currTime = System.currentTimeMillis();
-			inactiveTime += currTime - prevTime;
-			ackWaitTime += currTime - prevTime;
-			prevTime = currTime;
 		}
 		
 		closeSocket();
+		/* Only now that nothing reads into them */
+		lock.lock();
+		try{
+			releaseBuffers();
+		}
+		finally{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Hands timer work to the socket's own thread, which runs it within a
+	 * read timeout. Timer work writes to the socket, which may block, so it
+	 * never runs on the wheel's thread.
+	 */
+	@Override
+	protected void execute(Runnable task){
+		if(!closed) tasks.add(task);
+	}
+
+	/* Runs the timer work handed over since the last pass */
+	private void runTasks(){
+		if(tasks.isEmpty()) return;
+		lock.lock();
+		try{
+			Runnable task;
+			while((task = tasks.poll()) != null){
+				if(!closed) task.run();
+			}
+		}
+		finally{
+			lock.unlock();
+		}
+	}
+
+	@Override
+	protected void write(ByteBuffer[] bufs, int count) throws IOException {
+		SocketChannel channel = socket.getChannel();
+		int remaining = 0;
+		for(int i=0;i<count;i++) remaining += bufs[i].remaining();
+		if(channel != null){
+			/* Blocking channel, loops only if interrupted by a signal */
+			while(remaining > 0) remaining -= channel.write(bufs, 0, count);
+			return;
+		}
+		/* Plain socket, one write through the stream */
+		if(writeBuf == null || writeBuf.length < remaining)
+			writeBuf = new byte[Math.max(remaining, 2*MxDefs.PACKET_MAX_SIZE)];
+		int len = 0;
+		for(int i=0;i<count;i++){
+			int n = bufs[i].remaining();
+			bufs[i].get(writeBuf, len, n);
+			len += n;
+		}
+		outs.write(writeBuf, 0, len);
+		outs.flush();
 	}
 	
 	/**
 	 * Gracefully closes the socket with its streams.
 	 */
+	@Override
 	public void closeSocket(){
+		lock.lock();
+		try{
+			if(closed) return;
+			closed = true;
+		}
+		finally{
+			lock.unlock();
+		}
+		stopTimers();
 		try{
 			ins.close();
 		}
@@ -314,79 +262,8 @@ public class ClientSocket implements Runnable {
 			// Swallow
 		}
 		
+		logger.log(LogLevel.DEBUG, "%s: %s, %d resent packets dropped", this,
+				getRttEstimator(), getDuplicateFilter().getSuppressedCount());
 		logInfo("Terminated");
 	}
-	
-	// TODO: implement all useful (?) calls
-	public void handlePacket(MxPacket packet){
-		switch(packet.getCmdId()){
-			case MxDefs.CMD_EVENT:
-				logInfo("Received CMD_EVENT");
-				switch(packet.getSrc()){
-					case MxDefs.FUNC_GPS:
-						// 3 bytes aux before GPS data
-						MxParser.handleGpsData(this, packet.getData(), 3);
-						break;
-					default:
-						logInfo("Unknown source: "+packet.getSrc());
-						break;
-				}
-				break;
-			case MxDefs.CMD_READ_REPLY:
-				logInfo("Received CMD_READ_REPLY");
-				switch(packet.getSrc()){
-					case MxDefs.FUNC_GPS:
-						// 4 bytes aux before GPS data
-						MxParser.handleGpsData(this, packet.getData(), 4);
-						break;
-					default:
-						logInfo("Unknown source: "+packet.getSrc());
-						break;
-				}
-				break;
-			case MxDefs.CMD_WRITE_REPLY:
-				logInfo("Received CMD_WRITE_REPLY");
-				break;
-			case MxDefs.CMD_SUBSCRIBE_REPLY:
-				logInfo("Received CMD_SUBSCRIBE_REPLY");
-				break;
-			case MxDefs.CMD_UNSUBSCRIBE_REPLY:
-				logInfo("Received CMD_UNSUBSCRIBE_REPLY");
-				break;
-			case MxDefs.CMD_FUNCTION_REPLY:
-				logInfo("Received CMD_FUNCTION_REPLY");
-				break;
-			case MxDefs.CMD_ERROR:
-				logInfo("Received CMD_ERROR");
-				break;
-			case MxDefs.CMD_ACK:
-				/* Already handled */
-				break;
-			default:
-				logInfo("Received unknown packet: CmdId " + packet.getCmdId());
-				break;
-		}
-	}
-	
-	public void matchQueue(MxPacket ack){
-		if(!outQueue.isEmpty()){
-			int crcToCheck = ((MxPacket) outQueue.peek()).getCRC();
-			int seqToCheck = ((MxPacket) outQueue.peek()).getSeq();
-			
-			int ackCrc = ack.getData()[0] & 0xFF;
-			int ackSeq = ack.getData()[1] & 0x0F;
-			
-			if(crcToCheck == ackCrc && seqToCheck == ackSeq){
-				logInfo("Ack match.");
-				outQueue.poll();
-				ackPending = false;
-			}
-			else
-				logInfo("Ack without match");
-		}
-	}
-	
-	public void logInfo(String str){
-		logger.log(LogLevel.INFO, this.toString() + ": " + str + ".");
-	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,38 @@
+package core;
+
+/**
+ * Kinds of MX units, with the per-type protocol settings the server uses
+ * when talking to them. The window sizes below are defaults, overridden
+ * with -Dmx.window.TYPE, e.g. -Dmx.window.UNKNOWN=2.
+ * <p>
+ * Nothing the units send tells their type, so sessions stay UNKNOWN and
+ * only its window size applies, unless something calls
+ * MxSession.setDeviceType.
+ * @author jay
+ *
+ */
+public enum DeviceType {
+
+	/* Used until the unit has identified itself */
+	UNKNOWN(4),
+	MX2(2),
+	MX3(8);
+
+	/* Never more than half the 4 bit sequence space */
+	public static final int MAX_WINDOW_SIZE = 8;
+
+	private int windowSize;
+
+	private DeviceType(int windowSize){
+		windowSize = Integer.getInteger("mx.window." + name(), windowSize);
+		this.windowSize = Math.max(1, Math.min(windowSize, MAX_WINDOW_SIZE));
+	}
+
+	/**
+	 * Number of outbound packets that may await their ACK at the same time.
+	 * @return Window size, 1 meaning stop-and-wait.
+	 */
+	public int getWindowSize(){
+		return windowSize;
+	}
+}
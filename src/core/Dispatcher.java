@@ -0,0 +1,120 @@
+package core;
+
+import java.util.Arrays;
+
+import mxproto.MxPacketView;
+
+/**
+ * Routes received packets to their handlers by command, source function
+ * and, optionally, the type in the first two data bytes.
+ * <p>
+ * Every handler gets a slot when it registers. (command, source) pairs
+ * index an array of slots directly, and those with handlers per type a
+ * small array indexed by type, so a lookup is two or three array loads.
+ * Handlers register once at startup, before any session is served; after
+ * that the tables are only read and need no lock.
+ * <p>
+ * Handlers run inline in the session's context and must not block; rows
+ * reach the DB through the ingest pipeline.
+ * @author jay
+ *
+ */
+public class Dispatcher {
+
+	/* Registers a handler for every type not registered on its own */
+	public static final int ANY_TYPE = -1;
+
+	/* Results of dispatch */
+	public static final int HANDLED = 0;
+	public static final int FAILED = 1;
+	public static final int NO_HANDLER = 2;
+
+	/* One entry per (command, source), both a byte */
+	private static final int KEYS = 256*256;
+
+	/* Slot + 1 per key and per key and type, 0 if none */
+	private int[] anyTypeSlots;
+	private int[][] typeSlots;
+
+	private PacketHandler[] handlers;
+	private int count;
+
+	public Dispatcher(){
+		this.anyTypeSlots = new int[KEYS];
+		this.typeSlots = new int[KEYS][];
+		this.handlers = new PacketHandler[16];
+		this.count = 0;
+	}
+
+	/**
+	 * Registers a handler. Only call before sessions are served.
+	 * @param cmd Command ID, e.g. MxDefs.CMD_EVENT.
+	 * @param src Source function, e.g. MxDefs.FUNC_GPS.
+	 * @param type Type in the first two data bytes, or ANY_TYPE.
+	 * @param handler Handler.
+	 * @return Slot of the handler.
+	 * @throws IllegalArgumentException If a handler is registered for the
+	 * key already.
+	 */
+	public int register(int cmd, int src, int type, PacketHandler handler){
+		if(cmd < 0 || cmd > 0xFF || src < 0 || src > 0xFF
+				|| type < ANY_TYPE || type > 0xFFFF)
+			throw new IllegalArgumentException(String.format(
+					"Invalid key CMD 0x%X SRC 0x%X TYPE 0x%X.", cmd, src, type));
+		int key = (cmd << 8) | src;
+		if(type == ANY_TYPE ? anyTypeSlots[key] != 0 : slotOf(key, type) != 0)
+			throw new IllegalArgumentException(String.format(
+					"Handler for CMD 0x%X SRC 0x%X TYPE 0x%X registered twice.",
+					cmd, src, type));
+
+		if(count == handlers.length)
+			handlers = Arrays.copyOf(handlers, count*2);
+		int slot = count++;
+		handlers[slot] = handler;
+
+		if(type == ANY_TYPE){
+			anyTypeSlots[key] = slot + 1;
+		}
+		else{
+			int[] byType = typeSlots[key];
+			if(byType == null || byType.length <= type){
+				int[] grown = new int[type + 1];
+				if(byType != null) System.arraycopy(byType, 0, grown, 0, byType.length);
+				typeSlots[key] = byType = grown;
+			}
+			byType[type] = slot + 1;
+		}
+		return slot;
+	}
+
+	private int slotOf(int key, int type){
+		int[] byType = typeSlots[key];
+		return byType != null && type < byType.length ? byType[type] : 0;
+	}
+
+	/**
+	 * Hands a packet to its handler.
+	 * @param session Session the packet came on.
+	 * @param packet Received packet.
+	 * @return HANDLED, FAILED if the handler could not store the packet, or
+	 * NO_HANDLER if none is registered for it.
+	 */
+	public int dispatch(MxSession session, MxPacketView packet){
+		int key = (packet.getCmdId() << 8) | packet.getSrc();
+		int slot = 0;
+		if(typeSlots[key] != null && packet.getDataLength() >= 2)
+			slot = slotOf(key, packet.getData16(0));
+		if(slot == 0) slot = anyTypeSlots[key];
+		if(slot-- == 0) return NO_HANDLER;
+
+		return handlers[slot].handle(session, packet) ? HANDLED : FAILED;
+	}
+
+	/**
+	 * Number of registered handlers.
+	 * @return Handler count.
+	 */
+	public int getHandlerCount(){
+		return count;
+	}
+}
@@ -0,0 +1,98 @@
+package core;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import mxproto.MxPacketView;
+
+/**
+ * Recognizes packets a unit sent again because our ACK was lost or late.
+ * Remembers the (CRC, payload stamp) key of the last packet received with
+ * each sequence number; a packet matching the key of its sequence number
+ * is a retransmission.
+ * <p>
+ * A unit only resends packets in its send window, at most half the
+ * sequence space, so once the sequence has moved on by half of it the
+ * keys left behind are forgotten. A unit repeating an identical payload,
+ * such as a steady analog value, under a reused sequence number is thus
+ * never taken for a resend, however fast the sequence wraps. The payload
+ * stamp is a hash of the data section, which includes the sample timestamp
+ * of GPS data. Not thread safe; use from the session only.
+ * @author jay
+ *
+ */
+public class DuplicateFilter {
+
+	/* 4 bit sequence numbers */
+	private static final int SEQ_SPACE = 16;
+
+	/* Total of all filters, for monitoring */
+	private static final AtomicLong totalSuppressed = new AtomicLong(0);
+
+	/* Key of the last packet per sequence number, -1 if none or forgotten */
+	private long[] keys;
+	private long suppressed;
+
+	public DuplicateFilter(){
+		this.keys = new long[SEQ_SPACE];
+		this.suppressed = 0;
+		/* Keys are 40 bits, so -1 never matches */
+		for(int i=0;i<SEQ_SPACE;i++) keys[i] = -1;
+	}
+
+	/**
+	 * Checks a received packet against the one last seen with its
+	 * sequence number, and remembers it if it is new.
+	 * @param packet Received packet, not an ACK.
+	 * @return True if the packet is a retransmission.
+	 */
+	public boolean isDuplicate(MxPacketView packet){
+		int seq = packet.getSeq();
+		long key = ((long) packet.getCRC() << 32) | (stamp(packet) & 0xFFFFFFFFL);
+		if(keys[seq] == key){
+			suppressed++;
+			totalSuppressed.incrementAndGet();
+			return true;
+		}
+		keys[seq] = key;
+		/* Half a turn or more behind, out of any send window. Sequence
+		 * numbers skipped by packets we never got are covered too */
+		for(int i=1;i<=SEQ_SPACE/2;i++) keys[(seq + i) % SEQ_SPACE] = -1;
+		return false;
+	}
+
+	/**
+	 * Forgets a packet that was not ACKed, so that when the unit sends it
+	 * again it is handled again.
+	 * @param packet Packet last passed to isDuplicate.
+	 */
+	public void forget(MxPacketView packet){
+		keys[packet.getSeq()] = -1;
+	}
+
+	/* FNV-1a over the command and data section */
+	private static int stamp(MxPacketView packet){
+		int hash = 0x811C9DC5;
+		hash = (hash ^ packet.getCmdId()) * 0x01000193;
+		hash = (hash ^ packet.getSrc()) * 0x01000193;
+		int length = packet.getDataLength();
+		for(int i=0;i<length;i++)
+			hash = (hash ^ packet.getData8(i)) * 0x01000193;
+		return hash;
+	}
+
+	/**
+	 * Retransmissions this filter has caught.
+	 * @return Count.
+	 */
+	public long getSuppressedCount(){
+		return suppressed;
+	}
+
+	/**
+	 * Retransmissions all filters have caught.
+	 * @return Count.
+	 */
+	public static long getTotalSuppressed(){
+		return totalSuppressed.get();
+	}
+}
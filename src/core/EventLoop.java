@@ -0,0 +1,176 @@
+package core;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import logger.LogLevel;
+import logger.Logger;
+
+/**
+ * A single selector thread serving any number of {@link ChannelSession}s.
+ * @author jay
+ *
+ */
+public class EventLoop implements Runnable {
+
+	private Selector selector;
+	private TimingWheel timers;
+	private BufferPool buffers;
+	private Dispatcher dispatcher;
+	private Logger logger;
+	private int loopId;
+	private volatile boolean running;
+
+	/* Channels handed over by the acceptor, registered on the loop thread */
+	private ConcurrentLinkedQueue<SocketChannel> newChannels;
+
+	/* Timer work for sessions of this loop */
+	private ConcurrentLinkedQueue<Runnable> tasks;
+	private AtomicInteger connectionCount;
+
+	/**
+	 * Create an event loop.
+	 * @param loopId Numerical ID of the loop.
+	 * @param connectionCount Shared counter used to number sessions.
+	 * @param timers Wheel to schedule session timers on.
+	 * @param buffers Pool the sessions borrow buffers from.
+	 * @param dispatcher Handlers of received packets.
+	 * @param logger Logger to use.
+	 * @throws IOException If the selector could not be opened.
+	 */
+	public EventLoop(int loopId, AtomicInteger connectionCount, 
+			TimingWheel timers, BufferPool buffers, Dispatcher dispatcher, 
+			Logger logger) throws IOException {
+		this.loopId = loopId;
+		this.connectionCount = connectionCount;
+		this.timers = timers;
+		this.buffers = buffers;
+		this.dispatcher = dispatcher;
+		this.logger = logger;
+		this.selector = Selector.open();
+		this.newChannels = new ConcurrentLinkedQueue<SocketChannel>();
+		this.tasks = new ConcurrentLinkedQueue<Runnable>();
+		this.running = true;
+	}
+
+	Selector getSelector(){
+		return selector;
+	}
+
+	/**
+	 * Hands an accepted channel to this loop. Safe to call from any thread.
+	 * @param channel Accepted channel.
+	 */
+	public void register(SocketChannel channel){
+		newChannels.add(channel);
+		selector.wakeup();
+	}
+
+	/**
+	 * Runs a task on the loop's thread. Safe to call from any thread.
+	 * @param task Task to run.
+	 */
+	public void execute(Runnable task){
+		tasks.add(task);
+		selector.wakeup();
+	}
+
+	/**
+	 * Number of sessions currently served by this loop.
+	 * @return Session count.
+	 */
+	public int sessionCount(){
+		return selector.keys().size();
+	}
+
+	/**
+	 * Stops the loop, closing all its sessions.
+	 */
+	public void shutdown(){
+		running = false;
+		selector.wakeup();
+	}
+
+	@Override
+	public String toString(){
+		return "EventLoop #" + loopId;
+	}
+
+	@Override
+	public void run(){
+		logger.log(LogLevel.DEBUG, "%s: up.", this);
+		while(running){
+			try{
+				selector.select();
+			}
+			catch(IOException ioe){
+				logger.log(LogLevel.FATAL, "%s: selector failed.", this);
+				break;
+			}
+
+			registerNew();
+			runTasks();
+
+			Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+			while(it.hasNext()){
+				SelectionKey key = it.next();
+				it.remove();
+				ChannelSession session = (ChannelSession) key.attachment();
+				try{
+					if(key.isValid() && key.isWritable()) session.onWritable();
+					if(key.isValid() && key.isReadable()) session.onReadable();
+				}
+				/* A broken session must not take the whole loop down */
+				catch(RuntimeException re){
+					logger.log(LogLevel.WARNING, "%s: %s", session, re);
+					session.closeSocket();
+				}
+			}
+		}
+
+		for(SelectionKey key : selector.keys()){
+			((ChannelSession) key.attachment()).closeSocket();
+		}
+		try{
+			selector.close();
+		}
+		catch(IOException ioe){
+			// Swallow
+		}
+		logger.log(LogLevel.DEBUG, "%s: down.", this);
+	}
+
+	private void runTasks(){
+		Runnable task;
+		while((task = tasks.poll()) != null){
+			try{
+				task.run();
+			}
+			catch(RuntimeException re){
+				logger.log(LogLevel.WARNING, "%s: task failed: %s", this, re);
+			}
+		}
+	}
+
+	private void registerNew(){
+		SocketChannel channel;
+		while((channel = newChannels.poll()) != null){
+			int id = connectionCount.getAndIncrement();
+			ChannelSession session = new ChannelSession(channel, id, timers, 
+					buffers, dispatcher, logger);
+			if(session.init(this)){
+				logger.log(LogLevel.DEBUG, "Accepted connection #%d.", id);
+				session.start();
+				session.serviceOutbound();
+			}
+			else{
+				session.closeSocket();
+			}
+		}
+	}
+}
@@ -1,15 +1,24 @@
 package core;
 
+import java.io.File;
 import java.io.IOException;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
+import logger.EventLog;
 import logger.LogLevel;
 import logger.Logger;
 import database.DBHandler;
+import database.IngestPipeline;
+import database.RowAssembler;
+import database.Spool;
+import mxproto.MxParser;
 
 /**
  * The main functionality of the server lies here.
@@ -24,14 +33,91 @@ public class Main {
 	private static final int MAX_CONNECTIONS = 5000;
 	private static final int portNumber = 40002;
 	
-	/* Serve at most this many simultaneous connections */
-	private ExecutorService clientService = Executors.newFixedThreadPool(MAX_CONNECTIONS);
+	/* Write-behind DB ingest, overridable with -Dmx.ingest.<knob>=value */
+	private static final String INGEST_MODE = 
+			System.getProperty("mx.ingest.mode", DBHandler.INGEST_COPY);
+	private static final int INGEST_WRITERS = 
+			Integer.getInteger("mx.ingest.writers", IngestPipeline.DEFAULT_WRITERS);
+	private static final int INGEST_CAPACITY = 
+			Integer.getInteger("mx.ingest.capacity", IngestPipeline.DEFAULT_CAPACITY);
+	private static final int INGEST_BATCH_SIZE = 
+			Integer.getInteger("mx.ingest.batchSize", IngestPipeline.DEFAULT_BATCH_SIZE);
+	private static final long INGEST_LINGER = 
+			Long.getLong("mx.ingest.lingerMillis", IngestPipeline.DEFAULT_LINGER);
+	
+	/* Decode analog and GPIO readings, whose layout is assumed */
+	private static final boolean PARSE_SENSORS = 
+			Boolean.getBoolean("mx.parser.sensors");
+	
+	/* Readings this close together are written as one rtg row */
+	private static final long ASSEMBLY_WINDOW = 
+			Long.getLong("mx.assembly.windowMillis", RowAssembler.DEFAULT_WINDOW);
+	
+	/* Local spool for samples on their way to the DB. Empty dir disables */
+	private static final String SPOOL_DIR = 
+			System.getProperty("mx.spool.dir", "spool");
+	private static final long SPOOL_MAX_BYTES = 
+			Long.getLong("mx.spool.maxMB", 1024)*1024*1024;
+	
+	/* Binary log of per-packet events. Empty dir logs them as text */
+	private static final String EVENT_LOG_DIR = 
+			System.getProperty("mx.eventlog.dir", "");
+	private static final long EVENT_LOG_SEGMENT_BYTES = 
+			Long.getLong("mx.eventlog.segmentMB", 64)*1024*1024;
+	private static final long EVENT_LOG_ROTATE = 
+			Long.getLong("mx.eventlog.rotateMinutes", 60)*60*1000;
+	private static final int EVENT_LOG_MAX_SEGMENTS = 
+			Integer.getInteger("mx.eventlog.maxSegments", 
+					EventLog.DEFAULT_MAX_SEGMENTS);
+	
+	/* Capture of all MX frames, for core.Replay. Empty dir disables */
+	private static final String CAPTURE_DIR = 
+			System.getProperty("mx.capture.dir", "");
+	private static final long CAPTURE_FILE_BYTES = 
+			Long.getLong("mx.capture.fileMB", 256)*1024*1024;
+	private static final int CAPTURE_MAX_FILES = 
+			Integer.getInteger("mx.capture.maxFiles", 
+					CaptureRecorder.DEFAULT_MAX_FILES);
+	
+	/* How often rtg partitions are created and expired */
+	private static final long PARTITION_CHECK_HOURS = 1;
+	
+	/* How often buffer pool and ingest usage is logged */
+	private static final long POOL_STATS_INTERVAL = 60*1000;
+	
+	/* Serves ClientSockets in the threads and virtual modes */
+	private ExecutorService clientService;
 	private Logger logger;
+	private TimingWheel timers;
+	private BufferPool buffers;
+	private Dispatcher dispatcher;
 	private DBHandler dbhandler;
 	
+	/* Runs DB housekeeping off the session and timer threads */
+	private ScheduledExecutorService maintenance;
+	
+	/**
+	 * Starts the server. The optional argument picks how connections are
+	 * served: "nio" (default) multiplexes them over a few event loops,
+	 * "threads" runs one pooled thread per connection and "virtual" one
+	 * virtual thread per connection (Java 21+).
+	 * @param args Optional mode.
+	 */
 	public static void main(String[] args){
 		Main main = new Main();
-		main.listen();
+		String mode = args.length > 0 ? args[0] : "nio";
+		if(mode.equals("threads")){
+			main.listen(Executors.newFixedThreadPool(MAX_CONNECTIONS));
+		}
+		else if(mode.equals("virtual")){
+			main.listen(main.newVirtualThreadExecutor());
+		}
+		else if(mode.equals("nio")){
+			main.listenNio();
+		}
+		else{
+			System.err.println("Usage: core.Main [nio|threads|virtual]");
+		}
 	}
 	
 	private Main(){
@@ -50,27 +136,145 @@ public class Main {
 		
 		/* Log to stdout/stderr */
 		logger = new Logger(LogLevel.DEBUG, "", true);
+		openEventLog();
+		openCapture();
+		
+		/* Inactivity, resend and poll timers of all connections */
+		timers = new TimingWheel(logger);
+		timers.start();
+		
+		/* Read and write buffers of all connections */
+		buffers = new BufferPool();
+		logPoolStats();
+		
+		/* What to do with each kind of received packet */
+		dispatcher = new Dispatcher();
+		MxParser.registerAll(dispatcher, PARSE_SENSORS);
 		
 		/* Provides db clearing / rebuilding functions */
 		dbhandler = new DBHandler(logger);
 		// dbhandler.clearDB();
 		// dbhandler.createDB();
+		maintenance = Executors.newSingleThreadScheduledExecutor();
+		maintenance.scheduleWithFixedDelay(new Runnable(){
+			public void run(){
+				dbhandler.managePartitions();
+			}
+		}, 0, PARTITION_CHECK_HOURS, TimeUnit.HOURS);
+		
+		dbhandler.startIngest(INGEST_MODE, INGEST_WRITERS, INGEST_CAPACITY, 
+				INGEST_BATCH_SIZE, INGEST_LINGER, ASSEMBLY_WINDOW, openSpool());
+	}
+	
+	private void openEventLog(){
+		if(EVENT_LOG_DIR.isEmpty()) return;
+		EventLog events = new EventLog(new File(EVENT_LOG_DIR), 
+				EVENT_LOG_SEGMENT_BYTES, EVENT_LOG_ROTATE, EVENT_LOG_MAX_SEGMENTS);
+		try{
+			events.open();
+			logger.setEventLog(events);
+		}
+		catch(IOException ioe){
+			logger.log(LogLevel.WARNING, "Cannot open event log, logging " +
+					"events as text: %s", ioe);
+		}
+	}
+	
+	private void openCapture(){
+		if(CAPTURE_DIR.isEmpty()) return;
+		CaptureRecorder recorder = new CaptureRecorder(new File(CAPTURE_DIR), 
+				CAPTURE_FILE_BYTES, CAPTURE_MAX_FILES);
+		try{
+			recorder.open();
+			MxSession.setCaptureRecorder(recorder);
+		}
+		catch(IOException ioe){
+			logger.log(LogLevel.WARNING, "Cannot open capture, traffic is " +
+					"not recorded: %s", ioe);
+		}
+	}
+	
+	private Spool openSpool(){
+		if(SPOOL_DIR.isEmpty()) return null;
+		Spool spool = new Spool(new File(SPOOL_DIR), SPOOL_MAX_BYTES, logger);
+		try{
+			spool.open();
+			if(System.getProperty("mx.ingest.writers") != null)
+				logger.log(LogLevel.WARNING, "Spooling uses one DB writer, " +
+						"ignoring mx.ingest.writers.");
+			return spool;
+		}
+		catch(IOException ioe){
+			logger.log(LogLevel.WARNING, "Cannot open spool, samples will " +
+					"be lost if the DB is down: %s", ioe);
+			return null;
+		}
+	}
+	
+	private void listenNio(){
+		new NioServer(portNumber, timers, buffers, dispatcher, logger).listen();
+		dbhandler.stopIngest();
+	}
+	
+	private void logPoolStats(){
+		timers.schedule(new Runnable(){
+			public void run(){
+				/* Snapshots of changing counters, so rendered here, but only
+				 * if they are logged */
+				if(logger.isEnabled(LogLevel.DEBUG)){
+					logger.log(LogLevel.DEBUG, buffers.toString());
+					logger.log(LogLevel.DEBUG, DBHandler.getPool().toString());
+					logger.log(LogLevel.DEBUG, DBHandler.getShadow().toString());
+					logger.log(LogLevel.DEBUG, RowAssembler.stats());
+					logger.log(LogLevel.DEBUG, "Resent packets dropped: %d",
+							DuplicateFilter.getTotalSuppressed());
+					EventLog events = logger.getEventLog();
+					if(events != null) logger.log(LogLevel.DEBUG, events.toString());
+					CaptureRecorder recorder = MxSession.getCaptureRecorder();
+					if(recorder != null) logger.log(LogLevel.DEBUG, recorder.toString());
+					IngestPipeline ingest = DBHandler.getIngest();
+					if(ingest != null) logger.log(LogLevel.DEBUG, ingest.toString());
+				}
+				logPoolStats();
+			}
+		}, POOL_STATS_INTERVAL);
+	}
+	
+	/**
+	 * Looks up the virtual thread executor reflectively, so the server still
+	 * builds and runs on JDKs that predate it.
+	 * @return One virtual thread per task, or the fixed pool if unsupported.
+	 */
+	private ExecutorService newVirtualThreadExecutor(){
+		try{
+			return (ExecutorService) Executors.class
+					.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		}
+		catch(ReflectiveOperationException roe){
+			logger.log(LogLevel.WARNING, "Virtual threads not supported by " +
+					"this JVM, falling back to threads mode.");
+			return Executors.newFixedThreadPool(MAX_CONNECTIONS);
+		}
 	}
 	
-	private void listen(){
-		ServerSocket ss = null;
+	private void listen(ExecutorService clientService){
+		this.clientService = clientService;
+		ServerSocketChannel ss = null;
 		try{
-			ss = new ServerSocket(portNumber);
+			/* Accepted through a channel, so sessions can gather writes */
+			ss = ServerSocketChannel.open();
+			ss.bind(new InetSocketAddress(portNumber));
 			logger.log(LogLevel.INFO, "Listening...");
 			while(true){
-				Socket clientConnection = ss.accept();
+				Socket clientConnection = ss.accept().socket();
 				ClientSocket clientSocket = 
-						new ClientSocket(clientConnection, connectionCount, logger);
+						new ClientSocket(clientConnection, connectionCount, timers, 
+								buffers, dispatcher, logger);
 				if(clientSocket.init()){
 					try{
 						clientService.submit(clientSocket);
-						logger.log(LogLevel.DEBUG, "Accepted connection #"+
-								connectionCount++ + ".");
+						logger.log(LogLevel.DEBUG, "Accepted connection #%d.",
+								connectionCount++);
 					}
 					catch(RejectedExecutionException ree){
 						logger.log(LogLevel.WARNING, ree.getMessage());
@@ -85,6 +289,7 @@ public class Main {
 		finally{
 			logger.log(LogLevel.INFO, "Shutting down.");
 			clientService.shutdown();
+			dbhandler.stopIngest();
 			try{
 				if(ss!=null) ss.close();
 			}
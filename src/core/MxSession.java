@@ -0,0 +1,624 @@
+package core;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.LinkedList;
+
+import logger.Event;
+import logger.LogLevel;
+import logger.Logger;
+import mxproto.GpsRecord;
+import mxproto.InvalidPacketException;
+import mxproto.MxDefs;
+import mxproto.MxFrameDecoder;
+import mxproto.MxFrameListener;
+import mxproto.MxPacket;
+import mxproto.MxPacketView;
+import mxproto.MxPacketWriter;
+import database.RtgRow;
+
+/**
+ * Protocol state of a single MX connection, independent of how the bytes
+ * are moved. Subclasses provide the transport, read into the decoder and
+ * call {@link #receive()}, and run timer
+ * work handed to {@link #execute(Runnable)} in the session's context.
+ * @author jay
+ *
+ */
+public abstract class MxSession implements MxFrameListener {
+
+	/* Time to wait for ACK before resend, until the RTT has been measured */
+	protected static final int DEFAULT_RESEND_TIME = 5*1000*3;
+
+	/* Number of resends - disable by using 0 */
+	protected static final int MAX_RESENDS = 2;
+
+	/* Close socket after 5 minutes of inactivity */
+	protected static final int DEFAULT_CLOSE_TIMEOUT = 5*60*1000;
+
+	/* Repeat the example read every [ms] - disable by using 0 */
+	protected static final int DEFAULT_POLL_INTERVAL = 0;
+
+	/* box_id is varchar(15) */
+	private static final int BOX_ID_MAX = 15;
+
+	/* Logged for every packet */
+	private static final Event ACKED = new Event(LogLevel.INFO,
+			"Acked packet SEQ {} CMD {}.");
+	private static final Event ACK_MATCH = new Event(LogLevel.INFO,
+			"Ack match SEQ {}.");
+	private static final Event ACK_NO_MATCH = new Event(LogLevel.INFO,
+			"Ack without match SEQ {} CRC {}.");
+	private static final Event SENDING = new Event(LogLevel.DEBUG,
+			"Sending SEQ {}.");
+	private static final Event RESENDING = new Event(LogLevel.DEBUG,
+			"Resending SEQ {}.");
+	private static final Event RESEND_LIMIT = new Event(LogLevel.DEBUG,
+			"Resend limit reached for SEQ {}.");
+	private static final Event RESENT_DROPPED = new Event(LogLevel.DEBUG,
+			"Dropped resent SEQ {}.");
+	private static final Event NO_HANDLER = new Event(LogLevel.INFO,
+			"No handler for CMD {} from {}.");
+	private static final Event NOT_STORED = new Event(LogLevel.WARNING,
+			"Could not store SEQ {} CMD {}, not acked.");
+
+	/* 4 bit sequence numbers */
+	private static final int SEQ_SPACE = 16;
+
+	/* Records the frames of every session, if capturing */
+	private static volatile CaptureRecorder capture;
+
+	/* ACK buffer, plus a send and a resend of every window slot */
+	private static final int GATHER_SIZE = 1 + 2*DeviceType.MAX_WINDOW_SIZE;
+
+	protected int id;
+	protected MxFrameDecoder decoder;
+
+	/* Reused for every received frame */
+	private MxPacketView view;
+
+	/* Everything to send in the next write. ACKs are encoded into outBuf,
+	 * borrowed from the pool for one pass only */
+	private ByteBuffer outBuf;
+	private ByteBuffer[] gather;
+	private int gatherCount;
+
+	private int closeTimeout;
+	private int pollInterval;
+	private RttEstimator rtt;
+	private DuplicateFilter duplicates;
+	private long lastActivity;
+	private int sequenceNr;
+	private DeviceType deviceType;
+	private String boxId;
+
+	/* Reused for every GPS sample */
+	private GpsRecord gps;
+
+	/* Waiting for a free slot in the send window */
+	private LinkedList<MxPacket> outQueue;
+
+	/* Sent and awaiting ACK, indexed by sequence number */
+	private MxPacket[] inFlight;
+	private long[] sentAt;
+	private int[] resends;
+	private int inFlightCount;
+
+	protected BufferPool buffers;
+	private Dispatcher dispatcher;
+
+	/* Fire on the wheel's thread, the work runs through execute() */
+	protected TimingWheel timers;
+	private Timeout inactivityTimer;
+	private Timeout resendTimer;
+	private Timeout pollTimer;
+
+	public Logger logger;
+
+	/**
+	 * Create a session with default timers.
+	 * @param id Numerical ID of session.
+	 * @param boxId Device the session's readings are stored under.
+	 * @param timers Wheel to schedule the session's timers on.
+	 * @param buffers Pool to borrow read and write buffers from.
+	 * @param dispatcher Handlers of received packets.
+	 * @param logger Logger to use.
+	 */
+	protected MxSession(int id, String boxId, TimingWheel timers, 
+			BufferPool buffers, Dispatcher dispatcher, Logger logger){
+		this.id = id;
+		this.timers = timers;
+		this.buffers = buffers;
+		this.dispatcher = dispatcher;
+		this.logger = logger;
+		this.closeTimeout = DEFAULT_CLOSE_TIMEOUT;
+		this.pollInterval = DEFAULT_POLL_INTERVAL;
+		this.rtt = new RttEstimator(DEFAULT_RESEND_TIME);
+		this.duplicates = new DuplicateFilter();
+		this.lastActivity = System.currentTimeMillis();
+		this.sequenceNr = 0;
+		this.deviceType = DeviceType.UNKNOWN;
+		this.boxId = boxId;
+		this.gps = new GpsRecord();
+		this.outQueue = new LinkedList<MxPacket>();
+		this.inFlight = new MxPacket[SEQ_SPACE];
+		this.sentAt = new long[SEQ_SPACE];
+		this.resends = new int[SEQ_SPACE];
+		this.inFlightCount = 0;
+		this.decoder = new MxFrameDecoder();
+		this.view = new MxPacketView();
+		this.gather = new ByteBuffer[GATHER_SIZE];
+		this.gatherCount = 0;
+
+		final Runnable checkInactivity = new Runnable(){
+			public void run(){ checkInactivity(); }
+		};
+		final Runnable resend = new Runnable(){
+			public void run(){ serviceOutbound(); }
+		};
+		final Runnable poll = new Runnable(){
+			public void run(){ poll(); }
+		};
+		this.inactivityTimer = new Timeout(new Runnable(){
+			public void run(){ execute(checkInactivity); }
+		});
+		this.resendTimer = new Timeout(new Runnable(){
+			public void run(){ execute(resend); }
+		});
+		this.pollTimer = new Timeout(new Runnable(){
+			public void run(){ execute(poll); }
+		});
+	}
+
+	/**
+	 * Writes encoded packets to the peer, in as few calls as the transport
+	 * allows. Everything between each buffer's position and limit is
+	 * consumed; bytes the connection can't take yet must be kept by the
+	 * implementation.
+	 * @param bufs Buffers to write, in order.
+	 * @param count Number of buffers to write.
+	 * @throws IOException
+	 */
+	protected abstract void write(ByteBuffer[] bufs, int count) throws IOException;
+
+	/**
+	 * Gracefully closes the underlying connection.
+	 */
+	public abstract void closeSocket();
+
+	/**
+	 * Runs timer work in the session's context, i.e. never concurrently
+	 * with receive() or serviceOutbound(). Called from the timing wheel's
+	 * thread, so must not block.
+	 * @param task Work to run.
+	 */
+	protected abstract void execute(Runnable task);
+
+	/**
+	 * Picks the box_id a session's readings are stored under. Units don't
+	 * identify themselves yet, so it is their IP address, which stays the
+	 * same across reconnects on a private APN, or the session if there is
+	 * none or it doesn't fit.
+	 * @param address Remote address, or null.
+	 * @param id Numerical ID of session.
+	 * @return Box ID.
+	 */
+	protected static String boxIdOf(InetAddress address, int id){
+		if(address != null){
+			String host = address.getHostAddress();
+			if(host.length() <= BOX_ID_MAX) return host;
+		}
+		return "Session #" + id;
+	}
+
+	/**
+	 * Records every frame sent and received by all sessions from now on.
+	 * @param recorder Opened recorder, or null to stop recording.
+	 */
+	public static void setCaptureRecorder(CaptureRecorder recorder){
+		capture = recorder;
+	}
+
+	public static CaptureRecorder getCaptureRecorder(){
+		return capture;
+	}
+
+	/**
+	 * Circular four byte sequence number. Unique for each session.
+	 * @return
+	 */
+	public int getSequence(){
+		return sequenceNr++ % SEQ_SPACE;
+	}
+
+	/**
+	 * Sets the kind of unit on the other end, which decides the send window.
+	 * @param deviceType Device type.
+	 */
+	public void setDeviceType(DeviceType deviceType){
+		this.deviceType = deviceType;
+	}
+
+	public DeviceType getDeviceType(){
+		return deviceType;
+	}
+
+	public int getId(){
+		return id;
+	}
+
+	public String getBoxId(){
+		return boxId;
+	}
+
+	/**
+	 * Record the session's GPS samples are decoded into, overwritten by
+	 * the next sample.
+	 * @return GPS record.
+	 */
+	public GpsRecord getGpsRecord(){
+		return gps;
+	}
+
+	/**
+	 * Creates the row for a reading of this unit. Each reading is submitted
+	 * as a row of its own as soon as it is handled, and ACKed only if it was
+	 * accepted: appended to the spool, or, without one, queued in memory.
+	 * The ingest writers merge it with the readings around it.
+	 * @return Row with box_id set.
+	 */
+	public RtgRow newRow(){
+		RtgRow row = new RtgRow();
+		row.setBoxId(boxId);
+		return row;
+	}
+
+	/**
+	 * Round trip estimate of this session, for monitoring.
+	 * @return RTT estimator.
+	 */
+	public RttEstimator getRttEstimator(){
+		return rtt;
+	}
+
+	/**
+	 * Retransmissions caught in this session, for monitoring.
+	 * @return Duplicate filter.
+	 */
+	public DuplicateFilter getDuplicateFilter(){
+		return duplicates;
+	}
+
+	/**
+	 * Queues a packet for sending. Up to the device type's window size of
+	 * packets are sent before their ACKs arrive. Packets are kept as built
+	 * until ACKed, for resending, rather than encoded into pooled buffers.
+	 * @param packet Packet to queue.
+	 */
+	public void queuePacket(MxPacket packet){
+		outQueue.add(packet);
+	}
+
+	/**
+	 * Called once when the session is up.
+	 */
+	protected void start(){
+		logger.log(LogLevel.DEBUG, "%s: up.", this);
+		lastActivity = System.currentTimeMillis();
+		timers.schedule(inactivityTimer, closeTimeout);
+
+		queueExamplePacket();
+		if(pollInterval > 0) timers.schedule(pollTimer, pollInterval);
+	}
+
+	/**
+	 * Cancels all timers of the session. Called when it closes.
+	 */
+	protected void stopTimers(){
+		timers.cancel(inactivityTimer);
+		timers.cancel(resendTimer);
+		timers.cancel(pollTimer);
+	}
+
+	private void poll(){
+		queueExamplePacket();
+		serviceOutbound();
+		timers.schedule(pollTimer, pollInterval);
+	}
+
+	private void queueExamplePacket(){
+		/***************************************************************/
+		/* Construct and send a single example packet                  */
+		/***************************************************************/
+
+			byte[] dataBytes = null;
+
+			/* Data section varies per MX packet
+			 * Typically the first two bytes represent a "type"
+			 */
+			dataBytes = new byte[2];
+			dataBytes[0] = 0;
+			dataBytes[1] = MxDefs.ANALOG_LI_ION_VOLTAGE;
+			//testBytes[2] = 4; // CONTINUOUS_PULSE;
+			//testBytes[3] = 20; // Pulse time
+			//testBytes[4] = 20; // Pulse time
+
+			if(dataBytes != null)
+			try{
+				MxPacket packet = new MxPacket(
+						/* Length: DATA length + header size + CMD_ID */
+						dataBytes.length + MxDefs.HEADER_SIZE + 1,
+						0, // Flags
+						getSequence(), // Sequence number
+						MxDefs.FUNC_APPLICATION, // Source, as good as any atm
+						MxDefs.FUNC_ANALOG, // Destination
+						MxDefs.CMD_READ, // Command ID
+						dataBytes); // Data section
+
+				logger.log(LogLevel.INFO, "%s: Adding packet with DST %d.", this,
+						packet.getDst());
+
+				/* Queue the packet - packets are sent main loop */
+				queuePacket(packet);
+			}
+			catch(InvalidPacketException ipe){
+				logger.log(LogLevel.WARNING, "%s: Tried to build invalid packet.",
+						this);
+			}
+
+		/***************************************************************/
+		/* End of example packet                                       */
+		/***************************************************************/
+	}
+
+	/**
+	 * Handles all complete packets read into the decoder so far. Their ACKs
+	 * go out together with any outbound packets that are due, in one write.
+	 * @throws IOException If ACKs could not be written.
+	 */
+	protected void receive() throws IOException {
+		lastActivity = System.currentTimeMillis();
+		decoder.decode(this);
+		serviceOutbound();
+	}
+
+	@Override
+	public void onFrame(ByteBuffer frame, int offset, int length)
+			throws IOException {
+		CaptureRecorder recorder = capture;
+		if(recorder != null)
+			recorder.record(id, CaptureRecorder.INBOUND, frame, offset, length);
+		MxPacketView packet = view.wrap(frame, offset, length);
+		/* Received a protocol layer ACK */
+		if(packet.isAck()){
+			matchQueue(packet);
+			return;
+		}
+		/* Received something else - handle and ACK. Our ACK was lost or
+		 * late if it is a duplicate; the unit has it now */
+		if(duplicates.isDuplicate(packet)){
+			logger.event(RESENT_DROPPED, id, packet.getSeq());
+		}
+		else if(!handlePacket(packet)){
+			/* The unit sends it again */
+			duplicates.forget(packet);
+			logger.event(NOT_STORED, id, packet.getSeq(), packet.getCmdId());
+			return;
+		}
+		if(outBuf != null && outBuf.remaining() < MxPacketWriter.ACK_SIZE)
+			flush();
+		if(outBuf == null){
+			outBuf = buffers.acquireTransient();
+			gather[gatherCount++] = outBuf;
+		}
+		MxPacketWriter.writeAck(outBuf, packet);
+		logger.event(ACKED, id, packet.getSeq(), packet.getCmdId());
+	}
+
+	@Override
+	public void onResync(int skipped){
+		logger.log(LogLevel.WARNING, "%s: skipped %d bytes of invalid data.",
+				this, skipped);
+	}
+
+	/**
+	 * Resends or gives up on packets whose ACK is overdue, then sends queued
+	 * packets while the window has room. Writes pending ACKs along with them.
+	 */
+	protected void serviceOutbound(){
+		long now = System.currentTimeMillis();
+		if(inFlightCount > 0) for(int seq=0;seq<SEQ_SPACE;seq++){
+			MxPacket packet = inFlight[seq];
+			if(packet == null
+					|| now - sentAt[seq] <= rtt.getTimeout(resends[seq])) continue;
+			if(resends[seq] >= MAX_RESENDS){
+				if(MAX_RESENDS > 0)
+					logger.event(RESEND_LIMIT, id, seq);
+				release(seq);
+			}
+			else{
+				resends[seq]++;
+				sentAt[seq] = now;
+				logger.event(RESENDING, id, seq);
+				gather(packet);
+			}
+		}
+
+		while(!outQueue.isEmpty() && inFlightCount < deviceType.getWindowSize()){
+			MxPacket packet = outQueue.peek();
+			int seq = packet.getSeq();
+			/* Sequence number wrapped onto a packet still awaiting its ACK */
+			if(inFlight[seq] != null) break;
+
+			logger.event(SENDING, id, seq);
+			gather(packet);
+			outQueue.poll();
+			inFlight[seq] = packet;
+			sentAt[seq] = now;
+			resends[seq] = 0;
+			inFlightCount++;
+		}
+
+		try{
+			flush();
+		}
+		catch(IOException ioe){
+			/* Broken connection, noticed by the next read */
+			logger.log(LogLevel.DEBUG, "%s: failed to write to socket.", this);
+		}
+
+		scheduleResend(now);
+	}
+
+	/* Wakes the session at the earliest resend deadline in the window */
+	private void scheduleResend(long now){
+		if(inFlightCount == 0){
+			timers.cancel(resendTimer);
+			return;
+		}
+		long next = Long.MAX_VALUE;
+		for(int seq=0;seq<SEQ_SPACE;seq++){
+			if(inFlight[seq] != null)
+				next = Math.min(next, sentAt[seq] + rtt.getTimeout(resends[seq]) + 1);
+		}
+		timers.schedule(resendTimer, next - now);
+	}
+
+	/* Adds a packet to the next write */
+	private void gather(MxPacket packet){
+		if(gatherCount == GATHER_SIZE){
+			try{
+				flush();
+			}
+			catch(IOException ioe){
+				// Swallow, as flushing at the end of the pass will fail too
+			}
+		}
+		gather[gatherCount++] = packet.getPacketBuffer();
+	}
+
+	/* Writes pending ACKs and gathered packets */
+	private void flush() throws IOException {
+		if(gatherCount == 0) return;
+		if(outBuf != null) outBuf.flip();
+		CaptureRecorder recorder = capture;
+		if(recorder != null) for(int i=0;i<gatherCount;i++)
+			recorder.recordAll(id, CaptureRecorder.OUTBOUND, gather[i]);
+		try{
+			write(gather, gatherCount);
+		}
+		finally{
+			if(outBuf != null) buffers.releaseTransient(outBuf);
+			outBuf = null;
+			for(int i=0;i<gatherCount;i++) gather[i] = null;
+			gatherCount = 0;
+		}
+	}
+
+	/**
+	 * Gives every borrowed buffer back to the pool, dropping any partial
+	 * frame. Only call once the session is done reading.
+	 */
+	protected void releaseBuffers(){
+		returnReadBuffer(true);
+		if(outBuf != null) buffers.releaseTransient(outBuf);
+		outBuf = null;
+		for(int i=0;i<gatherCount;i++) gather[i] = null;
+		gatherCount = 0;
+	}
+
+	/**
+	 * Makes sure the decoder has a buffer to read into, borrowing one from
+	 * the pool if needed.
+	 * @return False if the pool's budget is used up.
+	 */
+	protected boolean borrowReadBuffer(){
+		if(decoder.hasBuffer()) return true;
+		ByteBuffer buf = buffers.acquire();
+		if(buf == null) return false;
+		decoder.attach(buf);
+		return true;
+	}
+
+	/**
+	 * Gives the read buffer back to the pool, unless it holds part of a
+	 * frame.
+	 * @param force Return it even so, dropping the partial frame.
+	 */
+	protected void returnReadBuffer(boolean force){
+		if(!decoder.hasBuffer()) return;
+		if(decoder.buffered() > 0){
+			if(!force) return;
+			decoder.discard();
+		}
+		buffers.release(decoder.detach());
+	}
+
+	private void release(int seq){
+		inFlight[seq] = null;
+		inFlightCount--;
+	}
+
+	/**
+	 * Closes the session if nothing was received for closeTimeout, otherwise
+	 * checks again when it would next run out. Nothing is done per packet.
+	 */
+	private void checkInactivity(){
+		long inactiveTime = System.currentTimeMillis() - lastActivity;
+		if(inactiveTime >= closeTimeout){
+			logger.log(LogLevel.INFO, "%s: reached inactivity timeout (%ds).",
+					this, inactiveTime/1000);
+			closeSocket();
+		}
+		else{
+			timers.schedule(inactivityTimer, closeTimeout - inactiveTime);
+		}
+	}
+
+	/**
+	 * Hands a received packet, other than an ACK, to the handler registered
+	 * for it.
+	 * @param packet Received packet.
+	 * @return False if the packet could not be stored and must not be
+	 * ACKed. Packets without a handler are ACKed.
+	 */
+	public boolean handlePacket(MxPacketView packet){
+		int result = dispatcher.dispatch(this, packet);
+		if(result == Dispatcher.NO_HANDLER)
+			logger.event(NO_HANDLER, id, packet.getCmdId(), packet.getSrc());
+		return result != Dispatcher.FAILED;
+	}
+
+	/**
+	 * Matches an ACK against any packet in the send window, in whatever
+	 * order the ACKs arrive.
+	 * @param ack Received ACK.
+	 */
+	public void matchQueue(MxPacketView ack){
+		if(inFlightCount > 0 && ack.getDataLength() >= 2){
+			int ackCrc = ack.getData8(0);
+			int ackSeq = ack.getData8(1) & 0x0F;
+
+			MxPacket packet = inFlight[ackSeq];
+			if(packet != null && packet.getCRC() == ackCrc){
+				logger.event(ACK_MATCH, id, ackSeq);
+				/* Karn: a resent packet's RTT is ambiguous */
+				if(resends[ackSeq] == 0)
+					rtt.sample(System.currentTimeMillis() - sentAt[ackSeq]);
+				release(ackSeq);
+			}
+			else
+				logger.event(ACK_NO_MATCH, id, ackSeq, ackCrc);
+		}
+	}
+
+	/**
+	 * Logs a message of this session at INFO level. Formatted only if
+	 * INFO is logged, off the session's thread.
+	 * @param str Message.
+	 */
+	public void logInfo(String str){
+		logger.log(LogLevel.INFO, "%s: %s.", this, str);
+	}
+}
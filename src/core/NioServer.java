@@ -0,0 +1,104 @@
+package core;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import logger.LogLevel;
+import logger.Logger;
+
+/**
+ * Accepts connections and spreads them over a small, fixed set of
+ * {@link EventLoop}s, so that connections cost no thread of their own.
+ * @author jay
+ *
+ */
+public class NioServer {
+
+	private int portNumber;
+	private TimingWheel timers;
+	private BufferPool buffers;
+	private Dispatcher dispatcher;
+	private Logger logger;
+	private EventLoop[] loops;
+	private AtomicInteger connectionCount;
+
+	/**
+	 * Create a server with one event loop per available processor.
+	 * @param portNumber Port to listen on.
+	 * @param timers Wheel to schedule session timers on.
+	 * @param buffers Pool the sessions borrow buffers from.
+	 * @param dispatcher Handlers of received packets.
+	 * @param logger Logger to use.
+	 */
+	public NioServer(int portNumber, TimingWheel timers, BufferPool buffers, 
+			Dispatcher dispatcher, Logger logger){
+		this(portNumber, Runtime.getRuntime().availableProcessors(), timers, 
+				buffers, dispatcher, logger);
+	}
+
+	/**
+	 * Create a server with a custom number of event loops.
+	 * @param portNumber Port to listen on.
+	 * @param loopCount Number of event loop threads.
+	 * @param timers Wheel to schedule session timers on.
+	 * @param buffers Pool the sessions borrow buffers from.
+	 * @param dispatcher Handlers of received packets.
+	 * @param logger Logger to use.
+	 */
+	public NioServer(int portNumber, int loopCount, TimingWheel timers, 
+			BufferPool buffers, Dispatcher dispatcher, Logger logger){
+		this.portNumber = portNumber;
+		this.timers = timers;
+		this.buffers = buffers;
+		this.dispatcher = dispatcher;
+		this.logger = logger;
+		this.loops = new EventLoop[Math.max(1, loopCount)];
+		this.connectionCount = new AtomicInteger(0);
+	}
+
+	/**
+	 * Starts the event loops and accepts connections until the listener
+	 * socket fails.
+	 */
+	public void listen(){
+		ServerSocketChannel ssc = null;
+		try{
+			for(int i=0;i<loops.length;i++){
+				loops[i] = new EventLoop(i, connectionCount, timers, buffers, 
+						dispatcher, logger);
+				Thread t = new Thread(loops[i], loops[i].toString());
+				t.start();
+			}
+
+			ssc = ServerSocketChannel.open();
+			ssc.bind(new InetSocketAddress(portNumber));
+			logger.log(LogLevel.INFO, "Listening (%d event loops)...",
+					loops.length);
+
+			int next = 0;
+			while(true){
+				SocketChannel channel = ssc.accept();
+				loops[next].register(channel);
+				next = (next + 1) % loops.length;
+			}
+		}
+		catch(IOException ioe){
+			logger.log(LogLevel.FATAL, "IOException opening listener socket.");
+		}
+		finally{
+			logger.log(LogLevel.INFO, "Shutting down.");
+			for(EventLoop loop : loops){
+				if(loop != null) loop.shutdown();
+			}
+			try{
+				if(ssc!=null) ssc.close();
+			}
+			catch(IOException ioe){
+				logger.log(LogLevel.FATAL, "IOException closing listener socket.");
+			}
+		}
+	}
+}
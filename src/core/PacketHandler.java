@@ -0,0 +1,22 @@
+package core;
+
+import mxproto.MxPacketView;
+
+/**
+ * Handles one kind of received packet. Registered with a
+ * {@link Dispatcher}.
+ * @author jay
+ *
+ */
+public interface PacketHandler {
+
+	/**
+	 * Handles a packet, in the session's context. The view may be used
+	 * only until the handler returns.
+	 * @param session Session the packet came on.
+	 * @param packet Received packet.
+	 * @return False if the packet could not be stored, so must not be
+	 * ACKed: the unit keeps it and sends it again.
+	 */
+	boolean handle(MxSession session, MxPacketView packet);
+}
@@ -0,0 +1,257 @@
+package core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+
+import logger.LogLevel;
+import logger.Logger;
+import database.DBHandler;
+import database.IngestPipeline;
+import database.RowAssembler;
+import mxproto.MxParser;
+
+/**
+ * Feeds traffic recorded by {@link CaptureRecorder} back through decoding,
+ * dispatch and the DB ingest, to measure the server against real traffic
+ * offline.
+ * <pre>
+ * java -cp bin:lib/* core.Replay DIR [-paced] [-speed X] [-level LEVEL]
+ * </pre>
+ * Frames are replayed as fast as possible, or with -paced at the pace they
+ * were recorded, sped up X times. Received frames are fed to one session
+ * per recorded session, in recorded order; what the server sent is only
+ * counted. The logger defaults to WARNING so per-packet logging doesn't
+ * dominate the timing. Ingest is configured with the server's
+ * -Dmx.ingest.&lt;knob&gt; properties, without a spool.
+ * @author jay
+ *
+ */
+public class Replay {
+
+	/* Wait before feeding again while the DB writers are behind */
+	private static final long INGEST_RETRY_DELAY = 100;
+
+	private Logger logger;
+	private TimingWheel timers;
+	private BufferPool buffers;
+	private Dispatcher dispatcher;
+	private DBHandler dbhandler;
+
+	private boolean paced;
+	private double speed;
+
+	/* Sessions of the run being replayed, by recorded id */
+	private Map<Integer, ReplaySession> sessions;
+	private long run;
+
+	/* Clock of the first record, and when it was replayed */
+	private long firstRecord;
+	private long firstReplayed;
+
+	/* Totals */
+	private int sessionCount;
+	private long framesIn;
+	private long framesOut;
+	private long bytesIn;
+	private long framesDropped;
+
+	public Replay(Logger logger, boolean paced, double speed){
+		this.logger = logger;
+		this.paced = paced;
+		this.speed = speed;
+		this.sessions = new HashMap<Integer, ReplaySession>();
+		this.firstRecord = -1;
+	}
+
+	public static void main(String[] args){
+		if(args.length < 1){
+			System.err.println("Usage: core.Replay DIR [-paced] [-speed X] " +
+					"[-level LEVEL]");
+			System.exit(1);
+		}
+		File dir = new File(args[0]);
+		boolean paced = false;
+		double speed = 1;
+		LogLevel level = LogLevel.WARNING;
+		try{
+			for(int i=1;i<args.length;i++){
+				if(args[i].equals("-paced")) paced = true;
+				else if(args[i].equals("-speed") && i + 1 < args.length)
+					speed = Double.parseDouble(args[++i]);
+				else if(args[i].equals("-level") && i + 1 < args.length)
+					level = LogLevel.valueOf(args[++i].toUpperCase());
+				else throw new IllegalArgumentException("Unknown option " + args[i]);
+			}
+			if(speed <= 0) throw new IllegalArgumentException("Bad speed " + speed);
+		}
+		catch(IllegalArgumentException iae){
+			System.err.println(iae.getMessage());
+			System.exit(1);
+		}
+		File[] files = CaptureRecorder.listFiles(dir);
+		if(files.length == 0){
+			System.err.println("No capture files in " + dir);
+			System.exit(1);
+		}
+
+		Replay replay = new Replay(new Logger(level, "", true), paced, speed);
+		replay.init();
+		try{
+			replay.replay(files);
+		}
+		catch(IOException ioe){
+			System.err.println("Cannot replay " + dir + ": " + ioe.toString());
+			System.exit(1);
+		}
+		replay.logger.dispose();
+		System.exit(0);
+	}
+
+	/* Sets up the pipeline as Main does */
+	private void init(){
+		timers = new TimingWheel(logger);
+		timers.start();
+		buffers = new BufferPool();
+		dispatcher = new Dispatcher();
+		MxParser.registerAll(dispatcher,
+				Boolean.getBoolean("mx.parser.sensors"));
+		dbhandler = new DBHandler(logger);
+		dbhandler.startIngest(
+				System.getProperty("mx.ingest.mode", DBHandler.INGEST_COPY),
+				Integer.getInteger("mx.ingest.writers",
+						IngestPipeline.DEFAULT_WRITERS),
+				Integer.getInteger("mx.ingest.capacity",
+						IngestPipeline.DEFAULT_CAPACITY),
+				Integer.getInteger("mx.ingest.batchSize",
+						IngestPipeline.DEFAULT_BATCH_SIZE),
+				Long.getLong("mx.ingest.lingerMillis",
+						IngestPipeline.DEFAULT_LINGER),
+				Long.getLong("mx.assembly.windowMillis",
+						RowAssembler.DEFAULT_WINDOW),
+				null);
+	}
+
+	/**
+	 * Replays capture files, oldest first, and prints the results.
+	 * @param files Capture files.
+	 * @throws IOException If a file can't be read.
+	 */
+	public void replay(File[] files) throws IOException {
+		long start = System.nanoTime();
+		for(File file : files) replay(file);
+		/* Runs ended with the server */
+		closeSessions();
+		long fed = System.nanoTime() - start;
+		IngestPipeline ingest = DBHandler.getIngest();
+		String ingestStats = ingest != null ? ingest.toString() : "";
+		dbhandler.stopIngest();
+		timers.shutdown();
+		long total = System.nanoTime() - start;
+
+		System.out.println(String.format("Replayed %d frames (%d bytes) " +
+				"of %d sessions in %.3f s, %.0f frames/s; %d sent frames skipped, " +
+				"%d dropped for lack of buffers. Done after %.3f s with ingest " +
+				"drained.", framesIn, bytesIn, sessionCount, fed/1e9,
+				framesIn/(fed/1e9), framesOut, framesDropped, total/1e9));
+		System.out.println(RowAssembler.stats());
+		System.out.println("Resent packets dropped: " +
+				DuplicateFilter.getTotalSuppressed());
+		if(!ingestStats.isEmpty()) System.out.println(ingestStats);
+	}
+
+	private void replay(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		MappedByteBuffer buf;
+		try{
+			buf = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+					raf.length());
+		}
+		finally{
+			raf.close();
+		}
+		if(buf.limit() < CaptureRecorder.HEADER_SIZE)
+			throw new IOException("Not a capture file: " + file);
+		/* Mapped ahead but never started */
+		if(buf.getLong(0) == 0) return;
+		if(buf.getLong(0) != CaptureRecorder.MAGIC)
+			throw new IOException("Not a capture file: " + file);
+		long epoch = buf.getLong(CaptureRecorder.EPOCH);
+		long anchor = buf.getLong(CaptureRecorder.ANCHOR);
+		long fileRun = buf.getLong(CaptureRecorder.RUN);
+		/* Session ids start over with the server */
+		if(fileRun != run) closeSessions();
+		run = fileRun;
+
+		int p = CaptureRecorder.HEADER_SIZE;
+		while(p + CaptureRecorder.RECORD_HEADER_SIZE <= buf.limit()){
+			long nanos = buf.getLong(p + CaptureRecorder.NANOS);
+			/* Rest of the file was never written */
+			if(nanos == 0) break;
+			int id = buf.getInt(p + CaptureRecorder.SESSION);
+			byte direction = buf.get(p + CaptureRecorder.DIRECTION);
+			int length = buf.getShort(p + CaptureRecorder.LENGTH) & 0xFFFF;
+			int frame = p + CaptureRecorder.RECORD_HEADER_SIZE;
+			p = frame + length;
+			if(p > buf.limit()) break;
+
+			if(paced) waitFor(epoch*1000000 + nanos - anchor);
+			if(direction != CaptureRecorder.INBOUND){
+				framesOut++;
+				continue;
+			}
+			/* DB writers are behind, as a live session would wait */
+			while(DBHandler.isIngestSaturated()){
+				try{
+					Thread.sleep(INGEST_RETRY_DELAY);
+				}
+				catch(InterruptedException ie){
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+			if(session(id).feed(buf, frame, length)){
+				framesIn++;
+				bytesIn += length;
+			}
+			else{
+				framesDropped++;
+			}
+		}
+	}
+
+	private ReplaySession session(int id){
+		ReplaySession session = sessions.get(id);
+		if(session == null){
+			session = new ReplaySession(id, timers, buffers, dispatcher, logger);
+			sessions.put(id, session);
+			sessionCount++;
+		}
+		return session;
+	}
+
+	private void closeSessions(){
+		for(ReplaySession session : sessions.values()) session.closeSocket();
+		sessions.clear();
+	}
+
+	/* Sleeps until a record is due, relative to the first one */
+	private void waitFor(long recorded){
+		long now = System.nanoTime();
+		if(firstRecord < 0){
+			firstRecord = recorded;
+			firstReplayed = now;
+			return;
+		}
+		long due = firstReplayed + (long) ((recorded - firstRecord) / speed);
+		while(now < due){
+			LockSupport.parkNanos(due - now);
+			now = System.nanoTime();
+		}
+	}
+}
@@ -0,0 +1,160 @@
+package core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantLock;
+
+import logger.LogLevel;
+import logger.Logger;
+
+/**
+ * A session fed with captured frames instead of a connection, for
+ * {@link Replay}. What it sends is counted and dropped.
+ * @author jay
+ *
+ */
+public class ReplaySession extends MxSession {
+
+	/* Frame being fed, read by the decoder through source */
+	private ByteBuffer frame;
+	private ReadableByteChannel source;
+
+	private long framesFed;
+	private long bytesSent;
+	private volatile boolean closed;
+
+	/* Held while feeding frames or running timer work */
+	private ReentrantLock lock;
+
+	/* Timer work waiting for the lock */
+	private ConcurrentLinkedQueue<Runnable> tasks;
+
+	/**
+	 * Create a replay session.
+	 * @param id Numerical ID of the captured session.
+	 * @param timers Wheel to schedule the session's timers on.
+	 * @param buffers Pool to borrow read and write buffers from.
+	 * @param dispatcher Handlers of received packets.
+	 * @param logger Logger to use.
+	 */
+	public ReplaySession(int id, TimingWheel timers, BufferPool buffers,
+			Dispatcher dispatcher, Logger logger){
+		super(id, boxIdOf(null, id), timers, buffers, dispatcher, logger);
+		this.lock = new ReentrantLock();
+		this.tasks = new ConcurrentLinkedQueue<Runnable>();
+		this.source = new ReadableByteChannel(){
+			public int read(ByteBuffer dst){
+				if(!frame.hasRemaining()) return -1;
+				int n = Math.min(dst.remaining(), frame.remaining());
+				for(int i=0;i<n;i++) dst.put(frame.get());
+				return n;
+			}
+			public boolean isOpen(){
+				return true;
+			}
+			public void close(){
+			}
+		};
+	}
+
+	@Override
+	public String toString(){
+		return "ReplaySession #" + id;
+	}
+
+	/**
+	 * Handles one captured frame as if it had just been read.
+	 * @param capture Buffer holding the frame; left untouched.
+	 * @param offset Frame start in capture.
+	 * @param length Frame length.
+	 * @return False if the buffer pool's budget is used up.
+	 * @throws IOException If the listener throws.
+	 */
+	public boolean feed(ByteBuffer capture, int offset, int length)
+			throws IOException {
+		lock.lock();
+		try{
+			if(closed) return true;
+			if(!borrowReadBuffer()) return false;
+			frame = capture.duplicate();
+			frame.limit(offset + length).position(offset);
+			while(frame.hasRemaining()){
+				if(decoder.readFrom(source) <= 0) break;
+				receive();
+			}
+			frame = null;
+			framesFed++;
+			returnReadBuffer(false);
+			return true;
+		}
+		finally{
+			lock.unlock();
+			runTasks();
+		}
+	}
+
+	public long getFramesFed(){
+		return framesFed;
+	}
+
+	public long getBytesSent(){
+		return bytesSent;
+	}
+
+	@Override
+	protected void write(ByteBuffer[] bufs, int count){
+		for(int i=0;i<count;i++){
+			bytesSent += bufs[i].remaining();
+			bufs[i].position(bufs[i].limit());
+		}
+	}
+
+	/**
+	 * Runs timer work right away unless a frame is being fed, in which case
+	 * the feeding thread runs it when done. Nothing is written, so the work
+	 * never blocks the wheel.
+	 */
+	@Override
+	protected void execute(Runnable task){
+		if(closed) return;
+		tasks.add(task);
+		runTasks();
+	}
+
+	/* Whoever frees the lock last finds work queued while it was held */
+	private void runTasks(){
+		while(!tasks.isEmpty() && lock.tryLock()){
+			try{
+				Runnable task;
+				while((task = tasks.poll()) != null){
+					if(!closed) task.run();
+				}
+			}
+			finally{
+				lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Ends the session as its connection did.
+	 */
+	@Override
+	public void closeSocket(){
+		lock.lock();
+		try{
+			if(closed) return;
+			closed = true;
+			stopTimers();
+			releaseBuffers();
+		}
+		finally{
+			lock.unlock();
+		}
+		logger.log(LogLevel.DEBUG, "%s: %d frames replayed, %d resent packets " +
+				"dropped", this, framesFed,
+				getDuplicateFilter().getSuppressedCount());
+	}
+}
@@ -0,0 +1,90 @@
+package core;
+
+/**
+ * Smoothed round trip time estimate for one connection, from which the
+ * resend timeout is derived (Jacobson/Karels, as in RFC 6298).
+ * @author jay
+ *
+ */
+public class RttEstimator {
+
+	/* Bounds for the derived timeout [ms] */
+	public static final int MIN_TIMEOUT = 1000;
+	public static final int MAX_TIMEOUT = 60*1000;
+
+	private long srtt;
+	private long rttvar;
+	private long timeout;
+	private long lastSample;
+	private int samples;
+
+	/**
+	 * Create an estimator without samples.
+	 * @param initialTimeout Timeout used until the first sample [ms].
+	 */
+	public RttEstimator(long initialTimeout){
+		this.timeout = initialTimeout;
+		this.samples = 0;
+	}
+
+	/**
+	 * Adds a measured round trip. Only pass samples from packets that were
+	 * never resent, an ACK for a resent packet can't tell which copy it is for.
+	 * @param rtt Time from send to ACK [ms].
+	 */
+	public void sample(long rtt){
+		if(rtt < 0) return;
+		lastSample = rtt;
+		if(samples == 0){
+			srtt = rtt;
+			rttvar = rtt / 2;
+		}
+		else{
+			/* rttvar = 3/4 rttvar + 1/4 |srtt - rtt|, srtt = 7/8 srtt + 1/8 rtt */
+			rttvar += (Math.abs(srtt - rtt) - rttvar) / 4;
+			srtt += (rtt - srtt) / 8;
+		}
+		samples++;
+		timeout = clamp(srtt + 4*rttvar);
+	}
+
+	/**
+	 * Resend timeout for a packet that has already been resent a number of
+	 * times, doubling with each resend.
+	 * @param resends Number of earlier resends of the packet.
+	 * @return Timeout [ms].
+	 */
+	public long getTimeout(int resends){
+		return clamp(timeout << Math.min(resends, 16));
+	}
+
+	public long getTimeout(){
+		return timeout;
+	}
+
+	public long getSmoothedRtt(){
+		return srtt;
+	}
+
+	public long getRttVariance(){
+		return rttvar;
+	}
+
+	public long getLastSample(){
+		return lastSample;
+	}
+
+	public int getSampleCount(){
+		return samples;
+	}
+
+	private static long clamp(long t){
+		return Math.max(MIN_TIMEOUT, Math.min(t, MAX_TIMEOUT));
+	}
+
+	@Override
+	public String toString(){
+		return String.format("RTT %dms (var %dms, %d samples), resend after %dms",
+				srtt, rttvar, samples, timeout);
+	}
+}
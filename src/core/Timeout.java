@@ -0,0 +1,30 @@
+package core;
+
+/**
+ * A task scheduled on a {@link TimingWheel}. Can be rescheduled any number
+ * of times; scheduling a pending timeout moves it.
+ * @author jay
+ *
+ */
+public class Timeout {
+
+	final Runnable task;
+
+	/* Bucket links, guarded by the wheel's lock */
+	Timeout prev;
+	Timeout next;
+	int level;
+	int slot;
+	long expires;
+	boolean pending;
+
+	/**
+	 * Create an unscheduled timeout.
+	 * @param task Run on the wheel's thread when the timeout expires. Must
+	 * not block.
+	 */
+	public Timeout(Runnable task){
+		this.task = task;
+		this.pending = false;
+	}
+}
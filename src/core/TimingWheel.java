@@ -0,0 +1,227 @@
+package core;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+import logger.LogLevel;
+import logger.Logger;
+
+/**
+ * Hierarchical hashed timing wheel shared by all sessions. Scheduling and
+ * cancelling are O(1), and a single thread advances the wheel one tick at
+ * a time no matter how many timeouts are pending, so idle sessions cost
+ * nothing between their deadlines.
+ * <p>
+ * Timeouts further out than one turn of the first level are kept in a
+ * coarser level and moved down as their turn comes up.
+ * @author jay
+ *
+ */
+public class TimingWheel implements Runnable {
+
+	/* Resolution of all timeouts [ms] */
+	public static final int DEFAULT_TICK = 100;
+
+	/* 256 slots per level, three levels: 25.6s, 1.8h and 19.4 days at 100ms */
+	private static final int SLOT_BITS = 8;
+	private static final int SLOTS = 1 << SLOT_BITS;
+	private static final int SLOT_MASK = SLOTS - 1;
+	private static final int LEVELS = 3;
+	private static final long MAX_TICKS = (1L << (SLOT_BITS*LEVELS)) - 1;
+
+	private Timeout[][] buckets;
+	private long tickMillis;
+	private long startTime;
+
+	/* Next tick to be processed */
+	private long currentTick;
+
+	private ReentrantLock lock;
+	private Logger logger;
+	private volatile boolean running;
+
+	/**
+	 * Create a wheel with the default tick.
+	 * @param logger Logger to use.
+	 */
+	public TimingWheel(Logger logger){
+		this(DEFAULT_TICK, logger);
+	}
+
+	/**
+	 * Create a wheel with a custom tick.
+	 * @param tickMillis Resolution of all timeouts [ms].
+	 * @param logger Logger to use.
+	 */
+	public TimingWheel(long tickMillis, Logger logger){
+		this.tickMillis = Math.max(1, tickMillis);
+		this.logger = logger;
+		this.buckets = new Timeout[LEVELS][SLOTS];
+		this.lock = new ReentrantLock();
+		this.startTime = System.currentTimeMillis();
+		this.currentTick = 0;
+		this.running = true;
+	}
+
+	/**
+	 * Starts the thread advancing the wheel.
+	 */
+	public void start(){
+		Thread t = new Thread(this, "TimingWheel");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * Stops the wheel. Pending timeouts never fire.
+	 */
+	public void shutdown(){
+		running = false;
+	}
+
+	/**
+	 * Schedules a new timeout.
+	 * @param task Run on the wheel's thread when the timeout expires.
+	 * @param delayMillis Delay before expiry [ms].
+	 * @return The scheduled timeout.
+	 */
+	public Timeout schedule(Runnable task, long delayMillis){
+		Timeout timeout = new Timeout(task);
+		schedule(timeout, delayMillis);
+		return timeout;
+	}
+
+	/**
+	 * Schedules a timeout, moving it if it is already pending.
+	 * @param timeout Timeout to schedule.
+	 * @param delayMillis Delay before expiry [ms], rounded up to whole ticks.
+	 */
+	public void schedule(Timeout timeout, long delayMillis){
+		long ticks = (Math.max(0, delayMillis) + tickMillis - 1) / tickMillis;
+		lock.lock();
+		try{
+			if(timeout.pending) unlink(timeout);
+			/* Relative to the wall clock, not to how far the thread got */
+			long elapsed = (System.currentTimeMillis() - startTime) / tickMillis;
+			timeout.expires = Math.max(elapsed, currentTick) + ticks;
+			link(timeout);
+		}
+		finally{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Cancels a timeout. Does nothing if it isn't pending.
+	 * @param timeout Timeout to cancel.
+	 */
+	public void cancel(Timeout timeout){
+		lock.lock();
+		try{
+			if(timeout.pending) unlink(timeout);
+		}
+		finally{
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void run(){
+		while(running){
+			long due = (System.currentTimeMillis() - startTime) / tickMillis;
+			while(currentTick <= due){
+				Timeout expired = advance();
+				while(expired != null){
+					Timeout next = expired.next;
+					expired.next = null;
+					try{
+						expired.task.run();
+					}
+					catch(RuntimeException re){
+						logger.log(LogLevel.WARNING,
+								"TimingWheel: timeout failed: %s", re);
+					}
+					expired = next;
+				}
+			}
+			try{
+				long sleep = startTime + currentTick*tickMillis
+						- System.currentTimeMillis();
+				if(sleep > 0) Thread.sleep(sleep);
+			}
+			catch(InterruptedException ie){
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Processes the current tick.
+	 * @return Expired timeouts, linked through next.
+	 */
+	private Timeout advance(){
+		lock.lock();
+		try{
+			int index = (int) (currentTick & SLOT_MASK);
+			/* First level wrapped, pull the next turn down from above */
+			for(int level=1;level<LEVELS && index == 0;level++){
+				index = (int) ((currentTick >>> (SLOT_BITS*level)) & SLOT_MASK);
+				cascade(level, index);
+			}
+
+			int slot = (int) (currentTick & SLOT_MASK);
+			Timeout expired = buckets[0][slot];
+			buckets[0][slot] = null;
+			for(Timeout t = expired; t != null; t = t.next){
+				t.pending = false;
+				t.prev = null;
+			}
+			currentTick++;
+			return expired;
+		}
+		finally{
+			lock.unlock();
+		}
+	}
+
+	private void cascade(int level, int slot){
+		Timeout t = buckets[level][slot];
+		buckets[level][slot] = null;
+		while(t != null){
+			Timeout next = t.next;
+			link(t);
+			t = next;
+		}
+	}
+
+	private void link(Timeout t){
+		long delta = t.expires - currentTick;
+		if(delta < 0){
+			t.expires = currentTick;
+			delta = 0;
+		}
+		else if(delta > MAX_TICKS){
+			t.expires = currentTick + MAX_TICKS;
+			delta = MAX_TICKS;
+		}
+		int level = 0;
+		while(delta >= (1L << (SLOT_BITS*(level + 1)))) level++;
+		t.level = level;
+		t.slot = (int) ((t.expires >>> (SLOT_BITS*level)) & SLOT_MASK);
+
+		Timeout head = buckets[t.level][t.slot];
+		t.prev = null;
+		t.next = head;
+		if(head != null) head.prev = t;
+		buckets[t.level][t.slot] = t;
+		t.pending = true;
+	}
+
+	private void unlink(Timeout t){
+		if(t.prev != null) t.prev.next = t.next;
+		else buckets[t.level][t.slot] = t.next;
+		if(t.next != null) t.next.prev = t.prev;
+		t.prev = null;
+		t.next = null;
+		t.pending = false;
+	}
+}
@@ -0,0 +1,102 @@
+package database;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+
+/**
+ * Writes rows as one JDBC batch of INSERTs in a single transaction.
+ * @author jay
+ *
+ */
+public class BatchInsertWriter implements RowWriter {
+
+	static final String INSERT_SQL = "INSERT INTO rtg (timestamp_server, " +
+			"box_id, digital_in, digital_out, main_voltage, liion_voltage, " +
+			"temp_1, temp_2, analog_1, analog_2, gps_lat, gps_long, " +
+			"gps_speed, gps_dir, gps_fix, gps_sat_info, timestamp_sample, " +
+			"timestamp_last_valid, fms_status, obd_status, total_fuel, " +
+			"total_distance) " +
+			"VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, " +
+			"?, ?, ?, ?)";
+
+	@Override
+	public void write(PooledConnection pc, RtgRow[] rows, int count)
+			throws SQLException {
+		Connection c = pc.getConnection();
+		PreparedStatement ps = pc.prepare(INSERT_SQL);
+		c.setAutoCommit(false);
+		try{
+			for(int i=0;i<count;i++){
+				bind(ps, rows[i]);
+				ps.addBatch();
+			}
+			ps.executeBatch();
+			c.commit();
+		}
+		catch(SQLException sqle){
+			ps.clearBatch();
+			try{
+				c.rollback();
+			}
+			catch(SQLException rbe){
+				// Swallow, the original cause is more useful
+			}
+			throw sqle;
+		}
+		finally{
+			c.setAutoCommit(true);
+		}
+	}
+
+	private static void bind(PreparedStatement ps, RtgRow r)
+			throws SQLException {
+		if(r.has(RtgRow.TIMESTAMP_SERVER))
+			ps.setTimestamp(1, new Timestamp(r.timestampServer));
+		else ps.setNull(1, Types.TIMESTAMP);
+		if(r.has(RtgRow.BOX_ID)) ps.setString(2, r.boxId);
+		else ps.setNull(2, Types.VARCHAR);
+		if(r.has(RtgRow.DIGITAL_IN)) ps.setInt(3, r.digitalIn);
+		else ps.setNull(3, Types.INTEGER);
+		if(r.has(RtgRow.DIGITAL_OUT)) ps.setShort(4, r.digitalOut);
+		else ps.setNull(4, Types.SMALLINT);
+		setReal(ps, 5, r, RtgRow.MAIN_VOLTAGE, r.mainVoltage);
+		setReal(ps, 6, r, RtgRow.LIION_VOLTAGE, r.liionVoltage);
+		setReal(ps, 7, r, RtgRow.TEMP_1, r.temp1);
+		setReal(ps, 8, r, RtgRow.TEMP_2, r.temp2);
+		setReal(ps, 9, r, RtgRow.ANALOG_1, r.analog1);
+		setReal(ps, 10, r, RtgRow.ANALOG_2, r.analog2);
+		if(r.has(RtgRow.GPS_LAT)) ps.setDouble(11, r.gpsLat);
+		else ps.setNull(11, Types.DOUBLE);
+		if(r.has(RtgRow.GPS_LONG)) ps.setDouble(12, r.gpsLong);
+		else ps.setNull(12, Types.DOUBLE);
+		setReal(ps, 13, r, RtgRow.GPS_SPEED, r.gpsSpeed);
+		setReal(ps, 14, r, RtgRow.GPS_DIR, r.gpsDir);
+		setSmallint(ps, 15, r, RtgRow.GPS_FIX, r.gpsFix);
+		setSmallint(ps, 16, r, RtgRow.GPS_SAT_INFO, r.gpsSatInfo);
+		if(r.has(RtgRow.TIMESTAMP_SAMPLE))
+			ps.setTimestamp(17, new Timestamp(r.timestampSample));
+		else ps.setNull(17, Types.TIMESTAMP);
+		if(r.has(RtgRow.TIMESTAMP_LAST_VALID))
+			ps.setTimestamp(18, new Timestamp(r.timestampLastValid));
+		else ps.setNull(18, Types.TIMESTAMP);
+		setSmallint(ps, 19, r, RtgRow.FMS_STATUS, r.fmsStatus);
+		setSmallint(ps, 20, r, RtgRow.OBD_STATUS, r.obdStatus);
+		setReal(ps, 21, r, RtgRow.TOTAL_FUEL, r.totalFuel);
+		setReal(ps, 22, r, RtgRow.TOTAL_DISTANCE, r.totalDistance);
+	}
+
+	private static void setReal(PreparedStatement ps, int index, RtgRow r,
+			int column, float value) throws SQLException {
+		if(r.has(column)) ps.setFloat(index, value);
+		else ps.setNull(index, Types.REAL);
+	}
+
+	private static void setSmallint(PreparedStatement ps, int index, RtgRow r,
+			int column, short value) throws SQLException {
+		if(r.has(column)) ps.setShort(index, value);
+		else ps.setNull(index, Types.SMALLINT);
+	}
+}
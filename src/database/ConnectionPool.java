@@ -0,0 +1,202 @@
+package database;
+
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded pool of JDBC connections. Connections are opened when first
+ * needed, handed out most recently used first, and checked before reuse if
+ * they have been idle for a while. There is no pool-wide lock; at most
+ * maxSize connections are out or idle at any time.
+ * @author jay
+ *
+ */
+public class ConnectionPool {
+
+	public static final int DEFAULT_MAX_SIZE = 8;
+
+	/* How long acquire() waits for a connection to be released */
+	public static final long DEFAULT_ACQUIRE_TIMEOUT = 5000;
+
+	/* Connections idle longer than this are validated before use */
+	private static final long VALIDATE_AFTER = 30*1000;
+
+	/* Seconds, for Connection.isValid() */
+	private static final int VALIDATE_TIMEOUT = 2;
+
+	private String url;
+	private String user;
+	private String password;
+	private int maxSize;
+	private long acquireTimeout;
+
+	/* Permits for connections not handed out */
+	private Semaphore permits;
+	private ConcurrentLinkedDeque<PooledConnection> idle;
+
+	/* Metrics */
+	private AtomicInteger opened;
+	private AtomicInteger discarded;
+
+	/**
+	 * Create a pool with default size and timeout.
+	 * @param url JDBC URL.
+	 * @param user DB user.
+	 * @param password DB password.
+	 */
+	public ConnectionPool(String url, String user, String password){
+		this(url, user, password, DEFAULT_MAX_SIZE, DEFAULT_ACQUIRE_TIMEOUT);
+	}
+
+	/**
+	 * Create a pool. No connection is opened until one is needed.
+	 * @param url JDBC URL.
+	 * @param user DB user.
+	 * @param password DB password.
+	 * @param maxSize Most connections open at once.
+	 * @param acquireTimeout Milliseconds to wait for a free connection.
+	 */
+	public ConnectionPool(String url, String user, String password,
+			int maxSize, long acquireTimeout){
+		this.url = url;
+		this.user = user;
+		this.password = password;
+		this.maxSize = maxSize;
+		this.acquireTimeout = acquireTimeout;
+		this.permits = new Semaphore(maxSize);
+		this.idle = new ConcurrentLinkedDeque<PooledConnection>();
+		this.opened = new AtomicInteger(0);
+		this.discarded = new AtomicInteger(0);
+	}
+
+	/**
+	 * Takes a connection, opening one if none is idle. Must be given back
+	 * with {@link #release} or {@link #discard}.
+	 * @return A connection.
+	 * @throws SQLException If none could be opened, or none was released in
+	 * time.
+	 */
+	public PooledConnection acquire() throws SQLException {
+		try{
+			if(!permits.tryAcquire(acquireTimeout, TimeUnit.MILLISECONDS))
+				throw new SQLException("Timed out waiting for a DB connection.");
+		}
+		catch(InterruptedException ie){
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted waiting for a DB connection.");
+		}
+		try{
+			PooledConnection pc;
+			while((pc = idle.pollFirst()) != null){
+				if(System.currentTimeMillis() - pc.getLastUsed() < VALIDATE_AFTER
+						|| pc.getConnection().isValid(VALIDATE_TIMEOUT))
+					return pc;
+				pc.close();
+				discarded.incrementAndGet();
+			}
+			pc = new PooledConnection(
+					DriverManager.getConnection(url, user, password));
+			opened.incrementAndGet();
+			return pc;
+		}
+		catch(SQLException sqle){
+			permits.release();
+			throw sqle;
+		}
+		catch(RuntimeException re){
+			permits.release();
+			throw re;
+		}
+	}
+
+	/**
+	 * Gives a healthy connection back.
+	 * @param pc Connection from acquire().
+	 */
+	public void release(PooledConnection pc){
+		pc.touch();
+		idle.offerFirst(pc);
+		permits.release();
+	}
+
+	/**
+	 * Gives back a connection that must not be reused.
+	 * @param pc Connection from acquire().
+	 */
+	public void discard(PooledConnection pc){
+		pc.close();
+		discarded.incrementAndGet();
+		permits.release();
+	}
+
+	/**
+	 * Gives a connection back after a failed operation, closing it if the
+	 * failure was the connection's.
+	 * @param pc Connection from acquire().
+	 * @param cause What the operation threw.
+	 */
+	public void release(PooledConnection pc, SQLException cause){
+		if(isConnectionError(cause)) discard(pc);
+		else release(pc);
+	}
+
+	/**
+	 * Checks if an exception means the connection is unusable.
+	 * @param sqle Exception to check.
+	 * @return True for connection exceptions (SQLSTATE class 08) and
+	 * unknown states.
+	 */
+	public static boolean isConnectionError(SQLException sqle){
+		String state = sqle.getSQLState();
+		return state == null || state.startsWith("08");
+	}
+
+	/**
+	 * Checks if an exception means the DB rejected the data itself, so that
+	 * writing it again can't succeed.
+	 * @param sqle Exception to check.
+	 * @return True for data exceptions (SQLSTATE class 22) and integrity
+	 * constraint violations (class 23).
+	 */
+	public static boolean isDataError(SQLException sqle){
+		String state = sqle.getSQLState();
+		return state != null && (state.startsWith("22") || state.startsWith("23"));
+	}
+
+	/**
+	 * Closes all idle connections. Connections handed out are closed when
+	 * discarded.
+	 */
+	public void close(){
+		PooledConnection pc;
+		while((pc = idle.pollFirst()) != null) pc.close();
+	}
+
+	public int getMaxSize(){
+		return maxSize;
+	}
+
+	public int getIdleCount(){
+		return idle.size();
+	}
+
+	public int getOpenedCount(){
+		return opened.get();
+	}
+
+	public int getDiscardedCount(){
+		return discarded.get();
+	}
+
+	@Override
+	public String toString(){
+		return String.format("ConnectionPool: %d idle, %d in use of %d, " +
+				"%d opened, %d discarded", getIdleCount(),
+				maxSize - permits.availablePermits(), maxSize,
+				getOpenedCount(), getDiscardedCount());
+	}
+}
@@ -0,0 +1,216 @@
+package database;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.TimeZone;
+
+import logger.LogLevel;
+import logger.Logger;
+
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+
+/**
+ * Streams rows into rtg with COPY ... FROM STDIN (FORMAT binary), encoding
+ * the primitive columns straight into a per-thread buffer. Batches that
+ * COPY fails on for reasons other than the connection are written by a
+ * fallback writer instead.
+ * @author jay
+ *
+ */
+public class CopyWriter implements RowWriter {
+
+	private static final String COPY_SQL = "COPY rtg (timestamp_server, " +
+			"box_id, digital_in, digital_out, main_voltage, liion_voltage, " +
+			"temp_1, temp_2, analog_1, analog_2, gps_lat, gps_long, " +
+			"gps_speed, gps_dir, gps_fix, gps_sat_info, timestamp_sample, " +
+			"timestamp_last_valid, fms_status, obd_status, total_fuel, " +
+			"total_distance) FROM STDIN (FORMAT binary)";
+
+	private static final int FIELD_COUNT = 22;
+
+	/* "PGCOPY\n\377\r\n\0", flags and header extension length */
+	private static final byte[] HEADER = { 'P', 'G', 'C', 'O', 'P', 'Y', '\n',
+		(byte) 0xFF, '\r', '\n', 0, 0, 0, 0, 0, 0, 0, 0, 0 };
+
+	/* Microseconds from 1970-01-01 to 2000-01-01, the PostgreSQL epoch */
+	private static final long PG_EPOCH_MICROS = 946684800000000L;
+
+	/* Sent to the server in pieces of this size */
+	private static final int BUF_SIZE = 64*1024;
+
+	/* Largest row without box_id: 3 timestamps, 2 doubles, 10 reals, an
+	 * integer and 5 smallints */
+	private static final int ROW_MAX_SIZE = 2 + 4*FIELD_COUNT + 5*8 + 10*4 + 4
+			+ 5*2;
+
+	private static final byte[] NO_ID = new byte[0];
+
+	/* Encoded box ids kept per thread */
+	private static final int MAX_CACHED_IDS = 4096;
+
+	private RowWriter fallback;
+	private Logger logger;
+	private ThreadLocal<Encoder> encoders;
+
+	/**
+	 * Create a COPY writer.
+	 * @param fallback Writes batches that COPY failed on.
+	 * @param logger Logger to use.
+	 */
+	public CopyWriter(RowWriter fallback, Logger logger){
+		this.fallback = fallback;
+		this.logger = logger;
+		this.encoders = new ThreadLocal<Encoder>(){
+			@Override
+			protected Encoder initialValue(){
+				return new Encoder();
+			}
+		};
+	}
+
+	@Override
+	public void write(PooledConnection pc, RtgRow[] rows, int count)
+			throws SQLException {
+		Connection c = pc.getConnection();
+		if(!(c instanceof PGConnection)){
+			fallback.write(pc, rows, count);
+			return;
+		}
+		CopyIn copy = null;
+		try{
+			copy = ((PGConnection) c).getCopyAPI().copyIn(COPY_SQL);
+			encoders.get().write(copy, rows, count);
+			copy.endCopy();
+		}
+		catch(SQLException sqle){
+			if(copy != null && copy.isActive()) try{
+				copy.cancelCopy();
+			}
+			catch(SQLException ce){
+				// Swallow, the original cause is more useful
+			}
+			if(ConnectionPool.isConnectionError(sqle)) throw sqle;
+			logger.log(LogLevel.WARNING, "CopyWriter: COPY failed, " +
+					"inserting %d rows instead: %s", count, sqle);
+			fallback.write(pc, rows, count);
+		}
+	}
+
+	/* Buffer and box id cache of one writer thread */
+	private static class Encoder {
+
+		private ByteBuffer buf;
+		private HashMap<String, byte[]> ids;
+		private TimeZone zone;
+
+		Encoder(){
+			this.buf = ByteBuffer.allocate(BUF_SIZE);
+			this.ids = new HashMap<String, byte[]>();
+			this.zone = TimeZone.getDefault();
+		}
+
+		void write(CopyIn copy, RtgRow[] rows, int count) throws SQLException {
+			buf.clear();
+			buf.put(HEADER);
+			for(int i=0;i<count;i++){
+				byte[] id = boxId(rows[i]);
+				if(buf.remaining() < ROW_MAX_SIZE + id.length + 2) send(copy);
+				encode(rows[i], id);
+			}
+			buf.putShort((short) -1);
+			send(copy);
+		}
+
+		private void send(CopyIn copy) throws SQLException {
+			copy.writeToCopy(buf.array(), 0, buf.position());
+			buf.clear();
+		}
+
+		private byte[] boxId(RtgRow r){
+			if(!r.has(RtgRow.BOX_ID)) return NO_ID;
+			byte[] id = ids.get(r.boxId);
+			if(id == null){
+				if(ids.size() >= MAX_CACHED_IDS) ids.clear();
+				id = r.boxId.getBytes(StandardCharsets.UTF_8);
+				ids.put(r.boxId, id);
+			}
+			return id;
+		}
+
+		private void encode(RtgRow r, byte[] id){
+			buf.putShort((short) FIELD_COUNT);
+			timestamp(r, RtgRow.TIMESTAMP_SERVER, r.timestampServer);
+			if(r.has(RtgRow.BOX_ID)){
+				buf.putInt(id.length);
+				buf.put(id);
+			}
+			else buf.putInt(-1);
+			if(r.has(RtgRow.DIGITAL_IN)){
+				buf.putInt(4);
+				buf.putInt(r.digitalIn);
+			}
+			else buf.putInt(-1);
+			smallint(r, RtgRow.DIGITAL_OUT, r.digitalOut);
+			real(r, RtgRow.MAIN_VOLTAGE, r.mainVoltage);
+			real(r, RtgRow.LIION_VOLTAGE, r.liionVoltage);
+			real(r, RtgRow.TEMP_1, r.temp1);
+			real(r, RtgRow.TEMP_2, r.temp2);
+			real(r, RtgRow.ANALOG_1, r.analog1);
+			real(r, RtgRow.ANALOG_2, r.analog2);
+			doublePrecision(r, RtgRow.GPS_LAT, r.gpsLat);
+			doublePrecision(r, RtgRow.GPS_LONG, r.gpsLong);
+			real(r, RtgRow.GPS_SPEED, r.gpsSpeed);
+			real(r, RtgRow.GPS_DIR, r.gpsDir);
+			smallint(r, RtgRow.GPS_FIX, r.gpsFix);
+			smallint(r, RtgRow.GPS_SAT_INFO, r.gpsSatInfo);
+			timestamp(r, RtgRow.TIMESTAMP_SAMPLE, r.timestampSample);
+			timestamp(r, RtgRow.TIMESTAMP_LAST_VALID, r.timestampLastValid);
+			smallint(r, RtgRow.FMS_STATUS, r.fmsStatus);
+			smallint(r, RtgRow.OBD_STATUS, r.obdStatus);
+			real(r, RtgRow.TOTAL_FUEL, r.totalFuel);
+			real(r, RtgRow.TOTAL_DISTANCE, r.totalDistance);
+		}
+
+		private void smallint(RtgRow r, int column, short value){
+			if(!r.has(column)){
+				buf.putInt(-1);
+				return;
+			}
+			buf.putInt(2);
+			buf.putShort(value);
+		}
+
+		private void real(RtgRow r, int column, float value){
+			if(!r.has(column)){
+				buf.putInt(-1);
+				return;
+			}
+			buf.putInt(4);
+			buf.putFloat(value);
+		}
+
+		private void doublePrecision(RtgRow r, int column, double value){
+			if(!r.has(column)){
+				buf.putInt(-1);
+				return;
+			}
+			buf.putInt(8);
+			buf.putDouble(value);
+		}
+
+		/* timestamp without time zone holds local wall clock time, the same
+		 * as setTimestamp() sends */
+		private void timestamp(RtgRow r, int column, long millis){
+			if(!r.has(column)){
+				buf.putInt(-1);
+				return;
+			}
+			buf.putInt(8);
+			buf.putLong((millis + zone.getOffset(millis))*1000 - PG_EPOCH_MICROS);
+		}
+	}
+}
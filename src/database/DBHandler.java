@@ -2,11 +2,13 @@ package database;
 
 import java.sql.Connection;
 import java.sql.DriverManager;
-import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.TreeSet;
 
 import logger.LogLevel;
 import logger.Logger;
@@ -26,8 +28,32 @@ public class DBHandler {
 	private static final String ROOTUSER = "";
 	private static final String ROOTPASS = "";
 	
+	/* Connections to DB_NAME, shared by all sessions */
+	private static final ConnectionPool pool = new ConnectionPool(
+			DB_DRIVER + DB_URL + "/" + DB_NAME, USERNAME, PASSWORD);
+	
+	/* Used when no pipeline runs */
+	private static final RowWriter directWriter = new BatchInsertWriter();
+	
+	/* Daily rtg partitions made in advance, and days of data kept */
+	public static final int PARTITION_DAYS_AHEAD = 7;
+	public static final int RETENTION_DAYS = 365;
+	
+	/* Ingest modes */
+	public static final String INGEST_INSERT = "insert";
+	public static final String INGEST_COPY = "copy";
+	
+	/* Latest state of every device, for queries that need no history */
+	private static final DeviceShadow shadow = new DeviceShadow();
+	
+	/* Write-behind stage for samples, if started */
+	private static volatile IngestPipeline ingest;
+	
 	private Logger logger;
 	
+	/* Logged once that rtg needs migrating */
+	private boolean unpartitionedReported;
+	
 	public DBHandler(Logger logger){
 		this.logger = logger;
 		if(logger==null) this.logger = new Logger();
@@ -122,169 +148,318 @@ public class DBHandler {
 	}
 	
 	/**
-	 * Create DB tables.
+	 * Create DB tables. rtg is partitioned by day of timestamp_sample, with
+	 * partitions around today created right away, see 
+	 * {@link #managePartitions()}. Samples outside all partitions go to a
+	 * default partition.
 	 */
 	public void createTables(){
-		try{
-			/* Customize for your DB... */
-			Connection c = DriverManager.getConnection
-					(DB_DRIVER + DB_URL + "/" + DB_NAME, USERNAME, PASSWORD); 
-			Statement stmt = c.createStatement();
-		    
-			String makeSeq = "CREATE SEQUENCE rtg_id_seq";
-			
-			stmt.executeUpdate(makeSeq);
-			
-		    String makeTable = "CREATE TABLE rtg (" +
-		    				  "id integer NOT NULL DEFAULT " +
-		    				  		"nextval((\'\"rtg_id_seq\"\'::text) " +
-		    				  		"::regclass), " +
-		    				  "timestamp_server timestamp without time zone, " +
-		    				  "box_id character varying(15), " +
-		    				  "digital_in integer, " +
-		    				  "digital_out smallint, " +
-		    				  "main_voltage real, " +
-		    				  "liion_voltage real, " +
-		    				  "temp_1 real, " +
-		    				  "temp_2 real, " +
-		    				  "analog_1 real, " +
-		    				  "analog_2 real, " +
-		    				  "gps_lat double precision, " +
-		    				  "gps_long double precision, " +
-		    				  "gps_speed real, " +
-		    				  "gps_dir real, " +
-		    				  "gps_fix smallint, " +
-		    				  "gps_sat_info smallint, " +
-		    				  "timestamp_sample timestamp " +
-		    				  		"without time zone, " +
-		    				  "timestamp_last_valid timestamp " +
-		    				  		"without time zone, " +
-		    				  "text text, " +
-		    				  "fms_status smallint, " +
-		    				  "obd_status smallint, " +
-		    				  "total_fuel real, " +
-		    				  "total_distance real, " +
-		    				  "CONSTRAINT id_rtg_prim_key " +
-		    				  		"PRIMARY KEY (id )) " +
-		    				  "WITHOUT OIDS;";
-		    				  
-		    stmt.executeUpdate(makeTable);
-		}
-		catch(SQLException sqle){
-			logger.log(LogLevel.WARNING, 
-					"createTables: SQL exception: " + sqle.toString());
-		}
+		String makeTable = "CREATE TABLE rtg (" +
+				"id bigint GENERATED BY DEFAULT AS IDENTITY, " +
+				"timestamp_server timestamp without time zone, " +
+				"box_id character varying(15), " +
+				"digital_in integer, " +
+				"digital_out smallint, " +
+				"main_voltage real, " +
+				"liion_voltage real, " +
+				"temp_1 real, " +
+				"temp_2 real, " +
+				"analog_1 real, " +
+				"analog_2 real, " +
+				"gps_lat double precision, " +
+				"gps_long double precision, " +
+				"gps_speed real, " +
+				"gps_dir real, " +
+				"gps_fix smallint, " +
+				"gps_sat_info smallint, " +
+				"timestamp_sample timestamp " +
+					"without time zone NOT NULL, " +
+				"timestamp_last_valid timestamp " +
+					"without time zone, " +
+				"text text, " +
+				"fms_status smallint, " +
+				"obd_status smallint, " +
+				"total_fuel real, " +
+				"total_distance real, " +
+				/* Must include the partition key */
+				"CONSTRAINT id_rtg_prim_key " +
+					"PRIMARY KEY (id, timestamp_sample)) " +
+				"PARTITION BY RANGE (timestamp_sample)";
+		
+		/* Created on every partition. BRIN stays tiny as rows arrive
+		 * roughly in time order */
+		String[] makeIndexes = {
+				"CREATE INDEX rtg_sample_brin ON rtg " +
+					"USING brin (timestamp_sample)",
+				"CREATE INDEX rtg_server_brin ON rtg " +
+					"USING brin (timestamp_server)",
+				"CREATE INDEX rtg_box_sample ON rtg (box_id, timestamp_sample)"
+		};
+		
+		String makeDefault = "CREATE TABLE rtg_default PARTITION OF rtg DEFAULT";
+		
+		/* Customize for your DB... */
+		if(execute("createTables", makeTable, makeIndexes[0], makeIndexes[1], 
+				makeIndexes[2], makeDefault))
+			managePartitions();
 	}
 	
 	/**
-	 * Clear DB.
+	 * Creates the daily rtg partitions from yesterday to PARTITION_DAYS_AHEAD
+	 * days ahead, and detaches and drops those past RETENTION_DAYS.
 	 */
-	public void dropTables(){
-		/* Customize for your DB... */
-		dropTable("rtg");
-		dropSequence("rtg_id_seq");
+	public void managePartitions(){
+		managePartitions(PARTITION_DAYS_AHEAD, RETENTION_DAYS);
 	}
 	
 	/**
-	 * Drops a single table.
-	 * @param tableName Name of table to be dropped.
+	 * Creates the daily rtg partitions from yesterday to daysAhead days ahead,
+	 * and detaches and drops those older than retentionDays. Rows that went
+	 * to the default partition for want of their own, such as samples a
+	 * unit kept while offline, are moved into partitions created for their
+	 * days, or deleted once older than retentionDays. Each partition is
+	 * handled on its own, so one failing doesn't hold up the rest.
+	 * @param daysAhead Days to create partitions for in advance.
+	 * @param retentionDays Days to keep, 0 to keep everything.
 	 */
-	public void dropTable(String tableName){
-		Connection c = null;
-		Statement s = null;
+	public void managePartitions(int daysAhead, int retentionDays){
+		PooledConnection pc = null;
+		boolean missing = false;
 		try{
-			/* Customize for your DB... */
-			c = DriverManager.getConnection
-					(DB_DRIVER + DB_URL + "/" + DB_NAME, USERNAME, PASSWORD); 
-			s = c.createStatement();
-		    
-		    String sql = "DROP TABLE " + tableName;
-		    s.executeUpdate(sql);
+			pc = pool.acquire();
+			Statement s = pc.createStatement();
+			try{
+				missing = !exists(s, "SELECT to_regclass('rtg')");
+				if(!missing && isPartitioned(s))
+					managePartitions(pc, s, daysAhead, retentionDays);
+			}
+			finally{
+				closeQuietly(s);
+			}
+			pool.release(pc);
 		}
 		catch(SQLException sqle){
 			logger.log(LogLevel.WARNING,
-					"dropTable: SQL exception: " + sqle.toString());
+					"managePartitions: SQL exception: %s", sqle);
+			if(pc != null) pool.release(pc, sqle);
+			return;
 		}
-		if(s != null) try{
-			s.close();
+		if(missing){
+			logger.log(LogLevel.INFO, "rtg does not exist, creating it.");
+			createTables();
 		}
-		catch(SQLException sqle){
-			// Swallow...
+	}
+	
+	/* Does the work of managePartitions() on a partitioned rtg */
+	private void managePartitions(PooledConnection pc, Statement s, 
+			int daysAhead, int retentionDays) throws SQLException {
+		LocalDate today = LocalDate.now();
+		LocalDate cutoff = retentionDays > 0 ? today.minusDays(retentionDays) : null;
+		boolean hasDefault = exists(s, "SELECT to_regclass('rtg_default')");
+		
+		TreeSet<LocalDate> days = new TreeSet<LocalDate>();
+		for(int d=-1;d<=daysAhead;d++) days.add(today.plusDays(d));
+		if(hasDefault){
+			ResultSet rs = s.executeQuery("SELECT DISTINCT " +
+					"timestamp_sample::date FROM rtg_default" + (cutoff == null ?
+					"" : " WHERE timestamp_sample >= '" + cutoff + "'"));
+			while(rs.next()){
+				LocalDate day = rs.getDate(1).toLocalDate();
+				if(!day.isAfter(today.plusDays(daysAhead))) days.add(day);
+			}
+			rs.close();
 		}
-		if(s != null) try{
-			s.close();
+		for(LocalDate day : days){
+			if(exists(s, "SELECT to_regclass('" + partitionName(day) + "')"))
+				continue;
+			try{
+				createPartition(pc, s, day, hasDefault);
+			}
+			catch(SQLException sqle){
+				if(ConnectionPool.isConnectionError(sqle)) throw sqle;
+				logger.log(LogLevel.WARNING, "managePartitions: cannot " +
+						"create %s: %s", partitionName(day), sqle);
+			}
 		}
-		catch(SQLException sqle){
-			// Swallow...
+		
+		if(cutoff != null){
+			String cutoffName = partitionName(cutoff);
+			ArrayList<String> expired = new ArrayList<String>();
+			ResultSet rs = s.executeQuery("SELECT c.relname " +
+					"FROM pg_inherits i " +
+					"JOIN pg_class c ON c.oid = i.inhrelid " +
+					"JOIN pg_class p ON p.oid = i.inhparent " +
+					"WHERE p.relname = 'rtg'");
+			while(rs.next()){
+				String name = rs.getString(1);
+				/* Same length names compare like their dates */
+				if(name.matches("rtg_p\\d{8}") && name.compareTo(cutoffName) < 0)
+					expired.add(name);
+			}
+			rs.close();
+			for(String name : expired){
+				try{
+					s.executeUpdate("ALTER TABLE rtg DETACH PARTITION " + name);
+					s.executeUpdate("DROP TABLE " + name);
+					logger.log(LogLevel.INFO, "Dropped expired partition " + 
+							"%s.", name);
+				}
+				catch(SQLException sqle){
+					if(ConnectionPool.isConnectionError(sqle)) throw sqle;
+					logger.log(LogLevel.WARNING, "managePartitions: cannot " +
+							"drop %s: %s", name, sqle);
+				}
+			}
+			if(hasDefault){
+				int deleted = s.executeUpdate("DELETE FROM rtg_default " + 
+						"WHERE timestamp_sample < '" + cutoff + "'");
+				if(deleted > 0)
+					logger.log(LogLevel.INFO, "Deleted %d expired rows from " +
+							"rtg_default.", deleted);
+			}
 		}
 	}
 	
-	/**
-	 * Drops a single sequence.
-	 * @param seqName Name of sequence to be dropped.
-	 */
-	public void dropSequence(String seqName){
-		Connection c = null;
-		Statement s = null;
+	/* Checks that the existing rtg is partitioned, complaining once if it
+	 * is a plain table from before partitioning */
+	private boolean isPartitioned(Statement s) throws SQLException {
+		ResultSet rs = s.executeQuery(
+				"SELECT relkind FROM pg_class WHERE oid = to_regclass('rtg')");
+		String kind = rs.next() ? rs.getString(1) : null;
+		rs.close();
+		if("p".equals(kind)) return true;
+		if(!unpartitionedReported){
+			unpartitionedReported = true;
+			logger.log(LogLevel.WARNING, "rtg is not partitioned, so daily " +
+					"partitions and retention are off. To migrate, rename it " +
+					"and its primary key, restart and copy the rows over, " +
+					"see README.");
+		}
+		return false;
+	}
+	
+	/* Creates a day's partition. If the default partition holds rows of the
+	 * day, the partition can't be added over it, so it is detached while
+	 * the rows are moved, all in one transaction */
+	private void createPartition(PooledConnection pc, Statement s, 
+			LocalDate day, boolean hasDefault) throws SQLException {
+		String name = partitionName(day);
+		String create = "CREATE TABLE " + name + " PARTITION OF rtg " + 
+				"FOR VALUES FROM ('" + day + "') TO ('" + day.plusDays(1) + "')";
+		String range = "timestamp_sample >= '" + day + "' AND " +
+				"timestamp_sample < '" + day.plusDays(1) + "'";
+		if(!hasDefault || !exists(s, "SELECT 1 FROM rtg_default WHERE " + 
+				range + " LIMIT 1")){
+			s.executeUpdate(create);
+			return;
+		}
+		Connection c = pc.getConnection();
+		c.setAutoCommit(false);
 		try{
-			/* Customize for your DB... */
-			c = DriverManager.getConnection
-					(DB_DRIVER + DB_URL + "/" + DB_NAME, USERNAME, PASSWORD); 
-			s = c.createStatement();
-		    
-		    String sql = "DROP SEQUENCE " + seqName;
-		    s.executeUpdate(sql);
+			s.executeUpdate("ALTER TABLE rtg DETACH PARTITION rtg_default");
+			s.executeUpdate(create);
+			int moved = s.executeUpdate("WITH moved AS (DELETE FROM " + 
+					"rtg_default WHERE " + range + " RETURNING *) " +
+					"INSERT INTO " + name + " SELECT * FROM moved");
+			s.executeUpdate("ALTER TABLE rtg ATTACH PARTITION rtg_default DEFAULT");
+			c.commit();
+			logger.log(LogLevel.INFO, "Moved %d rows from rtg_default to %s.", 
+					moved, name);
 		}
 		catch(SQLException sqle){
-			logger.log(LogLevel.WARNING,
-					"dropSequence: SQL exception: " + sqle.toString());
-		}
-		if(s != null) try{
-			s.close();
+			try{
+				c.rollback();
+			}
+			catch(SQLException rbe){
+				// Swallow, the original cause is more useful
+			}
+			throw sqle;
 		}
-		catch(SQLException sqle){
-			// Swallow...
+		finally{
+			c.setAutoCommit(true);
 		}
-		if(s != null) try{
-			s.close();
+	}
+	
+	/* Runs a query, true if its first row has a non-NULL first column */
+	private static boolean exists(Statement s, String query) throws SQLException {
+		ResultSet rs = s.executeQuery(query);
+		try{
+			return rs.next() && rs.getObject(1) != null;
 		}
-		catch(SQLException sqle){
-			// Swallow...
+		finally{
+			rs.close();
 		}
 	}
 	
+	private static String partitionName(LocalDate day){
+		return String.format("rtg_p%04d%02d%02d", day.getYear(), 
+				day.getMonthValue(), day.getDayOfMonth());
+	}
+	
+	/**
+	 * Clear DB.
+	 */
+	public void dropTables(){
+		/* Customize for your DB... */
+		dropTable("rtg");
+	}
+	
+	/**
+	 * Drops a single table.
+	 * @param tableName Name of table to be dropped.
+	 */
+	public void dropTable(String tableName){
+		execute("dropTable", "DROP TABLE " + tableName);
+	}
+	
+	/**
+	 * Drops a single sequence.
+	 * @param seqName Name of sequence to be dropped.
+	 */
+	public void dropSequence(String seqName){
+		execute("dropSequence", "DROP SEQUENCE " + seqName);
+	}
+	
 	/**
 	 * Clears all DB entries.
 	 */
 	public void clearDB(){
-		Connection c = null;
-		Statement s = null;
+		/* Customize for your DB... */
+		execute("clearDB", "DELETE FROM rtg", "DELETE from units", 
+				"DELETE from sqllist");
+	}
+	
+	/**
+	 * Runs updates in order on a pooled connection, stopping at the first
+	 * that fails.
+	 * @param caller Name to log errors under.
+	 * @param sqls Updates to run.
+	 * @return True if all of them ran.
+	 */
+	private boolean execute(String caller, String... sqls){
+		PooledConnection pc = null;
 		try{
-			/* Customize for your DB... */
-			c = DriverManager.getConnection
-					(DB_DRIVER + DB_URL + "/" + DB_NAME, USERNAME, PASSWORD); 
-			s = c.createStatement();
-		    
-			String sql = "DELETE FROM rtg";
-			s.executeUpdate(sql);
-			
-			sql = "DELETE from units";
-			s.executeUpdate(sql);
-			
-			sql = "DELETE from sqllist";
-			s.executeUpdate(sql);
-		}
-		catch(SQLException sqle){
-			logger.log(LogLevel.WARNING,
-					"clearDB: SQL exception: " + sqle.toString());
-		}
-		if(s != null) try{
-			s.close();
+			pc = pool.acquire();
+			Statement s = pc.createStatement();
+			try{
+				for(String sql : sqls) s.executeUpdate(sql);
+			}
+			finally{
+				closeQuietly(s);
+			}
+			pool.release(pc);
+			return true;
 		}
 		catch(SQLException sqle){
-			// Swallow...
+			logger.log(LogLevel.WARNING, "%s: SQL exception: %s", caller, sqle);
+			if(pc != null) pool.release(pc, sqle);
+			return false;
 		}
-		if(s != null) try{
+	}
+	
+	/* Closes a statement before its connection goes back to the pool */
+	private static void closeQuietly(Statement s){
+		try{
 			s.close();
 		}
 		catch(SQLException sqle){
@@ -296,121 +471,157 @@ public class DBHandler {
 	 * Test function.
 	 */
 	public void printDB(){
-		Connection c = null;
-		Statement s = null;
-		ResultSet rs = null;
+		PooledConnection pc = null;
 		try{
-			/* Customize for your DB... */
-			c = DriverManager.getConnection
-					(DB_DRIVER + DB_URL + "/" + DB_NAME, USERNAME, PASSWORD); 
-			s = c.createStatement();
-			rs = s.executeQuery( "SELECT * FROM rtg") ;
-			while(rs.next()){
-				System.out.println("*** DB CONTENT: " + rs.getString("box_id"));
+			pc = pool.acquire();
+			Statement s = pc.createStatement();
+			try{
+				/* Closing the statement closes its result set */
+				ResultSet rs = s.executeQuery( "SELECT * FROM rtg") ;
+				while(rs.next()){
+					System.out.println("*** DB CONTENT: " + rs.getString("box_id"));
+				}
+			}
+			finally{
+				closeQuietly(s);
 			}
+			pool.release(pc);
 		}
 		catch(SQLException sqle){
 			logger.log(LogLevel.WARNING,
 					"printDB: SQL exception: " + sqle.toString());
-		}
-		finally{
-			if(rs != null) try{
-				rs.close();
-			}
-			catch(SQLException sqle){
-				// Swallow...
-			}
-			if(s != null) try{
-				s.close();
-			}
-			catch(SQLException sqle){
-				// Swallow...
-			}
-			if(c != null) try{
-				c.close();
-			}
-			catch(SQLException sqle){
-				// Swallow...
-			}
+			if(pc != null) pool.release(pc, sqle);
 		}
 	}
 	
 	/**
-	 * Test function.
+	 * Test function. Writes a row of only a box_id, stamped with the
+	 * current time, which rtg needs as sample time.
 	 * @param data Data to insert in db.
 	 */
 	public void insertTestData(String data){
-		Connection c = null;
-		PreparedStatement ps = null;
+		RtgRow row = new RtgRow();
+		row.setBoxId(data);
+		row.stamp(System.currentTimeMillis());
+		PooledConnection pc = null;
 		try{
-			c = DriverManager.getConnection
-					(DB_DRIVER + DB_URL + "/" + DB_NAME, USERNAME, PASSWORD); 
-			String prepSQL = "INSERT INTO rtg (box_id) " +
-					"VALUES (?)";
-			ps = c.prepareStatement(prepSQL);
-			ps.setString(1, data);
-			ps.executeUpdate();
+			pc = pool.acquire();
+			directWriter.write(pc, new RtgRow[]{ row }, 1);
+			pool.release(pc);
 		}	
 		catch(SQLException sqle){
 			logger.log(LogLevel.WARNING,
 					"insertTestData: SQL exception: " + sqle.toString());
-		}
-		finally{
-			if(ps != null) try{
-				ps.close();
-			}
-			catch(SQLException sqle){
-				// Swallow...
-			}
-			if(c != null) try{
-				c.close();
-			}
-			catch(SQLException sqle){
-				// Swallow...
-			}
+			if(pc != null) pool.release(pc, sqle);
 		}
 	}
 	
-	public static synchronized void insertGpsData(String box_id, float latitude, float longitude,
-			float speed, float direction, short fix, short sat, 
-			Timestamp timestampSample){
-		Connection c = null;
-		PreparedStatement ps = null;
+	/**
+	 * Starts writing samples in the background. Until then, and after
+	 * {@link #stopIngest()}, samples are written by the submitting thread.
+	 * @param mode INGEST_COPY to stream batches with binary COPY, falling
+	 * back to inserts on error, or INGEST_INSERT for batched inserts only.
+	 * @param writers Number of writer threads.
+	 * @param capacity Most rows queued.
+	 * @param batchSize Most rows per batch.
+	 * @param lingerMillis Longest time a row waits for its batch to fill.
+	 * @param assemblyMillis Readings of a device this close together in a
+	 * batch are written as one row, 0 to write each as it is.
+	 * @param spool Opened spool to keep samples in until the DB has them, 
+	 * or null to queue them in memory only.
+	 */
+	public void startIngest(String mode, int writers, int capacity, 
+			int batchSize, long lingerMillis, long assemblyMillis, Spool spool){
+		RowWriter writer = directWriter;
+		if(INGEST_COPY.equals(mode)) writer = new CopyWriter(directWriter, logger);
+		else if(!INGEST_INSERT.equals(mode))
+			logger.log(LogLevel.WARNING, "Unknown ingest mode %s, using %s.",
+					mode, INGEST_INSERT);
+		IngestPipeline pipeline = new IngestPipeline(pool, writer, 
+				writers, capacity, batchSize, lingerMillis, assemblyMillis, spool, 
+				logger);
+		pipeline.start();
+		ingest = pipeline;
+	}
+	
+	/**
+	 * Stops the background writers once the queued samples are written.
+	 */
+	public void stopIngest(){
+		IngestPipeline pipeline = ingest;
+		ingest = null;
+		if(pipeline != null) pipeline.shutdown();
+	}
+	
+	/**
+	 * Returns the write-behind stage.
+	 * @return The pipeline, or null if not started.
+	 */
+	public static IngestPipeline getIngest(){
+		return ingest;
+	}
+	
+	/**
+	 * Checks if sessions should hold off reading until the writers catch
+	 * up.
+	 * @return True if the pipeline is saturated.
+	 */
+	public static boolean isIngestSaturated(){
+		IngestPipeline pipeline = ingest;
+		return pipeline != null && pipeline.isSaturated();
+	}
+	
+	/**
+	 * Stores a row. Queued if the pipeline runs, in which case this never
+	 * waits on the DB, else written right away.
+	 * @param row Row, which must not be touched afterwards.
+	 * @return False if the row was dropped.
+	 */
+	public static boolean submit(RtgRow row){
+		IngestPipeline pipeline = ingest;
+		if(pipeline != null) return pipeline.submit(row);
+		
+		row.stamp(System.currentTimeMillis());
+		PooledConnection pc = null;
 		try{
-			c = DriverManager.getConnection
-					(DB_DRIVER + DB_URL + "/" + DB_NAME, USERNAME, PASSWORD); 
-			String prepSQL = "INSERT INTO rtg (box_id, " +
-					"gps_lat, gps_long, gps_speed, " +
-					"gps_dir, gps_fix, gps_sat_info, " +
-					"timestamp_sample) " +
-					"VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
-			ps = c.prepareStatement(prepSQL);
-			ps.setString(1, box_id);
-			ps.setFloat(2,  latitude);
-			ps.setFloat(3, longitude);
-			ps.setFloat(4, speed);
-			ps.setFloat(5, direction);
-			ps.setShort(6, fix);
-			ps.setShort(7, sat);
-			ps.setTimestamp(8, timestampSample);
-			ps.executeUpdate();
+			pc = pool.acquire();
+			directWriter.write(pc, new RtgRow[]{ row }, 1);
+			pool.release(pc);
+			return true;
 		}	
 		catch(SQLException sqle){
-			System.err.println("insertGpsData: SQL exception: " + sqle.toString());
-		}
-		finally{
-			if(ps != null) try{
-				ps.close();
-			}
-			catch(SQLException sqle){
-				// Swallow...
-			}
-			if(c != null) try{
-				c.close();
-			}
-			catch(SQLException sqle){
-				// Swallow...
-			}
+			System.err.println("submit: SQL exception: " + sqle.toString());
+			if(pc != null) pool.release(pc, sqle);
+			return false;
 		}
 	}
+	
+	/**
+	 * Stores a GPS sample, see {@link #submit(RtgRow)}.
+	 */
+	public static boolean insertGpsData(String box_id, float latitude, 
+			float longitude, float speed, float direction, short fix, short sat, 
+			Timestamp timestampSample){
+		RtgRow row = new RtgRow();
+		row.setBoxId(box_id);
+		row.setGps(latitude, longitude, speed, direction, fix, sat);
+		row.setTimestampSample(timestampSample.getTime());
+		return submit(row);
+	}
+	
+	/**
+	 * Returns the latest known state of all devices.
+	 * @return Device shadow.
+	 */
+	public static DeviceShadow getShadow(){
+		return shadow;
+	}
+	
+	/**
+	 * Returns the pool the DB operations share, e.g. for monitoring.
+	 * @return Connection pool.
+	 */
+	public static ConnectionPool getPool(){
+		return pool;
+	}
 }
\ No newline at end of file
@@ -0,0 +1,282 @@
+package database;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Latest known state of every device, kept in memory so that "where is
+ * everything now" never touches the DB. Each device gets a fixed slot of
+ * primitive fields on first sight; rows are merged into it column by
+ * column.
+ * <p>
+ * Slots are guarded by sequence locks: writers make the sequence odd while
+ * updating, readers retry until they see the same even sequence before and
+ * after reading. Reads take no lock and create no objects.
+ * @author jay
+ *
+ */
+public class DeviceShadow {
+
+	public static final int DEFAULT_MAX_DEVICES = 64*1024;
+
+	/* Longs per slot, two cache lines */
+	private static final int STRIDE = 16;
+
+	/* Slot layout. Floats and shorts are packed two and four to a long */
+	private static final int SEQ = 0;
+	private static final int COLUMNS = 1;
+	private static final int TIMESTAMP_SERVER = 2;
+	private static final int TIMESTAMP_SAMPLE = 3;
+	private static final int GPS_LAT = 4;
+	private static final int GPS_LONG = 5;
+	private static final int GPS_SPEED_DIR = 6;
+	private static final int GPS_FIX_SATS_DIGITAL_OUT = 7;
+	private static final int DIGITAL_IN = 8;
+	private static final int VOLTAGES = 9;
+	private static final int TEMPS = 10;
+	private static final int ANALOGS = 11;
+
+	/* Columns kept */
+	private static final int KEPT = RtgRow.TIMESTAMP_SERVER | RtgRow.BOX_ID
+			| RtgRow.TIMESTAMP_SAMPLE | RtgRow.GPS_LAT | RtgRow.GPS_LONG
+			| RtgRow.GPS_SPEED | RtgRow.GPS_DIR | RtgRow.GPS_FIX
+			| RtgRow.GPS_SAT_INFO | RtgRow.DIGITAL_IN | RtgRow.DIGITAL_OUT
+			| RtgRow.MAIN_VOLTAGE | RtgRow.LIION_VOLTAGE | RtgRow.TEMP_1
+			| RtgRow.TEMP_2 | RtgRow.ANALOG_1 | RtgRow.ANALOG_2;
+
+	private int maxDevices;
+	private AtomicLongArray slots;
+	private AtomicReferenceArray<String> boxIds;
+	private ConcurrentHashMap<String, Integer> index;
+	private AtomicInteger deviceCount;
+
+	public DeviceShadow(){
+		this(DEFAULT_MAX_DEVICES);
+	}
+
+	/**
+	 * Create a shadow.
+	 * @param maxDevices Number of slots, allocated up front.
+	 */
+	public DeviceShadow(int maxDevices){
+		this.maxDevices = maxDevices;
+		this.slots = new AtomicLongArray(maxDevices*STRIDE);
+		this.boxIds = new AtomicReferenceArray<String>(maxDevices);
+		this.index = new ConcurrentHashMap<String, Integer>();
+		this.deviceCount = new AtomicInteger(0);
+	}
+
+	/**
+	 * Finds the slot of a device.
+	 * @param boxId Device.
+	 * @return Slot, or -1 if the device has not been seen.
+	 */
+	public int slotOf(String boxId){
+		Integer slot = index.get(boxId);
+		return slot == null ? -1 : slot;
+	}
+
+	/* Finds or assigns a slot, -1 if all are taken */
+	private int assign(String boxId){
+		Integer slot = index.get(boxId);
+		if(slot != null) return slot;
+		synchronized(index){
+			slot = index.get(boxId);
+			if(slot != null) return slot;
+			int next = deviceCount.get();
+			if(next >= maxDevices) return -1;
+			boxIds.set(next, boxId);
+			index.put(boxId, next);
+			/* Readers only look at slots below the count */
+			deviceCount.set(next + 1);
+			return next;
+		}
+	}
+
+	/**
+	 * Merges the columns set in a row into its device's state, unless the
+	 * state is from a later sample already.
+	 * @param row Row with box_id set.
+	 * @return False if the row is older, has no box_id or there is no slot
+	 * left.
+	 */
+	public boolean update(RtgRow row){
+		if(!row.has(RtgRow.BOX_ID)) return false;
+		int slot = assign(row.boxId);
+		if(slot < 0) return false;
+		int base = slot*STRIDE;
+
+		long seq = lockSlot(base);
+		try{
+			long known = slots.get(base + COLUMNS);
+			if(row.has(RtgRow.TIMESTAMP_SAMPLE)){
+				if((known & RtgRow.TIMESTAMP_SAMPLE) != 0
+						&& row.timestampSample < slots.get(base + TIMESTAMP_SAMPLE))
+					return false;
+				slots.set(base + TIMESTAMP_SAMPLE, row.timestampSample);
+			}
+			slots.set(base + TIMESTAMP_SERVER, row.has(RtgRow.TIMESTAMP_SERVER) ?
+					row.timestampServer : System.currentTimeMillis());
+			if(row.has(RtgRow.GPS_LAT))
+				slots.set(base + GPS_LAT, Double.doubleToRawLongBits(row.gpsLat));
+			if(row.has(RtgRow.GPS_LONG))
+				slots.set(base + GPS_LONG, Double.doubleToRawLongBits(row.gpsLong));
+			if(row.has(RtgRow.GPS_SPEED | RtgRow.GPS_DIR))
+				slots.set(base + GPS_SPEED_DIR, merge(slots.get(base + GPS_SPEED_DIR),
+						row, RtgRow.GPS_SPEED, row.gpsSpeed, RtgRow.GPS_DIR, row.gpsDir));
+			if(row.has(RtgRow.GPS_FIX | RtgRow.GPS_SAT_INFO | RtgRow.DIGITAL_OUT)){
+				long packed = slots.get(base + GPS_FIX_SATS_DIGITAL_OUT);
+				if(row.has(RtgRow.GPS_FIX)) packed = setShort(packed, 0, row.gpsFix);
+				if(row.has(RtgRow.GPS_SAT_INFO))
+					packed = setShort(packed, 1, row.gpsSatInfo);
+				if(row.has(RtgRow.DIGITAL_OUT))
+					packed = setShort(packed, 2, row.digitalOut);
+				slots.set(base + GPS_FIX_SATS_DIGITAL_OUT, packed);
+			}
+			if(row.has(RtgRow.DIGITAL_IN))
+				slots.set(base + DIGITAL_IN, row.digitalIn);
+			if(row.has(RtgRow.MAIN_VOLTAGE | RtgRow.LIION_VOLTAGE))
+				slots.set(base + VOLTAGES, merge(slots.get(base + VOLTAGES), row,
+						RtgRow.MAIN_VOLTAGE, row.mainVoltage,
+						RtgRow.LIION_VOLTAGE, row.liionVoltage));
+			if(row.has(RtgRow.TEMP_1 | RtgRow.TEMP_2))
+				slots.set(base + TEMPS, merge(slots.get(base + TEMPS), row,
+						RtgRow.TEMP_1, row.temp1, RtgRow.TEMP_2, row.temp2));
+			if(row.has(RtgRow.ANALOG_1 | RtgRow.ANALOG_2))
+				slots.set(base + ANALOGS, merge(slots.get(base + ANALOGS), row,
+						RtgRow.ANALOG_1, row.analog1, RtgRow.ANALOG_2, row.analog2));
+			slots.set(base + COLUMNS, known | (row.columns & KEPT)
+					| RtgRow.TIMESTAMP_SERVER);
+			return true;
+		}
+		finally{
+			slots.set(base + SEQ, seq + 2);
+		}
+	}
+
+	/* Makes the sequence odd, waiting out a concurrent writer. Returns the
+	 * even sequence it started from */
+	private long lockSlot(int base){
+		while(true){
+			long seq = slots.get(base + SEQ);
+			if((seq & 1) == 0 && slots.compareAndSet(base + SEQ, seq, seq + 1))
+				return seq;
+			Thread.yield();
+		}
+	}
+
+	/**
+	 * Reads the state of a device. Never blocks writers.
+	 * @param slot Slot, below getDeviceCount().
+	 * @param row Row to fill; cleared first.
+	 * @return False if the slot is not in use.
+	 */
+	public boolean read(int slot, RtgRow row){
+		if(slot < 0 || slot >= deviceCount.get()) return false;
+		int base = slot*STRIDE;
+		while(true){
+			long seq = slots.get(base + SEQ);
+			if((seq & 1) != 0){
+				Thread.yield();
+				continue;
+			}
+			long columns = slots.get(base + COLUMNS);
+			long server = slots.get(base + TIMESTAMP_SERVER);
+			long sample = slots.get(base + TIMESTAMP_SAMPLE);
+			long lat = slots.get(base + GPS_LAT);
+			long lon = slots.get(base + GPS_LONG);
+			long speedDir = slots.get(base + GPS_SPEED_DIR);
+			long shorts = slots.get(base + GPS_FIX_SATS_DIGITAL_OUT);
+			long digitalIn = slots.get(base + DIGITAL_IN);
+			long voltages = slots.get(base + VOLTAGES);
+			long temps = slots.get(base + TEMPS);
+			long analogs = slots.get(base + ANALOGS);
+			if(slots.get(base + SEQ) != seq) continue;
+
+			row.clear();
+			row.columns = (int) columns | RtgRow.BOX_ID;
+			row.boxId = boxIds.get(slot);
+			row.timestampServer = server;
+			row.timestampSample = sample;
+			row.gpsLat = Double.longBitsToDouble(lat);
+			row.gpsLong = Double.longBitsToDouble(lon);
+			row.gpsSpeed = high(speedDir);
+			row.gpsDir = low(speedDir);
+			row.gpsFix = getShort(shorts, 0);
+			row.gpsSatInfo = getShort(shorts, 1);
+			row.digitalOut = getShort(shorts, 2);
+			row.digitalIn = (int) digitalIn;
+			row.mainVoltage = high(voltages);
+			row.liionVoltage = low(voltages);
+			row.temp1 = high(temps);
+			row.temp2 = low(temps);
+			row.analog1 = high(analogs);
+			row.analog2 = low(analogs);
+			return true;
+		}
+	}
+
+	/**
+	 * Reads the state of a device.
+	 * @param boxId Device.
+	 * @param row Row to fill.
+	 * @return False if the device has not been seen.
+	 */
+	public boolean read(String boxId, RtgRow row){
+		return read(slotOf(boxId), row);
+	}
+
+	/**
+	 * Number of devices seen, and so of slots in use from 0.
+	 * @return Device count.
+	 */
+	public int getDeviceCount(){
+		return deviceCount.get();
+	}
+
+	public String getBoxId(int slot){
+		return boxIds.get(slot);
+	}
+
+	public int getMaxDevices(){
+		return maxDevices;
+	}
+
+	@Override
+	public String toString(){
+		return "DeviceShadow: " + getDeviceCount() + "/" + maxDevices + 
+				" devices";
+	}
+
+	/* Packing */
+
+	private static long merge(long packed, RtgRow row, int highColumn,
+			float high, int lowColumn, float low){
+		if(row.has(highColumn))
+			packed = (packed & 0xFFFFFFFFL)
+				| ((long) Float.floatToRawIntBits(high) << 32);
+		if(row.has(lowColumn))
+			packed = (packed & 0xFFFFFFFF00000000L)
+				| (Float.floatToRawIntBits(low) & 0xFFFFFFFFL);
+		return packed;
+	}
+
+	private static float high(long packed){
+		return Float.intBitsToFloat((int) (packed >>> 32));
+	}
+
+	private static float low(long packed){
+		return Float.intBitsToFloat((int) packed);
+	}
+
+	private static long setShort(long packed, int index, short value){
+		int shift = index*16;
+		return (packed & ~(0xFFFFL << shift)) | ((value & 0xFFFFL) << shift);
+	}
+
+	private static short getShort(long packed, int index){
+		return (short) (packed >>> (index*16));
+	}
+}
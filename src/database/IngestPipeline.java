@@ -0,0 +1,386 @@
+package database;
+
+import java.sql.SQLException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import logger.LogLevel;
+import logger.Logger;
+import utils.BoundedQueue;
+
+/**
+ * Write-behind stage between the sessions and the DB. Sessions submit rows
+ * to a bounded lock-free queue and never wait; writer threads drain it in
+ * batches of up to batchSize rows, waiting at most lingerMillis for a batch
+ * to fill. Each batch is merged by a {@link RowAssembler} before writing,
+ * so sessions can submit every reading as a row of its own. Writers with
+ * nothing to write sleep until a row is submitted.
+ * <p>
+ * With a {@link Spool}, rows are appended to it instead and a single writer
+ * replays it from the committed offset, whatever the writer count. That
+ * writer also maps the spool's next segments and forces it to disk.
+ * A batch the DB rejects for its data (SQLSTATE classes 22 and 23) is
+ * written again in halves until the rejected row is found, which is
+ * skipped with a warning. Any other failure, such as the DB being down,
+ * shutting down, out of connections or in a serialization conflict, is
+ * retried with backoff until it succeeds, so no row is lost to it.
+ * <p>
+ * When the queue or spool is three quarters full the pipeline reports
+ * itself saturated, until it has drained to half, so that sessions can stop
+ * reading. Rows submitted to a full queue are dropped and counted.
+ * @author jay
+ *
+ */
+public class IngestPipeline {
+
+	public static final int DEFAULT_WRITERS = 2;
+	public static final int DEFAULT_CAPACITY = 64*1024;
+	public static final int DEFAULT_BATCH_SIZE = 500;
+	public static final long DEFAULT_LINGER = 50;
+
+	/* Longest a spool writer waiting to retry goes without preparing and
+	 * syncing the spool */
+	private static final long SPOOL_UPKEEP_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+	/* Wait before retrying a spooled batch, doubled up to the max */
+	private static final long RETRY_DELAY = 100;
+	private static final long MAX_RETRY_DELAY = 10*1000;
+
+	private ConnectionPool pool;
+	private RowWriter writer;
+	private Logger logger;
+	private int batchSize;
+	private long lingerNanos;
+	private long assemblyWindow;
+
+	private BoundedQueue<RtgRow> queue;
+	private Spool spool;
+	private long highWatermark;
+	private long lowWatermark;
+	private volatile boolean saturated;
+
+	private Thread[] writers;
+	private volatile boolean running;
+
+	/* Writers asleep until a row is submitted */
+	private ConcurrentLinkedQueue<Thread> idleWriters;
+
+	/* Metrics */
+	private AtomicLong submitted;
+	private AtomicLong dropped;
+	private AtomicLong written;
+	private AtomicLong failed;
+	private AtomicLong batches;
+
+	/**
+	 * Create a pipeline with default settings.
+	 * @param pool Connections to write on.
+	 * @param writer How to write a batch.
+	 * @param logger Logger to use.
+	 */
+	public IngestPipeline(ConnectionPool pool, RowWriter writer, Logger logger){
+		this(pool, writer, DEFAULT_WRITERS, DEFAULT_CAPACITY, DEFAULT_BATCH_SIZE,
+				DEFAULT_LINGER, RowAssembler.DEFAULT_WINDOW, null, logger);
+	}
+
+	/**
+	 * Create a pipeline.
+	 * @param pool Connections to write on.
+	 * @param writer How to write a batch.
+	 * @param writerCount Number of writer threads.
+	 * @param capacity Most rows queued.
+	 * @param batchSize Most rows per batch.
+	 * @param lingerMillis Longest time a row waits for its batch to fill.
+	 * @param assemblyMillis Readings of a device this close together in a
+	 * batch are written as one row, 0 to write each as it is.
+	 * @param spool Opened spool to go through, or null to queue in memory.
+	 * Overrides capacity and uses one writer.
+	 * @param logger Logger to use.
+	 */
+	public IngestPipeline(ConnectionPool pool, RowWriter writer,
+			int writerCount, int capacity, int batchSize, long lingerMillis,
+			long assemblyMillis, Spool spool, Logger logger){
+		this.pool = pool;
+		this.writer = writer;
+		this.logger = logger;
+		this.batchSize = Math.max(1, batchSize);
+		this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+		this.assemblyWindow = assemblyMillis;
+		this.spool = spool;
+		if(spool == null){
+			this.queue = new BoundedQueue<RtgRow>(capacity);
+			this.highWatermark = queue.capacity()*3/4;
+			this.lowWatermark = queue.capacity()/2;
+		}
+		else{
+			this.highWatermark = spool.getMaxRecords()*3/4;
+			this.lowWatermark = spool.getMaxRecords()/2;
+			writerCount = 1;
+		}
+		this.saturated = false;
+		this.writers = new Thread[Math.max(1, writerCount)];
+		this.idleWriters = new ConcurrentLinkedQueue<Thread>();
+		this.submitted = new AtomicLong(0);
+		this.dropped = new AtomicLong(0);
+		this.written = new AtomicLong(0);
+		this.failed = new AtomicLong(0);
+		this.batches = new AtomicLong(0);
+	}
+
+	/**
+	 * Starts the writer threads.
+	 */
+	public void start(){
+		running = true;
+		for(int i=0;i<writers.length;i++){
+			writers[i] = new Thread(new Runnable(){
+				public void run(){
+					if(spool != null) drainSpool();
+					else drain();
+				}
+			}, "IngestWriter #" + i);
+			writers[i].start();
+		}
+	}
+
+	/**
+	 * Stops the writers once everything queued is written.
+	 */
+	public void shutdown(){
+		running = false;
+		for(Thread t : writers){
+			if(t == null) continue;
+			LockSupport.unpark(t);
+			try{
+				t.join();
+			}
+			catch(InterruptedException ie){
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Queues a row for writing. Never blocks.
+	 * @param row Row, which must not be touched afterwards.
+	 * @return False if the queue or spool was full and the row dropped.
+	 */
+	public boolean submit(RtgRow row){
+		/* The sample time defaults to this too, but only once merged */
+		if(!row.has(RtgRow.TIMESTAMP_SERVER))
+			row.setTimestampServer(System.currentTimeMillis());
+		if(spool != null ? !spool.append(row) : !queue.offer(row)){
+			saturated = true;
+			dropped.incrementAndGet();
+			return false;
+		}
+		submitted.incrementAndGet();
+		if(!saturated && getBacklog() >= highWatermark) saturated = true;
+		Thread idle = idleWriters.poll();
+		if(idle != null) LockSupport.unpark(idle);
+		return true;
+	}
+
+	/**
+	 * Checks if the queue is filling faster than it drains.
+	 * @return True from three quarters full until drained to half.
+	 */
+	public boolean isSaturated(){
+		return saturated;
+	}
+
+	/* Writer thread */
+	private void drain(){
+		RtgRow[] batch = new RtgRow[batchSize];
+		RowAssembler assembler = new RowAssembler(assemblyWindow, batchSize);
+		int count = 0;
+		long deadline = 0;
+		while(running || !queue.isEmpty() || count > 0){
+			RtgRow row = queue.poll();
+			if(row != null){
+				if(count == 0) deadline = System.nanoTime() + lingerNanos;
+				batch[count++] = row;
+				if(count < batchSize) continue;
+			}
+			else if(running){
+				if(count == 0){
+					awaitRows();
+					continue;
+				}
+				long wait = deadline - System.nanoTime();
+				if(wait > 0){
+					LockSupport.parkNanos(wait);
+					continue;
+				}
+			}
+			if(count > 0) flush(batch, count, assembler);
+			count = 0;
+			if(saturated && queue.size() <= lowWatermark) saturated = false;
+		}
+	}
+
+	/* Single writer thread in spool mode. Rows are read into reused
+	 * objects and only committed once the DB has them */
+	private void drainSpool(){
+		RtgRow[] batch = new RtgRow[batchSize];
+		for(int i=0;i<batchSize;i++) batch[i] = new RtgRow();
+		RowAssembler assembler = new RowAssembler(assemblyWindow, batchSize);
+		long retryDelay = RETRY_DELAY;
+		/* Rows per batch while looking for a rejected row, up to the end
+		 * of the rejected batch */
+		int probe = batchSize;
+		long probeEnd = 0;
+		long deadline = 0;
+		while(running || spool.getBacklog() > 0){
+			spool.prepare();
+			spool.syncIfDue();
+			long start = spool.getCommittedOffset();
+			long available = spool.getWriteOffset() - start;
+			if(available == 0){
+				/* All in the DB, so nothing left to sync either */
+				deadline = 0;
+				awaitRows();
+				continue;
+			}
+			if(available < batchSize && running){
+				if(deadline == 0) deadline = System.nanoTime() + lingerNanos;
+				long wait = deadline - System.nanoTime();
+				if(wait > 0){
+					LockSupport.parkNanos(wait);
+					continue;
+				}
+			}
+			deadline = 0;
+
+			if(start >= probeEnd) probe = batchSize;
+			int count = (int) Math.min(available, probe);
+			for(int i=0;i<count;i++) spool.read(start + i, batch[i]);
+			String boxId = batch[0].getBoxId();
+			SQLException error = write(batch, assemble(assembler, batch, count));
+			if(error == null){
+				spool.commit(start + count);
+				retryDelay = RETRY_DELAY;
+			}
+			else if(ConnectionPool.isDataError(error)){
+				if(count == 1){
+					logger.log(LogLevel.WARNING, "IngestPipeline: skipping " +
+							"spooled row of %s at offset %d rejected by the DB.",
+							boxId, start);
+					spool.commit(start + 1);
+					probe = batchSize;
+				}
+				else{
+					/* Bisect; the rows before the rejected one get written */
+					if(start + count > probeEnd) probeEnd = start + count;
+					probe = count/2;
+				}
+			}
+			else{
+				/* DB down or refusing, keep the rows and try again later */
+				if(!running) break;
+				pauseSpool(TimeUnit.MILLISECONDS.toNanos(retryDelay));
+				retryDelay = Math.min(retryDelay*2, MAX_RETRY_DELAY);
+			}
+			if(saturated && spool.getBacklog() <= lowWatermark) saturated = false;
+		}
+		spool.sync();
+	}
+
+	/* Sleeps until a row is submitted or the pipeline shuts down. The
+	 * writer shows itself idle before looking at the backlog once more, so
+	 * a row submitted in between either is seen or wakes it */
+	private void awaitRows(){
+		Thread self = Thread.currentThread();
+		idleWriters.add(self);
+		if(running && getBacklog() == 0) LockSupport.park(this);
+		idleWriters.remove(self);
+	}
+
+	/* Waits out a retry delay, still keeping the spool ready for appends
+	 * and synced */
+	private void pauseSpool(long nanos){
+		long until = System.nanoTime() + nanos;
+		long wait;
+		while(running && (wait = until - System.nanoTime()) > 0){
+			LockSupport.parkNanos(Math.min(wait, SPOOL_UPKEEP_NANOS));
+			spool.prepare();
+			spool.syncIfDue();
+		}
+	}
+
+	private void flush(RtgRow[] batch, int count, RowAssembler assembler){
+		int rows = assemble(assembler, batch, count);
+		if(write(batch, rows) != null)
+			logger.log(LogLevel.WARNING, "IngestPipeline: lost %d rows.", rows);
+		for(int i=0;i<count;i++) batch[i] = null;
+	}
+
+	/* Merges a batch and completes the merged rows' timestamps */
+	private static int assemble(RowAssembler assembler, RtgRow[] batch, int count){
+		int rows = assembler.merge(batch, count);
+		for(int i=0;i<rows;i++) batch[i].stamp(batch[i].timestampServer);
+		return rows;
+	}
+
+	/* Returns what went wrong, null if the rows were written */
+	private SQLException write(RtgRow[] batch, int count){
+		PooledConnection pc = null;
+		batches.incrementAndGet();
+		try{
+			pc = pool.acquire();
+			writer.write(pc, batch, count);
+			pool.release(pc);
+			written.addAndGet(count);
+			return null;
+		}
+		catch(SQLException sqle){
+			if(pc != null) pool.release(pc, sqle);
+			failed.addAndGet(count);
+			logger.log(LogLevel.WARNING, "IngestPipeline: writing %d rows " +
+					"failed: %s", count, sqle);
+			return sqle;
+		}
+	}
+
+	/* Metrics, for monitoring */
+
+	public long getBacklog(){
+		return spool != null ? spool.getBacklog() : queue.size();
+	}
+
+	public long getCapacity(){
+		return spool != null ? spool.getMaxRecords() : queue.capacity();
+	}
+
+	public long getSubmittedCount(){
+		return submitted.get();
+	}
+
+	public long getDroppedCount(){
+		return dropped.get();
+	}
+
+	public long getWrittenCount(){
+		return written.get();
+	}
+
+	public long getFailedCount(){
+		return failed.get();
+	}
+
+	public long getBatchCount(){
+		return batches.get();
+	}
+
+	@Override
+	public String toString(){
+		return String.format("IngestPipeline: %d/%d queued%s, %d submitted, " +
+				"%d written in %d batches, %d failed, %d dropped", getBacklog(),
+				getCapacity(), saturated ? " (saturated)" : "",
+				getSubmittedCount(), getWrittenCount(), getBatchCount(),
+				getFailedCount(), getDroppedCount());
+	}
+}
@@ -0,0 +1,104 @@
+package database;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A connection of a {@link ConnectionPool}, with the statements prepared on
+ * it kept for reuse. Used by one thread at a time, between acquire and
+ * release.
+ * @author jay
+ *
+ */
+public class PooledConnection {
+
+	/* Prepared statements kept per connection, least recently used go */
+	private static final int MAX_STATEMENTS = 32;
+
+	private Connection connection;
+	private LinkedHashMap<String, PreparedStatement> statements;
+	private long lastUsed;
+
+	PooledConnection(Connection connection){
+		this.connection = connection;
+		this.statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true);
+		this.lastUsed = System.currentTimeMillis();
+	}
+
+	/**
+	 * Returns the underlying connection. Do not close it.
+	 * @return JDBC connection.
+	 */
+	public Connection getConnection(){
+		return connection;
+	}
+
+	/**
+	 * Returns a prepared statement for the SQL, preparing it on first use.
+	 * Do not close it; parameters are cleared before it is handed out.
+	 * @param sql Statement SQL.
+	 * @return Prepared statement.
+	 * @throws SQLException
+	 */
+	public PreparedStatement prepare(String sql) throws SQLException {
+		PreparedStatement ps = statements.get(sql);
+		if(ps != null){
+			ps.clearParameters();
+			return ps;
+		}
+		ps = connection.prepareStatement(sql);
+		statements.put(sql, ps);
+		if(statements.size() > MAX_STATEMENTS){
+			Iterator<Map.Entry<String, PreparedStatement>> it =
+					statements.entrySet().iterator();
+			closeQuietly(it.next().getValue());
+			it.remove();
+		}
+		return ps;
+	}
+
+	/**
+	 * Creates a plain statement, which the caller must close.
+	 * @return New statement.
+	 * @throws SQLException
+	 */
+	public Statement createStatement() throws SQLException {
+		return connection.createStatement();
+	}
+
+	long getLastUsed(){
+		return lastUsed;
+	}
+
+	void touch(){
+		lastUsed = System.currentTimeMillis();
+	}
+
+	/**
+	 * Closes the cached statements and the connection.
+	 */
+	void close(){
+		for(PreparedStatement ps : statements.values()) closeQuietly(ps);
+		statements.clear();
+		try{
+			connection.close();
+		}
+		catch(SQLException sqle){
+			// Swallow...
+		}
+	}
+
+	private static void closeQuietly(Statement s){
+		try{
+			s.close();
+		}
+		catch(SQLException sqle){
+			// Swallow...
+		}
+	}
+}
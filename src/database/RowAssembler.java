@@ -0,0 +1,119 @@
+package database;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Merges the readings of each device in a batch into wide rtg rows.
+ * Readings of different sensors that arrived within the window of each
+ * other share a row, so a GPS fix, the voltages and the inputs polled
+ * with it end up in one insert instead of one each.
+ * <p>
+ * Sessions store every reading as a row of its own as soon as it arrives,
+ * before it is ACKed, so merging happens in the ingest writers, once the
+ * readings are spooled. Only readings written in the same batch are
+ * merged. A reading of a column the device's row already holds starts
+ * the next row.
+ * <p>
+ * Not thread safe; each writer thread has its own.
+ * @author jay
+ *
+ */
+public class RowAssembler {
+
+	public static final long DEFAULT_WINDOW = 1000;
+
+	/* Columns every reading has, which don't keep readings apart */
+	private static final int KEY_COLUMNS = RtgRow.TIMESTAMP_SERVER | RtgRow.BOX_ID;
+
+	/* Totals of all assemblers, for monitoring */
+	private static final AtomicLong readings = new AtomicLong(0);
+	private static final AtomicLong rows = new AtomicLong(0);
+
+	private long window;
+
+	/* Open addressing table from box_id to the index of its row in the
+	 * batch, plus one. 0 is a free slot */
+	private int[] open;
+	private int mask;
+
+	/**
+	 * Create an assembler.
+	 * @param windowMillis Longest time from a row's first reading to its
+	 * last. 0 gives every reading a row of its own.
+	 * @param batchSize Most rows per batch.
+	 */
+	public RowAssembler(long windowMillis, int batchSize){
+		this.window = Math.max(0, windowMillis);
+		this.open = new int[Integer.highestOneBit(Math.max(1, batchSize)*2 - 1)*2];
+		this.mask = open.length - 1;
+	}
+
+	/**
+	 * Merges the rows of a batch in place. Merged rows are moved to the
+	 * front in their order of arrival; what is left behind them is spent.
+	 * Rows are swapped rather than overwritten, so none is lost to a caller
+	 * reusing them.
+	 * @param batch Rows, in order of arrival, with their server timestamps.
+	 * @param count Number of rows.
+	 * @return Number of merged rows at the front of the batch.
+	 */
+	public int merge(RtgRow[] batch, int count){
+		readings.addAndGet(count);
+		if(window == 0){
+			rows.addAndGet(count);
+			return count;
+		}
+		Arrays.fill(open, 0);
+		int merged = 0;
+		for(int i=0;i<count;i++){
+			RtgRow r = batch[i];
+			int slot = r.has(RtgRow.BOX_ID) ? find(batch, r.boxId) : -1;
+			if(slot >= 0 && open[slot] != 0){
+				RtgRow row = batch[open[slot] - 1];
+				if((row.columns & r.columns & ~KEY_COLUMNS) == 0
+						&& r.timestampServer - row.timestampServer < window){
+					row.mergeFrom(r);
+					continue;
+				}
+			}
+			batch[i] = batch[merged];
+			batch[merged++] = r;
+			if(slot >= 0) open[slot] = merged;
+		}
+		rows.addAndGet(merged);
+		return merged;
+	}
+
+	/* Slot holding a box_id's row, or the free slot it would go in */
+	private int find(RtgRow[] batch, String boxId){
+		int slot = boxId.hashCode()*0x9E3779B9 >>> 16 & mask;
+		while(open[slot] != 0 && !boxId.equals(batch[open[slot] - 1].boxId))
+			slot = (slot + 1) & mask;
+		return slot;
+	}
+
+	public long getWindow(){
+		return window;
+	}
+
+	/* Metrics, for monitoring */
+
+	public static long getReadingCount(){
+		return readings.get();
+	}
+
+	public static long getRowCount(){
+		return rows.get();
+	}
+
+	/**
+	 * Totals of all assemblers.
+	 * @return Readings, rows and their ratio.
+	 */
+	public static String stats(){
+		long r = getRowCount();
+		return String.format("RowAssembler: %d readings in %d rows (%.1f per row)",
+				getReadingCount(), r, r == 0 ? 0.0 : (double) getReadingCount()/r);
+	}
+}
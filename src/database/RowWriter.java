@@ -0,0 +1,21 @@
+package database;
+
+import java.sql.SQLException;
+
+/**
+ * Writes batches of rows to the rtg table.
+ * @author jay
+ *
+ */
+public interface RowWriter {
+
+	/**
+	 * Writes rows, all or none.
+	 * @param pc Connection to write on.
+	 * @param rows Rows to write.
+	 * @param count Number of rows, from the start of the array.
+	 * @throws SQLException If the rows were not written.
+	 */
+	void write(PooledConnection pc, RtgRow[] rows, int count)
+			throws SQLException;
+}
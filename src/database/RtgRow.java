@@ -0,0 +1,251 @@
+package database;
+
+/**
+ * One row of the rtg table, as primitives. Only columns that have been set
+ * are written; the rest are left NULL.
+ * @author jay
+ *
+ */
+public class RtgRow {
+
+	/* Column bits, in table order */
+	public static final int TIMESTAMP_SERVER = 1 << 0;
+	public static final int BOX_ID = 1 << 1;
+	public static final int DIGITAL_IN = 1 << 2;
+	public static final int DIGITAL_OUT = 1 << 3;
+	public static final int MAIN_VOLTAGE = 1 << 4;
+	public static final int LIION_VOLTAGE = 1 << 5;
+	public static final int TEMP_1 = 1 << 6;
+	public static final int TEMP_2 = 1 << 7;
+	public static final int ANALOG_1 = 1 << 8;
+	public static final int ANALOG_2 = 1 << 9;
+	public static final int GPS_LAT = 1 << 10;
+	public static final int GPS_LONG = 1 << 11;
+	public static final int GPS_SPEED = 1 << 12;
+	public static final int GPS_DIR = 1 << 13;
+	public static final int GPS_FIX = 1 << 14;
+	public static final int GPS_SAT_INFO = 1 << 15;
+	public static final int TIMESTAMP_SAMPLE = 1 << 16;
+	public static final int TIMESTAMP_LAST_VALID = 1 << 17;
+	public static final int FMS_STATUS = 1 << 18;
+	public static final int OBD_STATUS = 1 << 19;
+	public static final int TOTAL_FUEL = 1 << 20;
+	public static final int TOTAL_DISTANCE = 1 << 21;
+
+	/* Set columns */
+	int columns;
+
+	/* Timestamps are milliseconds since the epoch */
+	long timestampServer;
+	String boxId;
+	int digitalIn;
+	short digitalOut;
+	float mainVoltage;
+	float liionVoltage;
+	float temp1;
+	float temp2;
+	float analog1;
+	float analog2;
+	double gpsLat;
+	double gpsLong;
+	float gpsSpeed;
+	float gpsDir;
+	short gpsFix;
+	short gpsSatInfo;
+	long timestampSample;
+	long timestampLastValid;
+	short fmsStatus;
+	short obdStatus;
+	float totalFuel;
+	float totalDistance;
+
+	public RtgRow(){
+		this.columns = 0;
+	}
+
+	/**
+	 * Checks if a column has been set.
+	 * @param column Column bit.
+	 * @return True if set.
+	 */
+	public boolean has(int column){
+		return (columns & column) != 0;
+	}
+
+	/**
+	 * Unsets all columns, for reusing the row.
+	 */
+	public void clear(){
+		columns = 0;
+		boxId = null;
+	}
+
+	/**
+	 * Sets the server timestamp, if not set yet, and the sample timestamp
+	 * to the same if the sample has none. rtg is partitioned by sample time,
+	 * which can't be NULL.
+	 * @param now Current time in milliseconds.
+	 */
+	public void stamp(long now){
+		if(!has(TIMESTAMP_SERVER)) setTimestampServer(now);
+		if(!has(TIMESTAMP_SAMPLE)) setTimestampSample(timestampServer);
+	}
+
+	public void setTimestampServer(long millis){
+		timestampServer = millis;
+		columns |= TIMESTAMP_SERVER;
+	}
+
+	public void setBoxId(String boxId){
+		this.boxId = boxId;
+		columns |= BOX_ID;
+	}
+
+	public String getBoxId(){
+		return boxId;
+	}
+
+	public void setDigitalIn(int digitalIn){
+		this.digitalIn = digitalIn;
+		columns |= DIGITAL_IN;
+	}
+
+	public void setDigitalOut(short digitalOut){
+		this.digitalOut = digitalOut;
+		columns |= DIGITAL_OUT;
+	}
+
+	public void setMainVoltage(float volts){
+		mainVoltage = volts;
+		columns |= MAIN_VOLTAGE;
+	}
+
+	public void setLiionVoltage(float volts){
+		liionVoltage = volts;
+		columns |= LIION_VOLTAGE;
+	}
+
+	public void setTemp1(float temp){
+		temp1 = temp;
+		columns |= TEMP_1;
+	}
+
+	public void setTemp2(float temp){
+		temp2 = temp;
+		columns |= TEMP_2;
+	}
+
+	public void setAnalog1(float value){
+		analog1 = value;
+		columns |= ANALOG_1;
+	}
+
+	public void setAnalog2(float value){
+		analog2 = value;
+		columns |= ANALOG_2;
+	}
+
+	/**
+	 * Sets one of the float sensor columns.
+	 * @param column MAIN_VOLTAGE, LIION_VOLTAGE, TEMP_1, TEMP_2, ANALOG_1 or
+	 * ANALOG_2.
+	 * @param value Value in the column's units.
+	 */
+	public void setReading(int column, float value){
+		switch(column){
+			case MAIN_VOLTAGE: setMainVoltage(value); break;
+			case LIION_VOLTAGE: setLiionVoltage(value); break;
+			case TEMP_1: setTemp1(value); break;
+			case TEMP_2: setTemp2(value); break;
+			case ANALOG_1: setAnalog1(value); break;
+			case ANALOG_2: setAnalog2(value); break;
+			default:
+				throw new IllegalArgumentException("Not a sensor column: " + column);
+		}
+	}
+
+	/**
+	 * Sets the GPS position columns.
+	 * @param lat Latitude in degrees.
+	 * @param lon Longitude in degrees.
+	 * @param speed Speed.
+	 * @param dir Direction.
+	 * @param fix Fix status.
+	 * @param satInfo Satellites used.
+	 */
+	public void setGps(double lat, double lon, float speed, float dir,
+			short fix, short satInfo){
+		gpsLat = lat;
+		gpsLong = lon;
+		gpsSpeed = speed;
+		gpsDir = dir;
+		gpsFix = fix;
+		gpsSatInfo = satInfo;
+		columns |= GPS_LAT | GPS_LONG | GPS_SPEED | GPS_DIR | GPS_FIX
+				| GPS_SAT_INFO;
+	}
+
+	public void setTimestampSample(long millis){
+		timestampSample = millis;
+		columns |= TIMESTAMP_SAMPLE;
+	}
+
+	public long getTimestampSample(){
+		return timestampSample;
+	}
+
+	public void setTimestampLastValid(long millis){
+		timestampLastValid = millis;
+		columns |= TIMESTAMP_LAST_VALID;
+	}
+
+	public void setFmsStatus(short status){
+		fmsStatus = status;
+		columns |= FMS_STATUS;
+	}
+
+	public void setObdStatus(short status){
+		obdStatus = status;
+		columns |= OBD_STATUS;
+	}
+
+	public void setTotalFuel(float fuel){
+		totalFuel = fuel;
+		columns |= TOTAL_FUEL;
+	}
+
+	public void setTotalDistance(float distance){
+		totalDistance = distance;
+		columns |= TOTAL_DISTANCE;
+	}
+
+	/**
+	 * Copies the columns set in another row into this one, except the
+	 * server timestamp and box_id, which this row keeps.
+	 * @param r Row to copy from.
+	 */
+	public void mergeFrom(RtgRow r){
+		int c = r.columns;
+		if((c & DIGITAL_IN) != 0) digitalIn = r.digitalIn;
+		if((c & DIGITAL_OUT) != 0) digitalOut = r.digitalOut;
+		if((c & MAIN_VOLTAGE) != 0) mainVoltage = r.mainVoltage;
+		if((c & LIION_VOLTAGE) != 0) liionVoltage = r.liionVoltage;
+		if((c & TEMP_1) != 0) temp1 = r.temp1;
+		if((c & TEMP_2) != 0) temp2 = r.temp2;
+		if((c & ANALOG_1) != 0) analog1 = r.analog1;
+		if((c & ANALOG_2) != 0) analog2 = r.analog2;
+		if((c & GPS_LAT) != 0) gpsLat = r.gpsLat;
+		if((c & GPS_LONG) != 0) gpsLong = r.gpsLong;
+		if((c & GPS_SPEED) != 0) gpsSpeed = r.gpsSpeed;
+		if((c & GPS_DIR) != 0) gpsDir = r.gpsDir;
+		if((c & GPS_FIX) != 0) gpsFix = r.gpsFix;
+		if((c & GPS_SAT_INFO) != 0) gpsSatInfo = r.gpsSatInfo;
+		if((c & TIMESTAMP_SAMPLE) != 0) timestampSample = r.timestampSample;
+		if((c & TIMESTAMP_LAST_VALID) != 0) timestampLastValid = r.timestampLastValid;
+		if((c & FMS_STATUS) != 0) fmsStatus = r.fmsStatus;
+		if((c & OBD_STATUS) != 0) obdStatus = r.obdStatus;
+		if((c & TOTAL_FUEL) != 0) totalFuel = r.totalFuel;
+		if((c & TOTAL_DISTANCE) != 0) totalDistance = r.totalDistance;
+		columns |= c & ~(TIMESTAMP_SERVER | BOX_ID);
+	}
+}
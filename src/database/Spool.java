@@ -0,0 +1,494 @@
+package database;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import logger.LogLevel;
+import logger.Logger;
+import utils.SegmentFiles;
+
+/**
+ * Append-only log of rows on local disk, so that rows already ACKed to a
+ * device survive a slow or unreachable DB and restarts. Rows are written
+ * as fixed size records into memory mapped segment files; a checkpoint
+ * file holds the offset up to which the DB has them. On open, records past
+ * the checkpoint are replayed and a torn record at the end is cut off.
+ * <p>
+ * Records are in the page cache as soon as they are appended, so they
+ * survive the process dying. They reach the disk at the latest
+ * SYNC_INTERVAL later.
+ * <p>
+ * Any number of threads may append; one thread reads and commits. That
+ * thread also does all the disk work: it maps the segments appends will
+ * go into ahead of time and forces records to disk, none of it while
+ * holding the lock appenders take. Committed segments are kept mapped and
+ * renamed to the next segment needed, rather than deleted while still
+ * mapped and created anew; only those beyond PREPARED_SEGMENTS spares are
+ * deleted, which happens when the backlog shrinks. A recycled segment
+ * still holds its old records, so each record carries its own offset.
+ * @author jay
+ *
+ */
+public class Spool {
+
+	public static final int RECORD_SIZE = 128;
+
+	/* 8MB segments */
+	public static final int DEFAULT_SEGMENT_RECORDS = 64*1024;
+
+	/* Longest time appended records stay in the page cache only */
+	private static final long SYNC_INTERVAL = 1000;
+
+	/* Segments mapped ahead, counting the one being appended to */
+	private static final int PREPARED_SEGMENTS = 2;
+
+	private static final String SEGMENT_PREFIX = "segment-";
+	private static final String SEGMENT_SUFFIX = ".log";
+	private static final String CHECKPOINT = "checkpoint";
+
+	/* varchar(15) */
+	private static final int BOX_ID_MAX = 15;
+
+	/* Record layout. The CRC covers everything before it */
+	private static final int COLUMNS = 0;
+	private static final int TIMESTAMP_SERVER = 4;
+	private static final int BOX_ID_LENGTH = 12;
+	private static final int BOX_ID = 13;
+	private static final int DIGITAL_IN = 28;
+	private static final int DIGITAL_OUT = 32;
+	private static final int MAIN_VOLTAGE = 34;
+	private static final int LIION_VOLTAGE = 38;
+	private static final int TEMP_1 = 42;
+	private static final int TEMP_2 = 46;
+	private static final int ANALOG_1 = 50;
+	private static final int ANALOG_2 = 54;
+	private static final int GPS_LAT = 58;
+	private static final int GPS_LONG = 66;
+	private static final int GPS_SPEED = 74;
+	private static final int GPS_DIR = 78;
+	private static final int GPS_FIX = 82;
+	private static final int GPS_SAT_INFO = 84;
+	private static final int TIMESTAMP_SAMPLE = 86;
+	private static final int TIMESTAMP_LAST_VALID = 94;
+	private static final int FMS_STATUS = 102;
+	private static final int OBD_STATUS = 104;
+	private static final int TOTAL_FUEL = 106;
+	private static final int TOTAL_DISTANCE = 110;
+	private static final int OFFSET = 114;
+	/* 122-123 spare */
+	private static final int CRC = RECORD_SIZE - 4;
+
+	private File dir;
+	private SegmentFiles files;
+	private int segmentRecords;
+	private long maxRecords;
+	private Logger logger;
+
+	/* Mapped segments by first offset */
+	private TreeMap<Long, MappedByteBuffer> segments;
+	private MappedByteBuffer checkpoint;
+
+	/* Next offset to append at, and the first not yet in the DB */
+	private volatile long writeOffset;
+	private volatile long committedOffset;
+
+	private ReentrantLock lock;
+	private CRC32 appendCrc;
+	private CRC32 readCrc;
+	private long lastSync;
+	private long syncedOffset;
+
+	/* Segment appended to when prepare() last ran, -1 before */
+	private long preparedBase;
+
+	/* Committed segments to recycle, by first offset. Reading thread only */
+	private TreeMap<Long, MappedByteBuffer> spares;
+
+	/* Segments to force or retire, gathered under the lock */
+	private ArrayList<MappedByteBuffer> toSync;
+	private ArrayList<Map.Entry<Long, MappedByteBuffer>> toRetire;
+
+	/* Box ids repeat, so skip re-encoding and re-decoding the last one */
+	private String lastAppendedId;
+	private byte[] lastAppendedBytes;
+	private byte[] lastReadBytes;
+	private String lastReadId;
+
+	/**
+	 * Create a spool. Call {@link #open()} before use.
+	 * @param dir Directory for segments and checkpoint.
+	 * @param maxBytes Most bytes of records not yet committed.
+	 * @param logger Logger to use.
+	 */
+	public Spool(File dir, long maxBytes, Logger logger){
+		this(dir, DEFAULT_SEGMENT_RECORDS, maxBytes, logger);
+	}
+
+	/**
+	 * Create a spool with a custom segment size.
+	 * @param dir Directory for segments and checkpoint.
+	 * @param segmentRecords Records per segment file.
+	 * @param maxBytes Most bytes of records not yet committed.
+	 * @param logger Logger to use.
+	 */
+	public Spool(File dir, int segmentRecords, long maxBytes, Logger logger){
+		this.dir = dir;
+		this.files = new SegmentFiles(dir, SEGMENT_PREFIX, SEGMENT_SUFFIX,
+				(long) segmentRecords*RECORD_SIZE);
+		this.segmentRecords = segmentRecords;
+		this.maxRecords = Math.max(segmentRecords, maxBytes/RECORD_SIZE);
+		this.logger = logger;
+		this.segments = new TreeMap<Long, MappedByteBuffer>();
+		this.lock = new ReentrantLock();
+		this.appendCrc = new CRC32();
+		this.readCrc = new CRC32();
+		this.preparedBase = -1;
+		this.spares = new TreeMap<Long, MappedByteBuffer>();
+		this.toSync = new ArrayList<MappedByteBuffer>();
+		this.toRetire = new ArrayList<Map.Entry<Long, MappedByteBuffer>>();
+	}
+
+	/**
+	 * Maps the checkpoint and existing segments, keeping those already
+	 * committed as spares, and finds the end of the log.
+	 * @throws IOException If the directory or a file can't be used.
+	 */
+	public void open() throws IOException {
+		files.createDir();
+
+		checkpoint = map(new File(dir, CHECKPOINT), 8);
+		committedOffset = checkpoint.getLong(0);
+
+		for(File file : files.list()){
+			long base = files.numberOf(file);
+			if(base + segmentRecords <= committedOffset){
+				if(spares.size() < PREPARED_SEGMENTS) spares.put(base, files.map(base));
+				else file.delete();
+				continue;
+			}
+			segments.put(base, files.map(base));
+		}
+
+		/* The log ends at the first record that doesn't check out */
+		writeOffset = segments.isEmpty() ? committedOffset : segments.firstKey();
+		if(writeOffset < committedOffset) writeOffset = committedOffset;
+		while(segments.containsKey(base(writeOffset)) && readable(writeOffset))
+			writeOffset++;
+		syncedOffset = writeOffset;
+		lastSync = System.currentTimeMillis();
+
+		if(writeOffset > committedOffset)
+			logger.log(LogLevel.INFO, "Spool: replaying %d records.",
+					writeOffset - committedOffset);
+		prepare();
+	}
+
+	private MappedByteBuffer map(File file, long size) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try{
+			return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+		}
+		finally{
+			/* The mapping stays valid */
+			raf.close();
+		}
+	}
+
+	private long base(long offset){
+		return offset - offset % segmentRecords;
+	}
+
+	/**
+	 * Appends a row. Doesn't wait for the disk, unless the reading thread
+	 * fell so far behind that the segment isn't mapped yet.
+	 * @param row Row to append.
+	 * @return False if the spool is full or a segment could not be created.
+	 */
+	public boolean append(RtgRow row){
+		lock.lock();
+		try{
+			long offset = writeOffset;
+			if(offset - committedOffset >= maxRecords) return false;
+			MappedByteBuffer seg = segments.get(base(offset));
+			if(seg == null){
+				try{
+					seg = files.map(base(offset));
+				}
+				catch(IOException ioe){
+					logger.log(LogLevel.WARNING, "Spool: cannot create %s: %s",
+							files.file(base(offset)), ioe);
+					return false;
+				}
+				segments.put(base(offset), seg);
+			}
+			encode(seg, (int) (offset % segmentRecords)*RECORD_SIZE, offset, row);
+			/* Readers see the record once they see the new offset */
+			writeOffset = offset + 1;
+			return true;
+		}
+		finally{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Maps the segment being appended to and the next ones ahead of time,
+	 * recycling committed segments if there are any. Called by the reading
+	 * thread.
+	 */
+	public void prepare(){
+		long base = base(writeOffset);
+		if(base == preparedBase) return;
+		for(int i=0;i<PREPARED_SEGMENTS;i++){
+			long next = base + (long) i*segmentRecords;
+			if(!spares.isEmpty()){
+				if(!recycle(next)) return;
+				continue;
+			}
+			lock.lock();
+			try{
+				if(segments.containsKey(next)) continue;
+			}
+			finally{
+				lock.unlock();
+			}
+			MappedByteBuffer seg;
+			try{
+				seg = files.map(next);
+			}
+			catch(IOException ioe){
+				logger.log(LogLevel.WARNING, "Spool: cannot create %s: %s",
+						files.file(next), ioe);
+				return;
+			}
+			lock.lock();
+			try{
+				/* Both map the same file, so either will do */
+				if(!segments.containsKey(next)) segments.put(next, seg);
+			}
+			finally{
+				lock.unlock();
+			}
+		}
+		preparedBase = base;
+	}
+
+	/* Renames a spare to the segment at base, unless an append mapped it
+	 * already. Under the lock, so that no append maps a new file of that
+	 * name meanwhile */
+	private boolean recycle(long base){
+		Map.Entry<Long, MappedByteBuffer> spare = spares.firstEntry();
+		lock.lock();
+		try{
+			if(segments.containsKey(base)) return true;
+			if(!files.renumber(spare.getKey(), base)){
+				logger.log(LogLevel.WARNING, "Spool: cannot rename %s to %s.",
+						files.file(spare.getKey()), files.file(base));
+				return false;
+			}
+			segments.put(base, spare.getValue());
+		}
+		finally{
+			lock.unlock();
+		}
+		spares.remove(spare.getKey());
+		return true;
+	}
+
+	/**
+	 * Reads a record appended earlier.
+	 * @param offset Offset of the record, below getWriteOffset().
+	 * @param row Row to read into.
+	 */
+	public void read(long offset, RtgRow row){
+		MappedByteBuffer seg;
+		lock.lock();
+		try{
+			seg = segments.get(base(offset));
+		}
+		finally{
+			lock.unlock();
+		}
+		decode(seg, (int) (offset % segmentRecords)*RECORD_SIZE, row);
+	}
+
+	/**
+	 * Records that everything below offset is in the DB, and keeps
+	 * segments no longer needed for recycling.
+	 * @param offset First offset not yet in the DB.
+	 */
+	public void commit(long offset){
+		checkpoint.putLong(0, offset);
+		checkpoint.force();
+		committedOffset = offset;
+		lock.lock();
+		try{
+			while(!segments.isEmpty()
+					&& segments.firstKey() + segmentRecords <= offset)
+				toRetire.add(segments.pollFirstEntry());
+		}
+		finally{
+			lock.unlock();
+		}
+		for(int i=0;i<toRetire.size();i++){
+			Map.Entry<Long, MappedByteBuffer> seg = toRetire.get(i);
+			if(spares.size() < PREPARED_SEGMENTS)
+				spares.put(seg.getKey(), seg.getValue());
+			else
+				files.delete(seg.getKey());
+		}
+		toRetire.clear();
+	}
+
+	/**
+	 * Forces appended records to disk if the last sync is older than
+	 * SYNC_INTERVAL.
+	 */
+	public void syncIfDue(){
+		if(System.currentTimeMillis() - lastSync >= SYNC_INTERVAL) sync();
+	}
+
+	/**
+	 * Forces appended records to disk. Appends go on meanwhile.
+	 */
+	public void sync(){
+		lastSync = System.currentTimeMillis();
+		long end = writeOffset;
+		if(end == syncedOffset) return;
+		lock.lock();
+		try{
+			toSync.addAll(segments.subMap(base(syncedOffset), true, 
+					base(end - 1), true).values());
+		}
+		finally{
+			lock.unlock();
+		}
+		for(int i=0;i<toSync.size();i++) toSync.get(i).force();
+		toSync.clear();
+		syncedOffset = end;
+	}
+
+	public long getWriteOffset(){
+		return writeOffset;
+	}
+
+	public long getCommittedOffset(){
+		return committedOffset;
+	}
+
+	/**
+	 * Number of records not yet in the DB.
+	 * @return Record count.
+	 */
+	public long getBacklog(){
+		return writeOffset - committedOffset;
+	}
+
+	public long getMaxRecords(){
+		return maxRecords;
+	}
+
+	/* Record encoding */
+
+	private void encode(MappedByteBuffer seg, int pos, long offset, RtgRow r){
+		seg.putInt(pos + COLUMNS, r.columns);
+		seg.putLong(pos + TIMESTAMP_SERVER, r.timestampServer);
+		int idLength = 0;
+		if(r.boxId != null){
+			if(!r.boxId.equals(lastAppendedId)){
+				lastAppendedId = r.boxId;
+				lastAppendedBytes = r.boxId.getBytes(StandardCharsets.UTF_8);
+			}
+			byte[] id = lastAppendedBytes;
+			idLength = Math.min(id.length, BOX_ID_MAX);
+			for(int i=0;i<idLength;i++) seg.put(pos + BOX_ID + i, id[i]);
+		}
+		seg.put(pos + BOX_ID_LENGTH, (byte) idLength);
+		seg.putInt(pos + DIGITAL_IN, r.digitalIn);
+		seg.putShort(pos + DIGITAL_OUT, r.digitalOut);
+		seg.putFloat(pos + MAIN_VOLTAGE, r.mainVoltage);
+		seg.putFloat(pos + LIION_VOLTAGE, r.liionVoltage);
+		seg.putFloat(pos + TEMP_1, r.temp1);
+		seg.putFloat(pos + TEMP_2, r.temp2);
+		seg.putFloat(pos + ANALOG_1, r.analog1);
+		seg.putFloat(pos + ANALOG_2, r.analog2);
+		seg.putDouble(pos + GPS_LAT, r.gpsLat);
+		seg.putDouble(pos + GPS_LONG, r.gpsLong);
+		seg.putFloat(pos + GPS_SPEED, r.gpsSpeed);
+		seg.putFloat(pos + GPS_DIR, r.gpsDir);
+		seg.putShort(pos + GPS_FIX, r.gpsFix);
+		seg.putShort(pos + GPS_SAT_INFO, r.gpsSatInfo);
+		seg.putLong(pos + TIMESTAMP_SAMPLE, r.timestampSample);
+		seg.putLong(pos + TIMESTAMP_LAST_VALID, r.timestampLastValid);
+		seg.putShort(pos + FMS_STATUS, r.fmsStatus);
+		seg.putShort(pos + OBD_STATUS, r.obdStatus);
+		seg.putFloat(pos + TOTAL_FUEL, r.totalFuel);
+		seg.putFloat(pos + TOTAL_DISTANCE, r.totalDistance);
+		seg.putLong(pos + OFFSET, offset);
+		seg.putInt(pos + CRC, crc(appendCrc, seg, pos));
+	}
+
+	private void decode(MappedByteBuffer seg, int pos, RtgRow r){
+		r.clear();
+		r.columns = seg.getInt(pos + COLUMNS);
+		r.timestampServer = seg.getLong(pos + TIMESTAMP_SERVER);
+		if(r.has(RtgRow.BOX_ID)) r.boxId = readBoxId(seg, pos);
+		r.digitalIn = seg.getInt(pos + DIGITAL_IN);
+		r.digitalOut = seg.getShort(pos + DIGITAL_OUT);
+		r.mainVoltage = seg.getFloat(pos + MAIN_VOLTAGE);
+		r.liionVoltage = seg.getFloat(pos + LIION_VOLTAGE);
+		r.temp1 = seg.getFloat(pos + TEMP_1);
+		r.temp2 = seg.getFloat(pos + TEMP_2);
+		r.analog1 = seg.getFloat(pos + ANALOG_1);
+		r.analog2 = seg.getFloat(pos + ANALOG_2);
+		r.gpsLat = seg.getDouble(pos + GPS_LAT);
+		r.gpsLong = seg.getDouble(pos + GPS_LONG);
+		r.gpsSpeed = seg.getFloat(pos + GPS_SPEED);
+		r.gpsDir = seg.getFloat(pos + GPS_DIR);
+		r.gpsFix = seg.getShort(pos + GPS_FIX);
+		r.gpsSatInfo = seg.getShort(pos + GPS_SAT_INFO);
+		r.timestampSample = seg.getLong(pos + TIMESTAMP_SAMPLE);
+		r.timestampLastValid = seg.getLong(pos + TIMESTAMP_LAST_VALID);
+		r.fmsStatus = seg.getShort(pos + FMS_STATUS);
+		r.obdStatus = seg.getShort(pos + OBD_STATUS);
+		r.totalFuel = seg.getFloat(pos + TOTAL_FUEL);
+		r.totalDistance = seg.getFloat(pos + TOTAL_DISTANCE);
+	}
+
+	private String readBoxId(MappedByteBuffer seg, int pos){
+		int length = seg.get(pos + BOX_ID_LENGTH);
+		boolean same = lastReadBytes != null && lastReadBytes.length == length;
+		for(int i=0;same && i<length;i++)
+			same = lastReadBytes[i] == seg.get(pos + BOX_ID + i);
+		if(!same){
+			lastReadBytes = new byte[length];
+			for(int i=0;i<length;i++) lastReadBytes[i] = seg.get(pos + BOX_ID + i);
+			lastReadId = new String(lastReadBytes, StandardCharsets.UTF_8);
+		}
+		return lastReadId;
+	}
+
+	/* Checks a record while opening, before any append. One left from
+	 * before its segment was recycled has another offset */
+	private boolean readable(long offset){
+		MappedByteBuffer seg = segments.get(base(offset));
+		int pos = (int) (offset % segmentRecords)*RECORD_SIZE;
+		return seg.getLong(pos + OFFSET) == offset
+				&& seg.getInt(pos + CRC) == crc(readCrc, seg, pos);
+	}
+
+	private static int crc(CRC32 crc, MappedByteBuffer seg, int pos){
+		crc.reset();
+		for(int i=0;i<CRC;i++) crc.update(seg.get(pos + i));
+		return (int) crc.getValue();
+	}
+}
@@ -0,0 +1,221 @@
+package loadgen;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A single selector thread running any number of {@link SimulatedDevice}s.
+ * @author jay
+ *
+ */
+public class DeviceLoop implements Runnable {
+
+	/* How often devices are checked for due samples and resends */
+	private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	/* Wait before reconnecting after a failure, plus up to as much again */
+	private static final long RECONNECT_DELAY = TimeUnit.SECONDS.toNanos(1);
+
+	private InetSocketAddress server;
+	private long sampleInterval;
+	private double loss;
+	private long delay;
+	private long resendTimeout;
+
+	private Selector selector;
+	private List<SimulatedDevice> devices;
+	private LoadStats stats;
+	private Random random;
+	private volatile boolean running;
+
+	/* Work handed over by other threads */
+	private ConcurrentLinkedQueue<Runnable> tasks;
+
+	/* Packed GPS time, recomputed once a second */
+	private long packedSecond;
+	private int packedTime;
+
+	/**
+	 * Create a loop.
+	 * @param server Address of the server.
+	 * @param sampleInterval Time between GPS samples of a device [ns].
+	 * @param loss Chance of a sent frame being lost, 0 to 1.
+	 * @param delay Time devices take to respond to the server [ns].
+	 * @param resendTimeout Time devices wait for an ACK [ns].
+	 * @throws IOException If the selector could not be opened.
+	 */
+	public DeviceLoop(InetSocketAddress server, long sampleInterval, double loss,
+			long delay, long resendTimeout) throws IOException {
+		this.server = server;
+		this.sampleInterval = sampleInterval;
+		this.loss = loss;
+		this.delay = delay;
+		this.resendTimeout = resendTimeout;
+		this.selector = Selector.open();
+		this.devices = new ArrayList<SimulatedDevice>();
+		this.stats = new LoadStats();
+		this.random = new Random();
+		this.tasks = new ConcurrentLinkedQueue<Runnable>();
+		this.running = true;
+		this.packedSecond = -1;
+	}
+
+	/**
+	 * Adds a device. Only before the loop runs.
+	 * @param device Device.
+	 */
+	public void add(SimulatedDevice device){
+		devices.add(device);
+	}
+
+	@Override
+	public void run(){
+		long nextTick = System.nanoTime();
+		try{
+			while(running){
+				selector.select(Math.max(1, (nextTick - System.nanoTime())/1000000));
+				long now = System.nanoTime();
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while(keys.hasNext()){
+					SelectionKey key = keys.next();
+					keys.remove();
+					SimulatedDevice device = (SimulatedDevice) key.attachment();
+					if(key.isValid() && key.isConnectable()) device.finishConnect(now);
+					if(key.isValid() && key.isReadable()) device.read(now);
+					if(key.isValid() && key.isWritable()) device.flush(now);
+				}
+				Runnable task;
+				while((task = tasks.poll()) != null) task.run();
+				if(now >= nextTick){
+					for(int i=0;i<devices.size();i++) devices.get(i).tick(now);
+					nextTick = now + TICK_NANOS;
+				}
+			}
+		}
+		catch(IOException ioe){
+			System.err.println("Device loop failed: " + ioe.toString());
+		}
+		finally{
+			for(SimulatedDevice device : devices) device.close();
+			try{
+				selector.close();
+			}
+			catch(IOException ioe){
+				// Swallow
+			}
+		}
+	}
+
+	/**
+	 * Starts connecting a device to the server.
+	 * @param device Device.
+	 */
+	void connect(SimulatedDevice device){
+		long now = System.nanoTime();
+		SocketChannel channel = null;
+		try{
+			channel = SocketChannel.open();
+			channel.configureBlocking(false);
+			channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			SelectionKey key = channel.register(selector, SelectionKey.OP_CONNECT,
+					device);
+			device.connecting(channel, key);
+			if(channel.connect(server)) device.finishConnect(now);
+		}
+		catch(IOException ioe){
+			stats.connectFailed();
+			device.disconnect(now + reconnectDelay());
+			if(channel != null){
+				try{
+					channel.close();
+				}
+				catch(IOException ioe2){
+					// Swallow
+				}
+			}
+		}
+	}
+
+	/**
+	 * Drops a share of the connected devices at once, to reconnect
+	 * together: a reconnect storm, as after a cell outage.
+	 * @param fraction Share of devices to drop, 0 to 1.
+	 */
+	public void storm(final double fraction){
+		tasks.add(new Runnable(){
+			public void run(){
+				long now = System.nanoTime();
+				for(SimulatedDevice device : devices){
+					if(device.isConnected() && random.nextDouble() < fraction)
+						device.disconnect(now);
+				}
+			}
+		});
+		selector.wakeup();
+	}
+
+	/**
+	 * Stops the loop, closing all connections.
+	 */
+	public void shutdown(){
+		running = false;
+		selector.wakeup();
+	}
+
+	/**
+	 * Current time as a packed GPS timestamp (see mxproto.GpsDecoder), UTC.
+	 * @return Packed timestamp.
+	 */
+	int packedTime(){
+		long millis = System.currentTimeMillis();
+		long second = millis / 1000;
+		if(second != packedSecond){
+			packedSecond = second;
+			LocalDateTime t = LocalDateTime.ofEpochSecond(second, 0, ZoneOffset.UTC);
+			packedTime = ((t.getYear() - 2000) << 26) | (t.getMonthValue() << 22)
+					| (t.getDayOfMonth() << 17) | (t.getHour() << 12)
+					| (t.getMinute() << 6) | t.getSecond();
+		}
+		return packedTime;
+	}
+
+	long reconnectDelay(){
+		return RECONNECT_DELAY + (long) (random.nextDouble()*RECONNECT_DELAY);
+	}
+
+	LoadStats getStats(){
+		return stats;
+	}
+
+	Random getRandom(){
+		return random;
+	}
+
+	long getSampleInterval(){
+		return sampleInterval;
+	}
+
+	double getLoss(){
+		return loss;
+	}
+
+	long getDelay(){
+		return delay;
+	}
+
+	long getResendTimeout(){
+		return resendTimeout;
+	}
+}
@@ -0,0 +1,176 @@
+package loadgen;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Simulates a fleet of MX units against a running server, for sizing
+ * hardware.
+ * <pre>
+ * java -cp bin loadgen.LoadGenerator [-host HOST] [-port PORT]
+ *     [-devices N] [-rate PER_S] [-duration S] [-threads N]
+ *     [-connectRate PER_S] [-loss P] [-delay MS] [-resend MS]
+ *     [-stormEvery S] [-stormFraction F] [-report S]
+ * </pre>
+ * Each device connects, sends GPS events from FUNC_GPS at -rate per second
+ * and resends them after -resend ms without an ACK, ACKs what the server
+ * sends and answers its analog reads. -loss drops that share of the frames
+ * devices send, -delay holds back their responses to the server, and
+ * -stormEvery drops -stormFraction of the devices at once every so often,
+ * to reconnect together.
+ * <p>
+ * Every -report seconds, and for the whole run at the end, it prints
+ * throughput and the latency from sending a sample to receiving its ACK.
+ * @author jay
+ *
+ */
+public class LoadGenerator {
+
+	private String host = "127.0.0.1";
+	private int port = 40002;
+	private int deviceCount = 1000;
+	private double rate = 1;
+	private long duration = 60;
+	private int threads = Runtime.getRuntime().availableProcessors();
+	private double connectRate = 1000;
+	private double loss = 0;
+	private long delay = 0;
+	private long resend = 3000;
+	private long stormEvery = 0;
+	private double stormFraction = 0.5;
+	private long reportEvery = 5;
+
+	private DeviceLoop[] loops;
+
+	public static void main(String[] args){
+		LoadGenerator generator = new LoadGenerator();
+		try{
+			for(int i=0;i<args.length;i+=2){
+				if(i + 1 >= args.length)
+					throw new IllegalArgumentException("Missing value for " + args[i]);
+				generator.set(args[i], args[i + 1]);
+			}
+			generator.run();
+		}
+		catch(IllegalArgumentException iae){
+			System.err.println(iae.getMessage());
+			System.err.println("Usage: loadgen.LoadGenerator [-host HOST] " +
+					"[-port PORT] [-devices N] [-rate PER_S] [-duration S] " +
+					"[-threads N] [-connectRate PER_S] [-loss P] [-delay MS] " +
+					"[-resend MS] [-stormEvery S] [-stormFraction F] [-report S]");
+			System.exit(1);
+		}
+		catch(IOException ioe){
+			System.err.println("Cannot start: " + ioe.toString());
+			System.exit(1);
+		}
+	}
+
+	private void set(String option, String value){
+		if(option.equals("-host")) host = value;
+		else if(option.equals("-port")) port = Integer.parseInt(value);
+		else if(option.equals("-devices")) deviceCount = Integer.parseInt(value);
+		else if(option.equals("-rate")) rate = Double.parseDouble(value);
+		else if(option.equals("-duration")) duration = Long.parseLong(value);
+		else if(option.equals("-threads")) threads = Integer.parseInt(value);
+		else if(option.equals("-connectRate")) connectRate = Double.parseDouble(value);
+		else if(option.equals("-loss")) loss = Double.parseDouble(value);
+		else if(option.equals("-delay")) delay = Long.parseLong(value);
+		else if(option.equals("-resend")) resend = Long.parseLong(value);
+		else if(option.equals("-stormEvery")) stormEvery = Long.parseLong(value);
+		else if(option.equals("-stormFraction")) stormFraction = Double.parseDouble(value);
+		else if(option.equals("-report")) reportEvery = Long.parseLong(value);
+		else throw new IllegalArgumentException("Unknown option " + option);
+		if(rate <= 0 || connectRate <= 0 || threads < 1 || reportEvery < 1)
+			throw new IllegalArgumentException("Bad value for " + option);
+	}
+
+	private void run() throws IOException {
+		InetSocketAddress server = new InetSocketAddress(host, port);
+		long sampleInterval = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+		loops = new DeviceLoop[threads];
+		for(int i=0;i<threads;i++){
+			loops[i] = new DeviceLoop(server, sampleInterval, loss,
+					TimeUnit.MILLISECONDS.toNanos(delay),
+					TimeUnit.MILLISECONDS.toNanos(resend));
+		}
+		/* Connect gradually, a listen backlog overflowing is not the point */
+		long start = System.nanoTime();
+		for(int i=0;i<deviceCount;i++){
+			DeviceLoop loop = loops[i % threads];
+			loop.add(new SimulatedDevice(i, loop,
+					start + (long) (i*TimeUnit.SECONDS.toNanos(1)/connectRate)));
+		}
+		Thread[] loopThreads = new Thread[threads];
+		for(int i=0;i<threads;i++){
+			loopThreads[i] = new Thread(loops[i], "DeviceLoop #" + i);
+			loopThreads[i].start();
+		}
+		System.out.println(String.format("%d devices against %s, %.2f samples/s " +
+				"each, for %ds.", deviceCount, server, rate, duration));
+
+		LoadStats total = new LoadStats();
+		long end = start + TimeUnit.SECONDS.toNanos(duration);
+		long nextReport = start + TimeUnit.SECONDS.toNanos(reportEvery);
+		long nextStorm = stormEvery > 0 ?
+				start + TimeUnit.SECONDS.toNanos(stormEvery) : Long.MAX_VALUE;
+		long lastReport = start;
+		while(true){
+			long now = System.nanoTime();
+			if(now >= end) break;
+			long wake = Math.min(end, Math.min(nextReport, nextStorm));
+			if(wake > now){
+				try{
+					Thread.sleep(TimeUnit.NANOSECONDS.toMillis(wake - now) + 1);
+				}
+				catch(InterruptedException ie){
+					break;
+				}
+				continue;
+			}
+			if(now >= nextStorm){
+				System.out.println(String.format("Reconnect storm: dropping %.0f%% " +
+						"of the devices.", stormFraction*100));
+				for(DeviceLoop loop : loops) loop.storm(stormFraction);
+				nextStorm += TimeUnit.SECONDS.toNanos(stormEvery);
+			}
+			if(now >= nextReport){
+				LoadStats interval = drain();
+				System.out.println(String.format("[%4ds] ",
+						TimeUnit.NANOSECONDS.toSeconds(now - start)) +
+						interval.report((now - lastReport)/1e9, connected()));
+				interval.drainInto(total);
+				lastReport = now;
+				nextReport += TimeUnit.SECONDS.toNanos(reportEvery);
+			}
+		}
+
+		int connected = connected();
+		for(DeviceLoop loop : loops) loop.shutdown();
+		for(Thread t : loopThreads){
+			try{
+				t.join();
+			}
+			catch(InterruptedException ie){
+				Thread.currentThread().interrupt();
+			}
+		}
+		drain().drainInto(total);
+		System.out.println("Total: " +
+				total.report((System.nanoTime() - start)/1e9, connected));
+	}
+
+	/* Takes what the loops counted since the last call */
+	private LoadStats drain(){
+		LoadStats stats = new LoadStats();
+		for(DeviceLoop loop : loops) loop.getStats().drainInto(stats);
+		return stats;
+	}
+
+	private int connected(){
+		int connected = 0;
+		for(DeviceLoop loop : loops) connected += loop.getStats().getConnected();
+		return connected;
+	}
+}
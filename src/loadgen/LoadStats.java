@@ -0,0 +1,168 @@
+package loadgen;
+
+/**
+ * Counters and an ACK latency histogram of simulated devices. Each
+ * {@link DeviceLoop} updates its own; the generator drains them into
+ * totals once per report.
+ * <p>
+ * Latencies go into log-linear buckets: 16 per power of two, so any
+ * percentile is within about 6% of the true value.
+ * @author jay
+ *
+ */
+public class LoadStats {
+
+	/* Sub-buckets per power of two, as a shift */
+	private static final int SUB_BITS = 4;
+	private static final int SUB_COUNT = 1 << SUB_BITS;
+
+	/* Up to 2^40 us, longer than any run */
+	private static final int BUCKETS = (40 - SUB_BITS + 1)*SUB_COUNT;
+
+	private long[] latencies;
+	private long latencyCount;
+	private long latencyMax;
+
+	private long sent;
+	private long resent;
+	private long lost;
+	private long blocked;
+	private long acked;
+	private long timedOut;
+	private long unmatched;
+	private long commands;
+	private long replies;
+	private long connects;
+	private long connectFailures;
+	private long disconnects;
+
+	/* Gauge, not drained */
+	private int connected;
+
+	public LoadStats(){
+		this.latencies = new long[BUCKETS];
+	}
+
+	/**
+	 * Counts an ACK of a packet sent once.
+	 * @param micros Time from send to ACK [us].
+	 */
+	public synchronized void ackLatency(long micros){
+		acked++;
+		latencies[bucket(Math.max(0, micros))]++;
+		latencyCount++;
+		latencyMax = Math.max(latencyMax, micros);
+	}
+
+	/* Counters, updated by the device loops */
+
+	public synchronized void sent(){ sent++; }
+	public synchronized void resent(){ resent++; }
+	public synchronized void lost(){ lost++; }
+	public synchronized void blocked(){ blocked++; }
+	public synchronized void ackedResent(){ acked++; }
+	public synchronized void timedOut(){ timedOut++; }
+	public synchronized void unmatched(){ unmatched++; }
+	public synchronized void command(){ commands++; }
+	public synchronized void replied(){ replies++; }
+	public synchronized void connectFailed(){ connectFailures++; }
+
+	public synchronized void connected(){
+		connects++;
+		connected++;
+	}
+
+	public synchronized void disconnected(){
+		disconnects++;
+		connected--;
+	}
+
+	public synchronized int getConnected(){
+		return connected;
+	}
+
+	/**
+	 * Adds everything counted since the last drain to another instance and
+	 * starts counting from zero.
+	 * @param into Stats to add to.
+	 */
+	public void drainInto(LoadStats into){
+		synchronized(this){
+			synchronized(into){
+				for(int i=0;i<BUCKETS;i++){
+					into.latencies[i] += latencies[i];
+					latencies[i] = 0;
+				}
+				into.latencyCount += latencyCount;
+				into.latencyMax = Math.max(into.latencyMax, latencyMax);
+				into.sent += sent;
+				into.resent += resent;
+				into.lost += lost;
+				into.blocked += blocked;
+				into.acked += acked;
+				into.timedOut += timedOut;
+				into.unmatched += unmatched;
+				into.commands += commands;
+				into.replies += replies;
+				into.connects += connects;
+				into.connectFailures += connectFailures;
+				into.disconnects += disconnects;
+				latencyCount = 0;
+				latencyMax = 0;
+				sent = resent = lost = blocked = acked = timedOut = unmatched = 0;
+				commands = replies = connects = connectFailures = disconnects = 0;
+			}
+		}
+	}
+
+	/**
+	 * Latency below which a fraction of the ACKs arrived.
+	 * @param fraction Fraction, e.g. 0.99.
+	 * @return Upper bound of the bucket holding the percentile [us], 0 if
+	 * there are no samples.
+	 */
+	public synchronized long percentile(double fraction){
+		if(latencyCount == 0) return 0;
+		long rank = (long) Math.ceil(fraction*latencyCount);
+		long seen = 0;
+		for(int i=0;i<BUCKETS;i++){
+			seen += latencies[i];
+			if(seen >= Math.max(rank, 1)) return Math.min(upperBound(i), latencyMax);
+		}
+		return latencyMax;
+	}
+
+	/* Bucket of a value: exact below SUB_COUNT, then SUB_COUNT per power
+	 * of two */
+	private static int bucket(long v){
+		if(v < SUB_COUNT) return (int) v;
+		int exp = 63 - Long.numberOfLeadingZeros(v);
+		if(exp >= 40) return BUCKETS - 1;
+		int sub = (int) (v >>> (exp - SUB_BITS)) & (SUB_COUNT - 1);
+		return (exp - SUB_BITS + 1)*SUB_COUNT + sub;
+	}
+
+	private static long upperBound(int bucket){
+		if(bucket < SUB_COUNT) return bucket;
+		int exp = bucket/SUB_COUNT + SUB_BITS - 1;
+		int sub = bucket % SUB_COUNT;
+		return ((long) (SUB_COUNT + sub + 1) << (exp - SUB_BITS)) - 1;
+	}
+
+	/**
+	 * One line report of the counters and latencies.
+	 * @param seconds Time the counts were collected over, for rates.
+	 * @param connected Devices connected now.
+	 * @return Report.
+	 */
+	public synchronized String report(double seconds, int connected){
+		return String.format("%d connected (%d connects, %d failed, %d " +
+				"dropped), sent %.0f samples/s (%d resent, %d lost, %d blocked by " +
+				"window), acked %.0f frames/s (%d timed out, %d unmatched), %d server " +
+				"commands, %d replies; ACK latency us p50 %d p90 %d p99 %d " +
+				"p99.9 %d max %d", connected, connects, connectFailures,
+				disconnects, sent/seconds, resent, lost, blocked, acked/seconds,
+				timedOut, unmatched, commands, replies, percentile(0.5),
+				percentile(0.9), percentile(0.99), percentile(0.999), latencyMax);
+	}
+}
@@ -0,0 +1,398 @@
+package loadgen;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+
+import mxproto.MxDefs;
+import mxproto.MxFrameDecoder;
+import mxproto.MxFrameListener;
+import mxproto.MxPacketView;
+import mxproto.MxPacketWriter;
+
+/**
+ * One simulated MX unit. Sends GPS events at the loop's rate and resends
+ * them until ACKed, ACKs everything the server sends, and answers analog
+ * reads. Runs on its {@link DeviceLoop}'s thread only.
+ * @author jay
+ *
+ */
+public class SimulatedDevice implements MxFrameListener {
+
+	/* 4 bit sequence numbers */
+	private static final int SEQ_SPACE = 16;
+
+	/* Sends of a frame after the first before giving up on it */
+	private static final int MAX_RESENDS = 2;
+
+	/* Aux bytes before the sample of an event, and before the value of a
+	 * read reply, type included */
+	private static final int EVENT_AUX = 3;
+	private static final int READ_REPLY_AUX = 4;
+
+	private int id;
+	private DeviceLoop loop;
+	private LoadStats stats;
+
+	private SocketChannel channel;
+	private SelectionKey key;
+	private boolean connected;
+	private long reconnectAt;
+
+	private MxFrameDecoder decoder;
+	private MxPacketView view;
+
+	/* Bytes not yet taken by the socket, in write mode */
+	private ByteBuffer out;
+
+	/* Frames are built here before being sent or delayed */
+	private ByteBuffer frame;
+
+	/* Sent and awaiting ACK, indexed by sequence number */
+	private int nextSeq;
+	private boolean[] pending;
+	private byte[][] frames;
+	private int[] lengths;
+	private long[] sentAt;
+	private int[] resends;
+	private int pendingCount;
+
+	/* Responses held back by the loop's delay, with their due times */
+	private ArrayDeque<byte[]> delayed;
+	private ArrayDeque<Long> delayedDue;
+
+	private long nextSample;
+	private int latitude;
+	private int longitude;
+	private int direction;
+
+	/**
+	 * Create a device, not yet connected.
+	 * @param id Numerical ID of the device.
+	 * @param loop Loop serving the device.
+	 * @param connectAt When to first connect, in System.nanoTime().
+	 */
+	public SimulatedDevice(int id, DeviceLoop loop, long connectAt){
+		this.id = id;
+		this.loop = loop;
+		this.stats = loop.getStats();
+		this.reconnectAt = connectAt;
+		this.decoder = new MxFrameDecoder();
+		this.decoder.attach(ByteBuffer.allocate(4*MxDefs.PACKET_MAX_SIZE));
+		this.view = new MxPacketView();
+		this.out = ByteBuffer.allocate(16*MxDefs.PACKET_MAX_SIZE);
+		this.frame = ByteBuffer.allocate(MxDefs.PACKET_MAX_SIZE);
+		this.pending = new boolean[SEQ_SPACE];
+		this.frames = new byte[SEQ_SPACE][MxDefs.PACKET_MAX_SIZE];
+		this.lengths = new int[SEQ_SPACE];
+		this.sentAt = new long[SEQ_SPACE];
+		this.resends = new int[SEQ_SPACE];
+		this.delayed = new ArrayDeque<byte[]>();
+		this.delayedDue = new ArrayDeque<Long>();
+		/* Spread over roughly Scandinavia */
+		this.latitude = 55000000 + loop.getRandom().nextInt(10000000);
+		this.longitude = 10000000 + loop.getRandom().nextInt(10000000);
+	}
+
+	@Override
+	public String toString(){
+		return "SimulatedDevice #" + id;
+	}
+
+	/**
+	 * Starts connecting.
+	 * @param channel Unconnected channel.
+	 * @param key Its key in the loop's selector.
+	 */
+	void connecting(SocketChannel channel, SelectionKey key){
+		this.channel = channel;
+		this.key = key;
+	}
+
+	/**
+	 * Completes a connect the selector reported.
+	 * @param now Current System.nanoTime().
+	 */
+	void finishConnect(long now){
+		try{
+			if(!channel.finishConnect()) return;
+		}
+		catch(IOException ioe){
+			stats.connectFailed();
+			close();
+			reconnectAt = now + loop.reconnectDelay();
+			return;
+		}
+		connected = true;
+		key.interestOps(SelectionKey.OP_READ);
+		stats.connected();
+		/* Spread the first samples over the interval */
+		nextSample = now + (long) (loop.getRandom().nextDouble()*loop.getSampleInterval());
+	}
+
+	/**
+	 * Reads and handles whatever the server sent.
+	 * @param now Current System.nanoTime().
+	 */
+	void read(long now){
+		try{
+			int n = decoder.readFrom(channel);
+			if(n < 0){
+				disconnect(now + loop.reconnectDelay());
+				return;
+			}
+			decoder.decode(this);
+		}
+		catch(IOException ioe){
+			disconnect(now + loop.reconnectDelay());
+			return;
+		}
+		flush(now);
+	}
+
+	/**
+	 * Sends due samples, resends and delayed responses, or reconnects.
+	 * @param now Current System.nanoTime().
+	 */
+	void tick(long now){
+		if(!connected){
+			if(channel == null && now >= reconnectAt) loop.connect(this);
+			return;
+		}
+		if(now >= nextSample){
+			sendSample(now);
+			nextSample += loop.getSampleInterval();
+			/* Fell behind, e.g. after a stall, don't burst */
+			if(nextSample < now) nextSample = now + loop.getSampleInterval();
+		}
+		if(pendingCount > 0) for(int seq=0;seq<SEQ_SPACE;seq++){
+			if(!pending[seq] || now - sentAt[seq] < loop.getResendTimeout()) continue;
+			if(resends[seq] >= MAX_RESENDS){
+				stats.timedOut();
+				release(seq);
+			}
+			else{
+				resends[seq]++;
+				sentAt[seq] = now;
+				stats.resent();
+				transmit(frames[seq], lengths[seq]);
+			}
+		}
+		while(!delayedDue.isEmpty() && delayedDue.peek() <= now){
+			delayedDue.poll();
+			byte[] response = delayed.poll();
+			transmit(response, response.length);
+		}
+		flush(now);
+	}
+
+	/**
+	 * Writes what the socket takes of the pending bytes.
+	 * @param now Current System.nanoTime().
+	 */
+	void flush(long now){
+		if(!connected || out.position() == 0) return;
+		out.flip();
+		try{
+			channel.write(out);
+		}
+		catch(IOException ioe){
+			out.clear();
+			disconnect(now + loop.reconnectDelay());
+			return;
+		}
+		finally{
+			if(connected) out.compact();
+		}
+		key.interestOps(out.position() > 0 ?
+				SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+	}
+
+	/**
+	 * Drops the connection, as a unit losing coverage or rebooting.
+	 * @param reconnectAt When to connect again, in System.nanoTime().
+	 */
+	void disconnect(long reconnectAt){
+		if(connected) stats.disconnected();
+		connected = false;
+		close();
+		this.reconnectAt = reconnectAt;
+		/* A new connection starts over */
+		decoder.discard();
+		out.clear();
+		for(int seq=0;seq<SEQ_SPACE;seq++) pending[seq] = false;
+		pendingCount = 0;
+		delayed.clear();
+		delayedDue.clear();
+	}
+
+	boolean isConnected(){
+		return connected;
+	}
+
+	/**
+	 * Closes the connection without counting it as dropped, at the end of
+	 * a run.
+	 */
+	void close(){
+		if(channel == null) return;
+		try{
+			channel.close();
+		}
+		catch(IOException ioe){
+			// Swallow
+		}
+		channel = null;
+		key = null;
+	}
+
+	@Override
+	public void onFrame(ByteBuffer buf, int offset, int length){
+		MxPacketView packet = view.wrap(buf, offset, length);
+		long now = System.nanoTime();
+		if(packet.isAck()){
+			/* The server ACKs with SEQ first, then CRC */
+			int seq = packet.getData8(0) & 0x0F;
+			if(packet.getDataLength() >= 2 && pending[seq]
+					&& (frames[seq][MxDefs.CRC_OFFSET] & 0xFF) == packet.getData8(1)){
+				if(resends[seq] == 0) stats.ackLatency((now - sentAt[seq])/1000);
+				else stats.ackedResent();
+				release(seq);
+			}
+			else{
+				stats.unmatched();
+			}
+			return;
+		}
+
+		stats.command();
+		/* Units ACK with CRC first, then SEQ, as MxSession.matchQueue reads */
+		frame.clear();
+		int start = MxPacketWriter.begin(frame, 0, 0, 0, 0, MxDefs.CMD_ACK);
+		frame.put((byte) packet.getCRC());
+		frame.put((byte) ((packet.getFlags() << 4) | packet.getSeq()));
+		MxPacketWriter.finish(frame, start);
+		respond(now);
+
+		if(packet.getCmdId() == MxDefs.CMD_READ
+				&& packet.getDst() == MxDefs.FUNC_ANALOG
+				&& packet.getDataLength() >= 2){
+			int seq = claimSeq();
+			if(seq < 0){
+				stats.blocked();
+				return;
+			}
+			int type = packet.getData16(0);
+			frame.clear();
+			start = MxPacketWriter.begin(frame, 0, seq, MxDefs.FUNC_ANALOG,
+					packet.getSrc(), MxDefs.CMD_READ_REPLY);
+			frame.putShort((short) type);
+			for(int i=2;i<READ_REPLY_AUX;i++) frame.put((byte) 0);
+			frame.putShort((short) analogValue(type));
+			MxPacketWriter.finish(frame, start);
+			track(seq, now + loop.getDelay());
+			respond(now);
+			stats.replied();
+		}
+	}
+
+	@Override
+	public void onResync(int skipped){
+		/* Server sent garbage - counted as unmatched */
+		stats.unmatched();
+	}
+
+	/* Sends a GPS event, if the window has room */
+	private void sendSample(long now){
+		int seq = claimSeq();
+		if(seq < 0){
+			stats.blocked();
+			return;
+		}
+		/* Moves a little between samples */
+		direction = (direction + loop.getRandom().nextInt(21) - 10 + 360) % 360;
+		latitude += loop.getRandom().nextInt(201) - 100;
+		longitude += loop.getRandom().nextInt(201) - 100;
+		int packedTime = loop.packedTime();
+
+		frame.clear();
+		int start = MxPacketWriter.begin(frame, 0, seq, MxDefs.FUNC_GPS,
+				MxDefs.FUNC_APPLICATION, MxDefs.CMD_EVENT);
+		for(int i=0;i<EVENT_AUX;i++) frame.put((byte) 0);
+		frame.putInt(packedTime);
+		frame.putShort((short) (System.currentTimeMillis() % 1000));
+		frame.putInt(packedTime);
+		frame.put((byte) 1); // Fix
+		frame.putInt(latitude);
+		frame.putInt(longitude);
+		frame.putShort((short) (20 + loop.getRandom().nextInt(80)));
+		frame.putShort((short) direction);
+		frame.put((byte) (4 + loop.getRandom().nextInt(8)));
+		MxPacketWriter.finish(frame, start);
+		track(seq, now);
+		transmit(frame.array(), frame.position());
+		stats.sent();
+	}
+
+	/* Next free sequence number, or -1 if it is still awaiting its ACK */
+	private int claimSeq(){
+		int seq = nextSeq;
+		if(pending[seq]) return -1;
+		nextSeq = (seq + 1) % SEQ_SPACE;
+		return seq;
+	}
+
+	/* Keeps the frame just built for matching its ACK and resending */
+	private void track(int seq, long now){
+		System.arraycopy(frame.array(), 0, frames[seq], 0, frame.position());
+		lengths[seq] = frame.position();
+		sentAt[seq] = now;
+		resends[seq] = 0;
+		pending[seq] = true;
+		pendingCount++;
+	}
+
+	private void release(int seq){
+		pending[seq] = false;
+		pendingCount--;
+	}
+
+	/* Sends the frame just built, after the loop's delay if there is one */
+	private void respond(long now){
+		if(loop.getDelay() <= 0){
+			transmit(frame.array(), frame.position());
+			return;
+		}
+		byte[] response = new byte[frame.position()];
+		System.arraycopy(frame.array(), 0, response, 0, response.length);
+		delayed.add(response);
+		delayedDue.add(now + loop.getDelay());
+	}
+
+	/* Queues a frame for the socket, unless the loop's loss rate drops it */
+	private void transmit(byte[] bytes, int length){
+		if(loop.getLoss() > 0 && loop.getRandom().nextDouble() < loop.getLoss()){
+			stats.lost();
+			return;
+		}
+		/* Server stopped reading; the frame is as good as lost */
+		if(out.remaining() < length){
+			stats.lost();
+			return;
+		}
+		out.put(bytes, 0, length);
+	}
+
+	/* A plausible reading for an analog type */
+	private int analogValue(int type){
+		switch(type){
+			case MxDefs.ANALOG_INPUT_VOLTAGE: return 12000 + loop.getRandom().nextInt(2000);
+			case MxDefs.ANALOG_LI_ION_VOLTAGE: return 3600 + loop.getRandom().nextInt(600);
+			case MxDefs.ANALOG_TEMP1:
+			case MxDefs.ANALOG_TEMP2: return 150 + loop.getRandom().nextInt(100);
+			default: return 4000 + loop.getRandom().nextInt(16000);
+		}
+	}
+}
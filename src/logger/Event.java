@@ -0,0 +1,100 @@
+package logger;
+
+/**
+ * A kind of event that is logged often, e.g. once per packet. Its text is
+ * fixed and only its values vary, so the binary {@link EventLog} stores
+ * the text once and each occurrence as a small fixed size record.
+ * <p>
+ * In the text, "{}" stands for the next value, "{.n}" for the next value
+ * divided by 10^n and "{s}" for the string argument.
+ * @author jay
+ *
+ */
+public class Event {
+
+	/* Most int values an event carries */
+	public static final int MAX_VALUES = 6;
+
+	final LogLevel level;
+	final String text;
+
+	/* Id in the event log that last wrote it */
+	volatile EventLog owner;
+	volatile int id;
+
+	/**
+	 * Create an event kind. Create each once, as a constant.
+	 * @param level Level of every occurrence.
+	 * @param text Text with placeholders for the values.
+	 */
+	public Event(LogLevel level, String text){
+		this.level = level;
+		this.text = text;
+		this.id = -1;
+	}
+
+	public LogLevel getLevel(){
+		return level;
+	}
+
+	public String getText(){
+		return text;
+	}
+
+	/**
+	 * Renders an occurrence as the text logger and the decoder print it.
+	 * @param sb Where to append it.
+	 * @param text Event text.
+	 * @param session Session, or -1 for none.
+	 * @param str String argument, or null.
+	 * @param values Values.
+	 * @param count Number of values.
+	 */
+	public static void render(StringBuilder sb, String text, int session,
+			String str, int[] values, int count){
+		if(session >= 0) sb.append("Session #").append(session).append(": ");
+		int next = 0;
+		int i = 0;
+		while(i < text.length()){
+			char c = text.charAt(i);
+			int end = c == '{' ? text.indexOf('}', i) : -1;
+			if(end < 0){
+				sb.append(c);
+				i++;
+				continue;
+			}
+			String spec = text.substring(i + 1, end);
+			if(spec.equals("s")){
+				sb.append(str);
+			}
+			else if(next >= count){
+				sb.append('?');
+			}
+			else if(spec.startsWith(".")){
+				appendScaled(sb, values[next++], spec.length() > 1 ?
+						spec.charAt(1) - '0' : 0);
+			}
+			else{
+				sb.append(values[next++]);
+			}
+			i = end + 1;
+		}
+	}
+
+	/* Appends value / 10^decimals with all decimals, without floats */
+	private static void appendScaled(StringBuilder sb, int value, int decimals){
+		long v = value;
+		if(v < 0){
+			sb.append('-');
+			v = -v;
+		}
+		long scale = 1;
+		for(int i=0;i<decimals;i++) scale *= 10;
+		sb.append(v / scale);
+		if(decimals == 0) return;
+		sb.append('.');
+		String fraction = Long.toString(v % scale);
+		for(int i=fraction.length();i<decimals;i++) sb.append('0');
+		sb.append(fraction);
+	}
+}
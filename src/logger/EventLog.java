@@ -0,0 +1,339 @@
+package logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import utils.SegmentFiles;
+
+/**
+ * Binary log of {@link Event}s, for logging every packet without the cost
+ * of text. Each occurrence is a fixed size record in a memory mapped
+ * segment file; event texts and string arguments are stored once, in a
+ * string table, and referred to by id. {@link EventLogDecoder} turns the
+ * records back into text.
+ * <p>
+ * A new segment is started when the current one is full or older than the
+ * rotation interval, and the oldest are deleted beyond maxSegments. The
+ * next segment is mapped ahead, and old ones deleted, by a thread of the
+ * log's own, so appending never touches the file system; events that fill
+ * a segment before the next is ready are lost. Since records go straight
+ * to the page cache, nothing logged is lost if the process dies.
+ * <p>
+ * Record layout, big endian:
+ * <pre>
+ *  0  time, ms since the epoch; 0 marks the end of a segment
+ *  8  session, -1 for none
+ *  12 event text id
+ *  16 string argument id, -1 for none
+ *  20 level (ordinal)
+ *  21 number of values
+ *  24 six int values
+ * </pre>
+ * @author jay
+ *
+ */
+public class EventLog {
+
+	public static final int RECORD_SIZE = 48;
+	public static final long DEFAULT_SEGMENT_SIZE = 64L*1024*1024;
+	public static final long DEFAULT_ROTATE_INTERVAL = 60*60*1000;
+	public static final int DEFAULT_MAX_SEGMENTS = 48;
+
+	/* Distinct strings kept; later ones are logged as missing */
+	public static final int MAX_STRINGS = 1024*1024;
+
+	static final String STRINGS_FILE = "strings.dat";
+	static final String SEGMENT_PREFIX = "events-";
+	static final String SEGMENT_SUFFIX = ".bin";
+
+	/* Record fields */
+	static final int TIME = 0;
+	static final int SESSION = 8;
+	static final int EVENT = 12;
+	static final int STRING = 16;
+	static final int LEVEL = 20;
+	static final int COUNT = 21;
+	static final int VALUES = 24;
+
+	/* String id when the table is full */
+	static final int NO_STRING = -1;
+	static final int LOST_STRING = -2;
+
+	private File dir;
+	private long segmentSize;
+	private long rotateInterval;
+	private int maxSegments;
+
+	/* Segment files, the next mapped ahead */
+	private SegmentFiles files;
+
+	/* Current segment, guarded by the lock */
+	private ReentrantLock lock;
+	private MappedByteBuffer segment;
+	private long segmentDeadline;
+	private int position;
+	private long written;
+	private long lost;
+
+	/* String table, appended to under its own monitor */
+	private ConcurrentHashMap<String, Integer> strings;
+	private FileChannel stringsFile;
+	private int nextString;
+
+	/**
+	 * Create a log with default segment size, rotation and retention.
+	 * @param dir Directory of the log; created if needed.
+	 */
+	public EventLog(File dir){
+		this(dir, DEFAULT_SEGMENT_SIZE, DEFAULT_ROTATE_INTERVAL,
+				DEFAULT_MAX_SEGMENTS);
+	}
+
+	/**
+	 * Create a log.
+	 * @param dir Directory of the log; created if needed.
+	 * @param segmentSize Bytes per segment.
+	 * @param rotateInterval Longest time a segment is written to, in ms.
+	 * @param maxSegments Segments kept.
+	 */
+	public EventLog(File dir, long segmentSize, long rotateInterval,
+			int maxSegments){
+		this.dir = dir;
+		this.segmentSize = Math.max(RECORD_SIZE,
+				Math.min(segmentSize, Integer.MAX_VALUE) / RECORD_SIZE * RECORD_SIZE);
+		this.rotateInterval = rotateInterval;
+		this.maxSegments = Math.max(1, maxSegments);
+		this.files = new SegmentFiles(dir, SEGMENT_PREFIX, SEGMENT_SUFFIX,
+				this.segmentSize);
+		this.lock = new ReentrantLock();
+		this.strings = new ConcurrentHashMap<String, Integer>();
+	}
+
+	/**
+	 * Loads the string table and starts a new segment after any existing
+	 * ones.
+	 * @throws IOException If the directory or files can't be written.
+	 */
+	public void open() throws IOException {
+		files.createDir();
+		Map<Integer, String> table = new HashMap<Integer, String>();
+		long valid = readStrings(dir, table);
+		for(Map.Entry<Integer, String> e : table.entrySet()){
+			strings.put(e.getValue(), e.getKey());
+			nextString = Math.max(nextString, e.getKey() + 1);
+		}
+		stringsFile = new RandomAccessFile(new File(dir, STRINGS_FILE), "rw")
+				.getChannel();
+		/* Drop a string cut short by a crash */
+		stringsFile.truncate(valid);
+		stringsFile.position(valid);
+
+		long number = files.nextNumber();
+		MappedByteBuffer first = files.map(number);
+		lock.lock();
+		try{
+			segment = first;
+			segmentDeadline = System.currentTimeMillis() + rotateInterval;
+		}
+		finally{
+			lock.unlock();
+		}
+		files.startPreparer("EventLog", number + 1, maxSegments);
+	}
+
+	/**
+	 * Appends an occurrence of an event. Never blocks on I/O.
+	 * @param event Event kind.
+	 * @param session Session, or -1.
+	 * @param str String argument, or null.
+	 * @param count Number of values, up to six.
+	 */
+	public void append(Event event, int session, String str, int count,
+			int a, int b, int c, int d, int e, int f){
+		long now = System.currentTimeMillis();
+		int eventId = idOf(event);
+		int stringId = str == null ? NO_STRING : intern(str);
+		lock.lock();
+		try{
+			if(segment == null){
+				lost++;
+				return;
+			}
+			boolean full = position + RECORD_SIZE > segmentSize;
+			if(full || now >= segmentDeadline){
+				MappedByteBuffer n = files.takeNext();
+				if(n != null){
+					segment = n;
+					position = 0;
+					segmentDeadline = now + rotateInterval;
+				}
+				/* Late rotation by age is harmless, only a full one loses */
+				else if(full){
+					lost++;
+					return;
+				}
+			}
+			int p = position;
+			segment.putInt(p + SESSION, session);
+			segment.putInt(p + EVENT, eventId);
+			segment.putInt(p + STRING, stringId);
+			segment.put(p + LEVEL, (byte) event.level.ordinal());
+			segment.put(p + COUNT, (byte) count);
+			segment.putInt(p + VALUES, a);
+			segment.putInt(p + VALUES + 4, b);
+			segment.putInt(p + VALUES + 8, c);
+			segment.putInt(p + VALUES + 12, d);
+			segment.putInt(p + VALUES + 16, e);
+			segment.putInt(p + VALUES + 20, f);
+			/* Last, a record with a time is complete */
+			segment.putLong(p + TIME, now);
+			position += RECORD_SIZE;
+			written++;
+		}
+		finally{
+			lock.unlock();
+		}
+	}
+
+	/* Id of an event's text in this log */
+	private int idOf(Event event){
+		if(event.owner == this) return event.id;
+		int id = intern(event.text);
+		event.id = id;
+		event.owner = this;
+		return id;
+	}
+
+	/**
+	 * Finds the id of a string, adding it to the table if it is new.
+	 * @param str String.
+	 * @return Id, or LOST_STRING if the table is full or can't be written.
+	 */
+	public int intern(String str){
+		Integer id = strings.get(str);
+		if(id != null) return id;
+		synchronized(strings){
+			id = strings.get(str);
+			if(id != null) return id;
+			if(nextString >= MAX_STRINGS || stringsFile == null) return LOST_STRING;
+			byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+			ByteBuffer buf = ByteBuffer.allocate(8 + bytes.length);
+			buf.putInt(nextString).putInt(bytes.length).put(bytes).flip();
+			try{
+				while(buf.hasRemaining()) stringsFile.write(buf);
+			}
+			catch(IOException ioe){
+				return LOST_STRING;
+			}
+			strings.put(str, nextString);
+			return nextString++;
+		}
+	}
+
+	/**
+	 * Stops logging and flushes the current segment to disk. Later events
+	 * are counted as lost. The spare segment is deleted.
+	 */
+	public void close(){
+		MappedByteBuffer last;
+		lock.lock();
+		try{
+			last = segment;
+			segment = null;
+		}
+		finally{
+			lock.unlock();
+		}
+		files.close();
+		if(last != null) last.force();
+		synchronized(strings){
+			try{
+				if(stringsFile != null) stringsFile.close();
+			}
+			catch(IOException ioe){
+				// Swallow
+			}
+			stringsFile = null;
+		}
+	}
+
+	/* Metrics, for monitoring */
+
+	public long getWrittenCount(){
+		lock.lock();
+		try{
+			return written;
+		}
+		finally{
+			lock.unlock();
+		}
+	}
+
+	public long getLostCount(){
+		lock.lock();
+		try{
+			return lost;
+		}
+		finally{
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public String toString(){
+		return "EventLog: " + getWrittenCount() + " events written, " +
+				getLostCount() + " lost, " + strings.size() + " strings";
+	}
+
+	/* Files, shared with the decoder */
+
+	/**
+	 * Segments of a log, oldest first.
+	 * @param dir Directory of the log.
+	 * @return Segment files.
+	 */
+	static File[] listSegments(File dir){
+		return SegmentFiles.list(dir, SEGMENT_PREFIX, SEGMENT_SUFFIX);
+	}
+
+	/**
+	 * Reads the string table of a log.
+	 * @param dir Directory of the log.
+	 * @param table Filled with the strings by id.
+	 * @return Length of the table's complete entries.
+	 * @throws IOException If the table exists but can't be read.
+	 */
+	static long readStrings(File dir, Map<Integer, String> table)
+			throws IOException {
+		File file = new File(dir, STRINGS_FILE);
+		if(!file.exists()) return 0;
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try{
+			long length = raf.length();
+			long valid = 0;
+			while(valid + 8 <= length){
+				raf.seek(valid);
+				int id = raf.readInt();
+				int size = raf.readInt();
+				if(size < 0 || valid + 8 + size > length) break;
+				byte[] bytes = new byte[size];
+				raf.readFully(bytes);
+				table.put(id, new String(bytes, StandardCharsets.UTF_8));
+				valid += 8 + size;
+			}
+			return valid;
+		}
+		finally{
+			raf.close();
+		}
+	}
+}
@@ -0,0 +1,140 @@
+package logger;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Prints an {@link EventLog} as text, in the text logger's format.
+ * <pre>
+ * java -cp bin logger.EventLogDecoder DIR [-session N] [-level LEVEL]
+ *     [-from MS] [-to MS] [-match TEXT]
+ * </pre>
+ * -session keeps one session's events, -level those at or above a level,
+ * -from and -to those within a time range in ms since the epoch, and
+ * -match those whose text contains TEXT.
+ * @author jay
+ *
+ */
+public class EventLogDecoder {
+
+	private Map<Integer, String> strings;
+	private int session;
+	private int minLevel;
+	private long from;
+	private long to;
+	private String match;
+
+	private SimpleDateFormat timeFormat;
+	private Date date;
+	private StringBuilder line;
+	private int[] values;
+
+	public EventLogDecoder(Map<Integer, String> strings){
+		this.strings = strings;
+		this.session = -1;
+		this.minLevel = 0;
+		this.from = 0;
+		this.to = Long.MAX_VALUE;
+		this.match = null;
+		this.timeFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+		this.date = new Date();
+		this.line = new StringBuilder();
+		this.values = new int[Event.MAX_VALUES];
+	}
+
+	public static void main(String[] args){
+		if(args.length < 1){
+			System.err.println("Usage: logger.EventLogDecoder DIR [-session N] " +
+					"[-level LEVEL] [-from MS] [-to MS] [-match TEXT]");
+			System.exit(1);
+		}
+		File dir = new File(args[0]);
+		try{
+			Map<Integer, String> strings = new HashMap<Integer, String>();
+			EventLog.readStrings(dir, strings);
+			EventLogDecoder decoder = new EventLogDecoder(strings);
+			for(int i=1;i+1<args.length;i+=2){
+				String value = args[i + 1];
+				if(args[i].equals("-session")) decoder.session = Integer.parseInt(value);
+				else if(args[i].equals("-level"))
+					decoder.minLevel = LogLevel.valueOf(value.toUpperCase()).ordinal();
+				else if(args[i].equals("-from")) decoder.from = Long.parseLong(value);
+				else if(args[i].equals("-to")) decoder.to = Long.parseLong(value);
+				else if(args[i].equals("-match")) decoder.match = value;
+				else throw new IllegalArgumentException("Unknown option " + args[i]);
+			}
+			Writer out = new BufferedWriter(new OutputStreamWriter(System.out),
+					64*1024);
+			for(File segment : EventLog.listSegments(dir)) decoder.decode(segment, out);
+			out.flush();
+		}
+		catch(IOException ioe){
+			System.err.println("Cannot read " + dir + ": " + ioe.toString());
+			System.exit(1);
+		}
+		catch(IllegalArgumentException iae){
+			System.err.println(iae.getMessage());
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Prints the events of a segment that pass the filters.
+	 * @param segment Segment file.
+	 * @param out Where to print them.
+	 * @throws IOException
+	 */
+	public void decode(File segment, Writer out) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(segment, "r");
+		MappedByteBuffer buf;
+		try{
+			buf = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+					raf.length());
+		}
+		finally{
+			raf.close();
+		}
+		for(int p=0;p+EventLog.RECORD_SIZE<=buf.limit();p+=EventLog.RECORD_SIZE){
+			long time = buf.getLong(p + EventLog.TIME);
+			/* Rest of the segment was never written */
+			if(time == 0) break;
+			int recordSession = buf.getInt(p + EventLog.SESSION);
+			int level = buf.get(p + EventLog.LEVEL);
+			if(time < from || time > to || level < minLevel
+					|| (session >= 0 && recordSession != session))
+				continue;
+
+			String text = string(buf.getInt(p + EventLog.EVENT));
+			int stringId = buf.getInt(p + EventLog.STRING);
+			String str = stringId == EventLog.NO_STRING ? null : string(stringId);
+			int count = Math.min(buf.get(p + EventLog.COUNT), Event.MAX_VALUES);
+			for(int i=0;i<count;i++)
+				values[i] = buf.getInt(p + EventLog.VALUES + 4*i);
+
+			line.setLength(0);
+			date.setTime(time);
+			line.append(timeFormat.format(date)).append(' ')
+				.append(level >= 0 && level < LogLevel.values().length ?
+						LogLevel.values()[level].toString() : "?").append(": ");
+			Event.render(line, text, recordSession, str, values, count);
+			if(match != null && line.indexOf(match) < 0) continue;
+			line.append(System.lineSeparator());
+			out.append(line);
+		}
+	}
+
+	private String string(int id){
+		String str = strings.get(id);
+		return str != null ? str : "<string " + id + ">";
+	}
+}
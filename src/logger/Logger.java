@@ -4,34 +4,94 @@ import java.io.BufferedWriter;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Logs activity to a file or standard system streams.
+ * <p>
+ * Logging never blocks on I/O. Callers claim a slot in a preallocated ring
+ * and store the level, time, format and arguments there; a background
+ * thread formats the messages and writes them in batches. Arguments are
+ * only turned into text on that thread, so they must not change after
+ * being logged. Filtered messages cost a level check.
+ * <p>
+ * When the ring is full, DEBUG and INFO messages are dropped and counted,
+ * WARNING and FATAL ones wait for room.
+ * <p>
+ * {@link Event}s go to the binary {@link EventLog} instead, if one is set.
+ * Otherwise they take a slot like any message, with their int arguments
+ * stored as they are, and are rendered on the logger's thread too.
  * @author jay
  *
  */
 public class Logger {
-	
-	public LogLevel level;
+
+	public static final int DEFAULT_CAPACITY = 8*1024;
+
+	/* Longest the writer sleeps while there is nothing to write */
+	private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+
+	public volatile LogLevel level;
 	public String filepath;
-	
+
 	private PrintWriter print;
 	private boolean careful;
-	
+
+	/* Ring of messages, as parallel arrays. A slot is free for position p
+	 * when its sequence is p, and holds a message when it is p + 1 */
+	private int mask;
+	private AtomicLongArray sequences;
+	private LogLevel[] levels;
+	private long[] times;
+	private String[] formats;
+	private int[] argCounts;
+	private Object[] args1;
+	private Object[] args2;
+	private Object[] args3;
+
+	/* Event slots: kind, or null for a message, session and int values.
+	 * The string argument goes in formats */
+	private Event[] eventKinds;
+	private int[] sessions;
+	private int[] values;
+	private AtomicLong tail;
+	private long head;
+	private AtomicLong dropped;
+
+	private Thread writer;
+	private Thread shutdownHook;
+	private volatile boolean running;
+
+	/* Binary log of events, null to log them as text */
+	private volatile EventLog events;
+
+	/* Writer thread only */
+	private StringBuilder out;
+	private StringBuilder err;
+	private SimpleDateFormat timeFormat;
+	private Date date;
+	private int[] rendered;
+
 	/**
 	 * Creates a logger with the specified LogLevel threshold and file to write to.
 	 * @param level Logging threshold.
 	 * @param filepath File to write to.
-	 * @param careful Whether to keep re-initializing the writer (inefficient).
+	 * @param careful Whether to reopen the file for every batch of lines
+	 * (inefficient).
 	 */
 	public Logger(LogLevel level, String filepath, boolean careful){
 		this.level = level;
 		this.filepath = filepath;
 		if(filepath==null) this.filepath = "";
 		this.careful = careful;
-		
+
 		/* Only initiate PrintWriter once for efficiency. */
-		if(!careful && !filepath.equals("")){
+		if(!careful && !this.filepath.equals("")){
 			try{
 				print = new PrintWriter(
 						new BufferedWriter(new FileWriter(filepath, true)));
@@ -40,8 +100,48 @@ public class Logger {
 				System.err.println("WARNING: Failed to initialize logger.");
 			}
 		}
+
+		int capacity = Integer.highestOneBit(DEFAULT_CAPACITY);
+		this.mask = capacity - 1;
+		this.sequences = new AtomicLongArray(capacity);
+		for(int i=0;i<capacity;i++) sequences.set(i, i);
+		this.levels = new LogLevel[capacity];
+		this.times = new long[capacity];
+		this.formats = new String[capacity];
+		this.argCounts = new int[capacity];
+		this.args1 = new Object[capacity];
+		this.args2 = new Object[capacity];
+		this.args3 = new Object[capacity];
+		this.eventKinds = new Event[capacity];
+		this.sessions = new int[capacity];
+		this.values = new int[capacity*Event.MAX_VALUES];
+		this.tail = new AtomicLong(0);
+		this.head = 0;
+		this.dropped = new AtomicLong(0);
+		this.out = new StringBuilder();
+		this.err = new StringBuilder();
+		this.timeFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+		this.date = new Date();
+		this.rendered = new int[Event.MAX_VALUES];
+
+		this.running = true;
+		this.writer = new Thread(new Runnable(){
+			public void run(){
+				drain();
+			}
+		}, "Logger");
+		writer.setDaemon(true);
+		writer.start();
+
+		/* Write what is left when the JVM exits, unless disposed before */
+		this.shutdownHook = new Thread(new Runnable(){
+			public void run(){
+				dispose();
+			}
+		}, "Logger shutdown");
+		Runtime.getRuntime().addShutdownHook(shutdownHook);
 	}
-	
+
 	/**
 	 * Creates a file-less logger with the specified LogLevel threshold.
 	 * @param level Logging threshold.
@@ -50,7 +150,7 @@ public class Logger {
 	public Logger(LogLevel level, boolean careful){
 		this(level,"",true);
 	}
-	
+
 	/**
 	 * Creates a file-less logger with a LogLevel.INFO threshold.
 	 * @param careful Whether to keep re-initializing the write (inefficient).
@@ -58,54 +158,323 @@ public class Logger {
 	public Logger(boolean careful){
 		this(LogLevel.INFO,"",careful);
 	}
-	
+
 	/**
 	 * Creates a file-less logger with a LogLevel.INFO threshold.
 	 */
 	public Logger(){
 		this(LogLevel.INFO,"",true);
 	}
-	
+
+	/**
+	 * Checks if messages of a level are logged, for callers that need to
+	 * do work to build a message.
+	 * @param level The message's category.
+	 * @return True if it matches or exceeds the threshold.
+	 */
+	public boolean isEnabled(LogLevel level){
+		return level.ordinal() >= this.level.ordinal();
+	}
+
 	/**
 	 * Logs a message if its importance matches of exceeds the
-	 * current logging threshold. Falls back to system streams if 
+	 * current logging threshold. Falls back to system streams if
 	 * writing to file fails.
 	 * @param level The message's category.
-	 * @param message The message to log.
-	 */
-	public synchronized void log(LogLevel level, String message){
-		if(level.ordinal() >= this.level.ordinal()){
-			String format = String.format("%s: %s", level.toString(),message);
-			if(!filepath.equals("")){
-				try{
-					if(careful) print = new PrintWriter(
-							new BufferedWriter(new FileWriter(filepath, true)));
-					print.println(format);
-					if(careful) print.close();
-				}
-				catch(IOException ioe){
-					if(level.ordinal() >= LogLevel.WARNING.ordinal())
-						System.err.println(format);
-					else
-						System.out.println(format);
+	 * @param message The message to log, as is.
+	 */
+	public void log(LogLevel level, String message){
+		if(isEnabled(level)) enqueue(level, message, 0, null, null, null);
+	}
+
+	/**
+	 * Logs a message, formatted with String.format on the logger's thread.
+	 * @param level The message's category.
+	 * @param format Format string.
+	 * @param arg Argument, which must not change afterwards.
+	 */
+	public void log(LogLevel level, String format, Object arg){
+		if(isEnabled(level)) enqueue(level, format, 1, arg, null, null);
+	}
+
+	/**
+	 * @see #log(LogLevel, String, Object)
+	 */
+	public void log(LogLevel level, String format, Object arg1, Object arg2){
+		if(isEnabled(level)) enqueue(level, format, 2, arg1, arg2, null);
+	}
+
+	/**
+	 * @see #log(LogLevel, String, Object)
+	 */
+	public void log(LogLevel level, String format, Object arg1, Object arg2,
+			Object arg3){
+		if(isEnabled(level)) enqueue(level, format, 3, arg1, arg2, arg3);
+	}
+
+	/**
+	 * Sends events to a binary log instead of the text log from now on.
+	 * @param events Opened event log, or null for text.
+	 */
+	public void setEventLog(EventLog events){
+		this.events = events;
+	}
+
+	public EventLog getEventLog(){
+		return events;
+	}
+
+	/**
+	 * Logs an occurrence of an event, if its level is logged.
+	 * @param event Event kind.
+	 * @param session Session, or -1 for none.
+	 */
+	public void event(Event event, int session){
+		if(isEnabled(event.level)) event(event, session, null, 0, 0, 0, 0, 0, 0, 0);
+	}
+
+	/**
+	 * @see #event(Event, int)
+	 */
+	public void event(Event event, int session, int a){
+		if(isEnabled(event.level)) event(event, session, null, 1, a, 0, 0, 0, 0, 0);
+	}
+
+	/**
+	 * @see #event(Event, int)
+	 */
+	public void event(Event event, int session, int a, int b){
+		if(isEnabled(event.level)) event(event, session, null, 2, a, b, 0, 0, 0, 0);
+	}
+
+	/**
+	 * @see #event(Event, int)
+	 */
+	public void event(Event event, int session, int a, int b, int c, int d,
+			int e, int f){
+		if(isEnabled(event.level)) event(event, session, null, 6, a, b, c, d, e, f);
+	}
+
+	/**
+	 * @see #event(Event, int)
+	 * @param str String argument, interned by the binary log.
+	 */
+	public void event(Event event, int session, String str){
+		if(isEnabled(event.level)) event(event, session, str, 0, 0, 0, 0, 0, 0, 0);
+	}
+
+	private void event(Event event, int session, String str, int count,
+			int a, int b, int c, int d, int e, int f){
+		EventLog log = events;
+		if(log != null){
+			log.append(event, session, str, count, a, b, c, d, e, f);
+			return;
+		}
+		long time = System.currentTimeMillis();
+		long pos = claim(event.level);
+		if(pos < 0) return;
+		int index = (int) pos & mask;
+		levels[index] = event.level;
+		times[index] = time;
+		formats[index] = str;
+		argCounts[index] = count;
+		eventKinds[index] = event;
+		sessions[index] = session;
+		int v = index*Event.MAX_VALUES;
+		values[v] = a;
+		values[v + 1] = b;
+		values[v + 2] = c;
+		values[v + 3] = d;
+		values[v + 4] = e;
+		values[v + 5] = f;
+		sequences.set(index, pos + 1);
+	}
+
+	/* Claims a slot and fills it */
+	private void enqueue(LogLevel level, String format, int argCount,
+			Object arg1, Object arg2, Object arg3){
+		long time = System.currentTimeMillis();
+		long pos = claim(level);
+		if(pos < 0) return;
+		int index = (int) pos & mask;
+		levels[index] = level;
+		times[index] = time;
+		formats[index] = format;
+		argCounts[index] = argCount;
+		args1[index] = arg1;
+		args2[index] = arg2;
+		args3[index] = arg3;
+		/* Publishes the fields above to the writer */
+		sequences.set(index, pos + 1);
+	}
+
+	/* Claims the next slot, or returns -1 if the message is dropped. Waits
+	 * for room only for warnings */
+	private long claim(LogLevel level){
+		long pos = tail.get();
+		while(true){
+			int index = (int) pos & mask;
+			long diff = sequences.get(index) - pos;
+			if(diff == 0){
+				if(tail.compareAndSet(pos, pos + 1)) break;
+				pos = tail.get();
+			}
+			else if(diff < 0){
+				/* Full */
+				if(level.ordinal() < LogLevel.WARNING.ordinal() || !running){
+					dropped.incrementAndGet();
+					return -1;
 				}
+				LockSupport.unpark(writer);
+				Thread.yield();
+				pos = tail.get();
 			}
 			else{
-				if(level.ordinal() >= LogLevel.WARNING.ordinal())
-					System.err.println(format);
-				else
-					System.out.println(format);
+				pos = tail.get();
+			}
+		}
+		return pos;
+	}
+
+	/* Writer thread */
+	private void drain(){
+		while(running){
+			if(!writeBatch()) LockSupport.parkNanos(IDLE_PARK_NANOS);
+		}
+		/* Producers may still be finishing a slot */
+		while(writeBatch());
+	}
+
+	/* Formats and writes every message there is. Returns false if there
+	 * were none */
+	private boolean writeBatch(){
+		long lost = dropped.getAndSet(0);
+		if(lost > 0) append(LogLevel.WARNING, System.currentTimeMillis(),
+				lost + " log messages dropped.");
+		int count = 0;
+		while(true){
+			int index = (int) head & mask;
+			if(sequences.get(index) != head + 1) break;
+			if(eventKinds[index] != null){
+				appendEvent(index);
+				eventKinds[index] = null;
+				formats[index] = null;
+				sequences.set(index, head + mask + 1);
+				head++;
+				count++;
+				continue;
+			}
+			String message = formats[index];
+			try{
+				switch(argCounts[index]){
+					case 1: message = String.format(message, args1[index]); break;
+					case 2: message = String.format(message, args1[index],
+							args2[index]); break;
+					case 3: message = String.format(message, args1[index],
+							args2[index], args3[index]); break;
+				}
 			}
+			catch(RuntimeException re){
+				/* Bad format, keep the message as is */
+			}
+			append(levels[index], times[index], message);
+			formats[index] = null;
+			args1[index] = args2[index] = args3[index] = null;
+			sequences.set(index, head + mask + 1);
+			head++;
+			count++;
+		}
+		if(count == 0 && lost == 0) return false;
+		flush();
+		return true;
+	}
+
+	private void append(LogLevel level, long time, String message){
+		prefix(level, time).append(message).append(System.lineSeparator());
+	}
+
+	/* Renders the event in a slot */
+	private void appendEvent(int index){
+		StringBuilder sb = prefix(levels[index], times[index]);
+		System.arraycopy(values, index*Event.MAX_VALUES, rendered, 0,
+				Event.MAX_VALUES);
+		Event.render(sb, eventKinds[index].text, sessions[index], formats[index],
+				rendered, argCounts[index]);
+		sb.append(System.lineSeparator());
+	}
+
+	/* Starts a line in the stream for the level */
+	private StringBuilder prefix(LogLevel level, long time){
+		boolean toErr = filepath.equals("") &&
+				level.ordinal() >= LogLevel.WARNING.ordinal();
+		StringBuilder sb = toErr ? err : out;
+		date.setTime(time);
+		return sb.append(timeFormat.format(date)).append(' ')
+			.append(level.toString()).append(": ");
+	}
+
+	/* Writes the batch in one go per stream */
+	private void flush(){
+		if(!filepath.equals("")){
+			try{
+				if(careful) print = new PrintWriter(
+						new BufferedWriter(new FileWriter(filepath, true)));
+				if(print == null) throw new IOException("No writer.");
+				print.append(out);
+				if(careful) print.close();
+				else print.flush();
+				out.setLength(0);
+			}
+			catch(IOException ioe){
+				/* Fall back to the system streams */
+			}
+		}
+		if(out.length() > 0){
+			System.out.append(out);
+			System.out.flush();
+			out.setLength(0);
 		}
+		if(err.length() > 0){
+			System.err.append(err);
+			System.err.flush();
+			err.setLength(0);
+		}
+	}
+
+	/**
+	 * Messages dropped because the ring was full, since last written.
+	 * @return Count.
+	 */
+	public long getDroppedCount(){
+		return dropped.get();
 	}
-	
+
 	/**
-	 * SHALL be called upon end of use if careful is set to false. 
-	 * Careful is true by default.
+	 * Writes everything logged so far and stops the logger's thread. Later
+	 * messages are dropped. Called at JVM exit, if not before.
 	 */
 	public void dispose(){
+		if(!running) return;
+		running = false;
+		if(Thread.currentThread() != shutdownHook){
+			try{
+				Runtime.getRuntime().removeShutdownHook(shutdownHook);
+			}
+			catch(IllegalStateException ise){
+				// Exiting already, the hook finds the logger stopped
+			}
+		}
+		LockSupport.unpark(writer);
+		try{
+			writer.join();
+		}
+		catch(InterruptedException ie){
+			Thread.currentThread().interrupt();
+		}
 		if(print!=null){
 			print.close();
 		}
+		EventLog log = events;
+		if(log != null) log.close();
 	}
 }
@@ -0,0 +1,122 @@
+package mxproto;
+
+/**
+ * Decodes the GPS data section straight from the received frame into a
+ * {@link GpsRecord}, with integer arithmetic only. Nothing is allocated.
+ * <p>
+ * Layout, after the aux bytes:
+ * <pre>
+ *  0-3   timestamp, packed (see toEpochMillis)
+ *  4-5   timestamp fraction, ms
+ *  6-9   timestamp of the last valid fix, packed
+ *  10    fix valid
+ *  11-14 latitude, microdegrees
+ *  15-18 longitude, microdegrees
+ *  19-20 velocity
+ *  21-22 direction
+ *  23    satellites used
+ *  24-26 PDOP, HDOP, VDOP, tenths    (optional)
+ *  27-30 altitude                    (optional)
+ *  31-34 ids in fix                  (optional)
+ * </pre>
+ * @author jay
+ *
+ */
+public class GpsDecoder {
+
+	/* Bytes up to and including the satellites used */
+	public static final int MIN_LENGTH = 24;
+
+	private static final int DOP_END = 27;
+	private static final int ALTITUDE_END = 31;
+	private static final int IDS_END = 35;
+
+	private static final long MILLIS_PER_DAY = 24*60*60*1000L;
+
+	/**
+	 * Decodes a GPS sample.
+	 * @param data Packet holding the sample.
+	 * @param offset Aux bytes before the sample in the data section.
+	 * @param record Record to fill; cleared first.
+	 * @return False if the data section is too short to hold a sample.
+	 */
+	public static boolean decode(MxPacketView data, int offset, GpsRecord record){
+		record.clear();
+		int length = data.getDataLength() - offset;
+		if(length < MIN_LENGTH) return false;
+
+		long timestamp = toEpochMillis(data.getData32(offset));
+		int fraction = data.getData16(offset + 4);
+		if(timestamp >= 0 && fraction < 1000) timestamp += fraction;
+		record.timestamp = timestamp;
+		record.timestampLastValid = toEpochMillis(data.getData32(offset + 6));
+
+		record.fix = data.getData8(offset + 10);
+		record.latitude = data.getData32(offset + 11);
+		record.longitude = data.getData32(offset + 15);
+		record.velocity = data.getData16(offset + 19);
+		record.direction = data.getData16(offset + 21);
+		record.satellites = data.getData8(offset + 23);
+
+		if(length >= DOP_END){
+			record.pdop = data.getData8(offset + 24);
+			record.hdop = data.getData8(offset + 25);
+			record.vdop = data.getData8(offset + 26);
+			record.hasDop = true;
+		}
+		if(length >= ALTITUDE_END){
+			record.altitude = data.getData32(offset + 27);
+			record.hasAltitude = true;
+		}
+		if(length >= IDS_END){
+			record.idsInFix = data.getData32(offset + 31);
+			record.hasIdsInFix = true;
+		}
+		return true;
+	}
+
+	/**
+	 * Converts a packed GPS timestamp to UTC milliseconds. From the lowest
+	 * bit: second (6 bits), minute (6), hour (5), day (5), month (4) and
+	 * year after 2000 (5).
+	 * @param packed Packed timestamp.
+	 * @return Milliseconds since the epoch, or -1 if a field is out of
+	 * range, e.g. for an all zero timestamp.
+	 */
+	public static long toEpochMillis(int packed){
+		int second = packed & 0x3f;
+		int minute = (packed >>> 6) & 0x3f;
+		int hour = (packed >>> 12) & 0x1f;
+		int day = (packed >>> 17) & 0x1f;
+		int month = (packed >>> 22) & 0x0f;
+		int year = 2000 + ((packed >>> 26) & 0x1f);
+		if(second > 59 || minute > 59 || hour > 23 || month < 1 || month > 12
+				|| day < 1 || day > daysInMonth(year, month))
+			return -1;
+		return daysFromEpoch(year, month, day)*MILLIS_PER_DAY
+				+ ((hour*60 + minute)*60 + second)*1000L;
+	}
+
+	/* Days from 1970-01-01, for years from 2000 */
+	private static long daysFromEpoch(int year, int month, int day){
+		/* Count years from March, so the leap day is the last of its year */
+		if(month <= 2) year--;
+		int era = year/400;
+		int yearOfEra = year - era*400;
+		int dayOfYear = (153*(month > 2 ? month - 3 : month + 9) + 2)/5 + day - 1;
+		int dayOfEra = yearOfEra*365 + yearOfEra/4 - yearOfEra/100 + dayOfYear;
+		return era*146097L + dayOfEra - 719468;
+	}
+
+	private static int daysInMonth(int year, int month){
+		switch(month){
+			case 2:
+				boolean leap = (year % 4 == 0 && year % 100 != 0) || year % 400 == 0;
+				return leap ? 29 : 28;
+			case 4: case 6: case 9: case 11:
+				return 30;
+			default:
+				return 31;
+		}
+	}
+}
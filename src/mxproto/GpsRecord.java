@@ -0,0 +1,150 @@
+package mxproto;
+
+/**
+ * One decoded GPS sample, as primitives. Filled by {@link GpsDecoder} and
+ * reused for every sample of a session.
+ * @author jay
+ *
+ */
+public class GpsRecord {
+
+	/* Milliseconds since the epoch, UTC. -1 if the unit sent none */
+	long timestamp;
+	long timestampLastValid;
+
+	int fix;
+	/* Microdegrees, as sent */
+	int latitude;
+	int longitude;
+	int velocity;
+	int direction;
+	int satellites;
+	/* Tenths, as sent */
+	int pdop;
+	int hdop;
+	int vdop;
+	int altitude;
+	/* Bit per satellite used in the fix */
+	int idsInFix;
+
+	/* Optional fields present in the last sample */
+	boolean hasDop;
+	boolean hasAltitude;
+	boolean hasIdsInFix;
+
+	public GpsRecord(){
+		clear();
+	}
+
+	/**
+	 * Resets all fields, for decoding the next sample.
+	 */
+	public void clear(){
+		timestamp = -1;
+		timestampLastValid = -1;
+		fix = latitude = longitude = velocity = direction = satellites = 0;
+		pdop = hdop = vdop = altitude = idsInFix = 0;
+		hasDop = hasAltitude = hasIdsInFix = false;
+	}
+
+	public boolean hasTimestamp(){
+		return timestamp >= 0;
+	}
+
+	public long getTimestamp(){
+		return timestamp;
+	}
+
+	public boolean hasTimestampLastValid(){
+		return timestampLastValid >= 0;
+	}
+
+	public long getTimestampLastValid(){
+		return timestampLastValid;
+	}
+
+	public int getFix(){
+		return fix;
+	}
+
+	/**
+	 * Latitude, exact to the microdegree sent.
+	 * @return Degrees, north positive.
+	 */
+	public double getLatitude(){
+		return latitude / 1000000.0;
+	}
+
+	/**
+	 * Longitude, exact to the microdegree sent.
+	 * @return Degrees, east positive.
+	 */
+	public double getLongitude(){
+		return longitude / 1000000.0;
+	}
+
+	public int getLatitudeMicros(){
+		return latitude;
+	}
+
+	public int getLongitudeMicros(){
+		return longitude;
+	}
+
+	public int getVelocity(){
+		return velocity;
+	}
+
+	public int getDirection(){
+		return direction;
+	}
+
+	public int getSatellites(){
+		return satellites;
+	}
+
+	public boolean hasDop(){
+		return hasDop;
+	}
+
+	public float getPdop(){
+		return pdop / 10.0f;
+	}
+
+	public float getHdop(){
+		return hdop / 10.0f;
+	}
+
+	public float getVdop(){
+		return vdop / 10.0f;
+	}
+
+	public boolean hasAltitude(){
+		return hasAltitude;
+	}
+
+	/**
+	 * Altitude, in the unit's own units.
+	 * @return Altitude as sent.
+	 */
+	public int getAltitude(){
+		return altitude;
+	}
+
+	public boolean hasIdsInFix(){
+		return hasIdsInFix;
+	}
+
+	public int getIdsInFix(){
+		return idsInFix;
+	}
+
+	@Override
+	public String toString(){
+		return String.format("GPS: %d lat %.6f long %.6f velocity %d " +
+				"direction %d fix %d satellites %d pdop %.1f hdop %.1f " +
+				"vdop %.1f altitude %d", timestamp, getLatitude(), getLongitude(),
+				velocity, direction, fix, satellites, getPdop(), getHdop(),
+				getVdop(), altitude);
+	}
+}
@@ -0,0 +1,219 @@
+package mxproto;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Incremental MX framing over a ring buffer. Bytes are read in as they
+ * arrive, complete frames are checked and handed to a listener in place,
+ * and anything that can't start a valid frame is skipped one byte at a
+ * time until the stream is back in sync.
+ * <p>
+ * The ring can be detached whenever no bytes are buffered, so that
+ * connections can share pooled buffers while idle.
+ * @author jay
+ *
+ */
+public class MxFrameDecoder {
+
+	/* Smallest frame: header and CMD_ID */
+	private static final int FRAME_MIN_SIZE = MxDefs.HEADER_SIZE + 1;
+
+	private ByteBuffer ring;
+	private int mask;
+
+	/* For reading from streams into a ring without backing array */
+	private byte[] readBuf;
+
+	/* Running positions, masked on access */
+	private long head;
+	private long tail;
+
+	/* Frames that wrap around the end of the ring are linearized here,
+	 * created on first use */
+	private ByteBuffer scratch;
+
+	/**
+	 * Creates a decoder without ring buffer. One must be attached before
+	 * reading.
+	 */
+	public MxFrameDecoder(){
+		this.head = 0;
+		this.tail = 0;
+	}
+
+	/**
+	 * Creates a decoder with its own heap ring buffer.
+	 * @param capacity Ring size, rounded up to a power of two of at least
+	 * twice the maximum packet size.
+	 */
+	public MxFrameDecoder(int capacity){
+		this();
+		attach(ByteBuffer.allocate(Integer.highestOneBit(
+				Math.max(capacity, 2*MxDefs.PACKET_MAX_SIZE) - 1) << 1));
+	}
+
+	/**
+	 * Gives the decoder a ring buffer to read into.
+	 * @param buf Buffer whose capacity is a power of two of at least twice
+	 * the maximum packet size.
+	 */
+	public void attach(ByteBuffer buf){
+		int size = buf.capacity();
+		if(Integer.bitCount(size) != 1 || size < 2*MxDefs.PACKET_MAX_SIZE)
+			throw new IllegalArgumentException("Bad ring size " + size + ".");
+		this.ring = buf;
+		this.mask = size - 1;
+		ring.clear();
+	}
+
+	/**
+	 * Takes the ring buffer back from the decoder. Only allowed while no
+	 * bytes are buffered.
+	 * @return The detached buffer, or null if there is none.
+	 */
+	public ByteBuffer detach(){
+		if(buffered() != 0)
+			throw new IllegalStateException("Detaching a non-empty ring.");
+		ByteBuffer buf = ring;
+		ring = null;
+		head = 0;
+		tail = 0;
+		return buf;
+	}
+
+	/**
+	 * Drops all buffered bytes, e.g. a partial frame of a closed
+	 * connection.
+	 */
+	public void discard(){
+		head = tail;
+	}
+
+	/**
+	 * Checks if a ring buffer is attached.
+	 * @return True if the decoder can read.
+	 */
+	public boolean hasBuffer(){
+		return ring != null;
+	}
+
+	/**
+	 * Number of buffered bytes not yet handed out as frames.
+	 * @return Buffered byte count.
+	 */
+	public int buffered(){
+		return (int) (tail - head);
+	}
+
+	/**
+	 * Reads whatever the channel has into the free part of the ring.
+	 * @param ch Channel to read from.
+	 * @return Bytes read, -1 at end of stream.
+	 * @throws IOException
+	 */
+	public int readFrom(ReadableByteChannel ch) throws IOException {
+		prepareWrite();
+		try{
+			int n = ch.read(ring);
+			if(n > 0) tail += n;
+			return n;
+		}
+		finally{
+			ring.clear();
+		}
+	}
+
+	/**
+	 * Reads into the free part of the ring, blocking as the stream does.
+	 * @param in Stream to read from.
+	 * @return Bytes read, -1 at end of stream.
+	 * @throws IOException
+	 */
+	public int readFrom(InputStream in) throws IOException {
+		prepareWrite();
+		try{
+			int n;
+			if(ring.hasArray()){
+				n = in.read(ring.array(), ring.arrayOffset() + ring.position(), 
+						ring.remaining());
+			}
+			else{
+				if(readBuf == null) readBuf = new byte[ring.capacity()];
+				n = in.read(readBuf, 0, ring.remaining());
+				if(n > 0) ring.put(readBuf, 0, n);
+			}
+			if(n > 0) tail += n;
+			return n;
+		}
+		finally{
+			ring.clear();
+		}
+	}
+
+	/* Limits the ring to the contiguous free region after tail. Absolute
+	 * reads need the full limit back, so callers clear() when done. */
+	private void prepareWrite(){
+		int start = (int) (tail & mask);
+		int free = ring.capacity() - buffered();
+		ring.limit(Math.min(ring.capacity(), start + free));
+		ring.position(start);
+	}
+
+	/**
+	 * Hands every complete frame in the ring to the listener and drops
+	 * bytes that can't be part of one. An incomplete trailing frame stays
+	 * buffered until more bytes arrive.
+	 * @param listener Receiver of frames.
+	 * @throws IOException If the listener throws.
+	 */
+	public void decode(MxFrameListener listener) throws IOException {
+		int skipped = 0;
+		while(tail - head >= 2){
+			int lom = byteAt(head + MxDefs.LOM_LOW_OFFSET);
+			if(byteAt(head + MxDefs.LOM_HIGH_OFFSET) != 0
+					|| lom < FRAME_MIN_SIZE || lom > MxDefs.PACKET_MAX_SIZE){
+				head++;
+				skipped++;
+				continue;
+			}
+			if(tail - head < lom) break;
+
+			int crc = 0;
+			for(int i=0;i<lom;i++){
+				if(i!=MxDefs.CRC_OFFSET) crc += byteAt(head + i);
+			}
+			if((crc & 0xFF) != byteAt(head + MxDefs.CRC_OFFSET)){
+				head++;
+				skipped++;
+				continue;
+			}
+
+			if(skipped > 0){
+				listener.onResync(skipped);
+				skipped = 0;
+			}
+
+			int start = (int) (head & mask);
+			if(start + lom <= ring.capacity()){
+				listener.onFrame(ring, start, lom);
+			}
+			else{
+				if(scratch == null)
+					scratch = ByteBuffer.allocate(MxDefs.PACKET_MAX_SIZE);
+				for(int i=0;i<lom;i++){
+					scratch.put(i, ring.get((int) ((head + i) & mask)));
+				}
+				listener.onFrame(scratch, 0, lom);
+			}
+			head += lom;
+		}
+		if(skipped > 0) listener.onResync(skipped);
+	}
+
+	private int byteAt(long pos){
+		return ring.get((int) (pos & mask)) & 0xFF;
+	}
+}
@@ -0,0 +1,28 @@
+package mxproto;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Receives complete frames from a {@link MxFrameDecoder}.
+ * @author jay
+ *
+ */
+public interface MxFrameListener {
+
+	/**
+	 * Called for every complete frame with a valid CRC. The frame is only
+	 * valid for the duration of the call, copy it if it must be kept.
+	 * @param buf Buffer holding the frame.
+	 * @param offset Absolute offset of the frame in buf.
+	 * @param length Length of the frame (its LOM).
+	 * @throws IOException
+	 */
+	public void onFrame(ByteBuffer buf, int offset, int length) throws IOException;
+
+	/**
+	 * Called when bytes that could not start a valid frame were skipped.
+	 * @param skipped Number of bytes skipped.
+	 */
+	public void onResync(int skipped);
+}
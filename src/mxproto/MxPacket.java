@@ -1,6 +1,7 @@
 package mxproto;
 
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 import core.ProtocolPacket;
@@ -14,6 +15,9 @@ public class MxPacket extends ProtocolPacket {
 	
 	private byte[] packet;
 	
+	/* Wraps packet for gathering writes, created on first use */
+	private ByteBuffer buffer;
+	
 	public MxPacket(){
 		
 	}
@@ -27,6 +31,19 @@ public class MxPacket extends ProtocolPacket {
 		this.packet = Arrays.copyOf(packet, bytecount);
 	}
 	
+	/**
+	 * Creates a packet from a region of the given buffer.
+	 * @param buf Buffer to copy from. Its position is left untouched.
+	 * @param offset Absolute offset of the packet in buf.
+	 * @param bytecount Number of bytes to copy.
+	 */
+	public MxPacket(ByteBuffer buf, int offset, int bytecount){
+		this.packet = new byte[bytecount];
+		for(int i=0;i<bytecount;i++){
+			packet[i] = buf.get(offset + i);
+		}
+	}
+	
 	/**
 	 * Creates a packet with the given header and data.
 	 * @param LOM Length of message
@@ -147,7 +164,7 @@ public class MxPacket extends ProtocolPacket {
 	 * @return Data section byte array.
 	 */
 	public byte[] getData() {
-		return Arrays.copyOfRange(packet, MxDefs.DATA_OFFSET, packet.length-1);
+		return Arrays.copyOfRange(packet, MxDefs.DATA_OFFSET, packet.length);
 	}
 	
 	/**
@@ -157,6 +174,17 @@ public class MxPacket extends ProtocolPacket {
 		return packet;
 	}
 	
+	/**
+	 * Returns the entire packet as a buffer, rewound for writing. The same
+	 * buffer is returned on every call.
+	 * @return Buffer wrapping the packet bytes.
+	 */
+	public ByteBuffer getPacketBuffer() {
+		if(buffer == null) buffer = ByteBuffer.wrap(packet);
+		buffer.clear();
+		return buffer;
+	}
+	
 	/**
 	 * Returns a description of the packet's header.
 	 * @return Detailed header description.
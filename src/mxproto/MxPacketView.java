@@ -0,0 +1,172 @@
+package mxproto;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Read-only MX packet accessors over a region of a buffer, without copying
+ * it. One view is meant to be reused for every frame of a connection;
+ * it is only valid until the buffer is overwritten, so call
+ * {@link #toPacket()} for a packet that must be kept.
+ * @author jay
+ *
+ */
+public class MxPacketView {
+
+	private ByteBuffer buf;
+	private int offset;
+	private int length;
+
+	public MxPacketView(){
+
+	}
+
+	/**
+	 * Points the view at a packet.
+	 * @param buf Buffer holding the packet. Its position is left untouched.
+	 * @param offset Absolute offset of the packet in buf.
+	 * @param length Length of the packet.
+	 * @return This view.
+	 */
+	public MxPacketView wrap(ByteBuffer buf, int offset, int length){
+		this.buf = buf;
+		this.offset = offset;
+		this.length = length;
+		return this;
+	}
+
+	/**
+	 * Returns the packet's lower order LOM byte.
+	 * @return Lower order LOM byte.
+	 */
+	public int getLOMLow() {
+		return buf.get(offset + MxDefs.LOM_LOW_OFFSET) & 0xFF;
+	}
+
+	/**
+	 * Returns the packet's flags.
+	 * @return Flags.
+	 */
+	public int getFlags() {
+		return (buf.get(offset + MxDefs.FLAGS_SEQ_OFFSET) & 0xF0) >>> 4;
+	}
+
+	/**
+	 * Returns the packet's sequence number.
+	 * @return Sequence number.
+	 */
+	public int getSeq() {
+		return buf.get(offset + MxDefs.FLAGS_SEQ_OFFSET) & 0x0F;
+	}
+
+	/**
+	 * Returns the packet's source endpoint.
+	 * @return Source endpoint.
+	 */
+	public int getSrc() {
+		return buf.get(offset + MxDefs.SRC_OFFSET) & 0xFF;
+	}
+
+	/**
+	 * Returns the packet's destination endpoint.
+	 * @return Destination endpoint.
+	 */
+	public int getDst() {
+		return buf.get(offset + MxDefs.DST_OFFSET) & 0xFF;
+	}
+
+	/**
+	 * Returns the packet's CRC.
+	 * @return CRC.
+	 */
+	public int getCRC() {
+		return buf.get(offset + MxDefs.CRC_OFFSET) & 0xFF;
+	}
+
+	/**
+	 * Returns the packet's command ID.
+	 * @return Command ID.
+	 */
+	public int getCmdId() {
+		return buf.get(offset + MxDefs.CMD_OFFSET) & 0xFF;
+	}
+
+	/**
+	 * Checks if the packet is of type ACK.
+	 * @return True if the packet is an ACK packet.
+	 */
+	public boolean isAck(){
+		return getCmdId() == MxDefs.CMD_ACK;
+	}
+
+	/**
+	 * Returns the length of the packet.
+	 * @return Packet length in bytes.
+	 */
+	public int getLength() {
+		return length;
+	}
+
+	/**
+	 * Returns the length of the data section.
+	 * @return Data section length in bytes.
+	 */
+	public int getDataLength() {
+		return length - MxDefs.DATA_OFFSET;
+	}
+
+	/**
+	 * Returns a byte of the data section.
+	 * @param index Index within the data section.
+	 * @return Raw byte.
+	 */
+	public byte getDataByte(int index) {
+		return buf.get(offset + MxDefs.DATA_OFFSET + index);
+	}
+
+	/**
+	 * Returns an unsigned byte of the data section.
+	 * @param index Index within the data section.
+	 * @return Byte value, 0-255.
+	 */
+	public int getData8(int index) {
+		return getDataByte(index) & 0xFF;
+	}
+
+	/**
+	 * Returns an unsigned big endian 16 bit value of the data section.
+	 * @param index Index of the high byte within the data section.
+	 * @return Value, 0-65535.
+	 */
+	public int getData16(int index) {
+		return buf.getShort(offset + MxDefs.DATA_OFFSET + index) & 0xFFFF;
+	}
+
+	/**
+	 * Returns a big endian 32 bit value of the data section.
+	 * @param index Index of the highest byte within the data section.
+	 * @return Value.
+	 */
+	public int getData32(int index) {
+		return buf.getInt(offset + MxDefs.DATA_OFFSET + index);
+	}
+
+	/**
+	 * Copies the data section into the given array.
+	 * @param dst Array to copy to, at least getDataLength() long.
+	 * @param dstOffset Where to start in dst.
+	 */
+	public void copyData(byte[] dst, int dstOffset) {
+		for(int i=0;i<getDataLength();i++){
+			dst[dstOffset + i] = getDataByte(i);
+		}
+	}
+
+	/**
+	 * Makes an owned copy of the packet, for keeping it beyond the life
+	 * of the underlying buffer.
+	 * @return Packet copy.
+	 */
+	public MxPacket toPacket() {
+		return new MxPacket(buf, offset, length);
+	}
+}
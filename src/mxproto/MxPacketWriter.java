@@ -0,0 +1,81 @@
+package mxproto;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes MX packets straight into a buffer, creating no objects. Packets
+ * are written at the buffer's position, which is advanced past them.
+ * @author jay
+ *
+ */
+public abstract class MxPacketWriter {
+
+	/* CMD_ID & 2 bytes SEQ and CRC */
+	public final static int ACK_SIZE = MxDefs.HEADER_SIZE + 1 + 2;
+
+	/**
+	 * Writes an ACK for a received packet.
+	 * @param dst Buffer to write to, with at least ACK_SIZE bytes remaining.
+	 * @param ackFor The packet to ack.
+	 */
+	public static void writeAck(ByteBuffer dst, MxPacketView ackFor){
+		writeAck(dst, (ackFor.getFlags() << 4) | ackFor.getSeq(), ackFor.getCRC());
+	}
+
+	/**
+	 * Writes an ACK.
+	 * @param dst Buffer to write to, with at least ACK_SIZE bytes remaining.
+	 * @param flagsSeq Flags & sequence byte of the packet to ack.
+	 * @param crc CRC of the packet to ack.
+	 */
+	public static void writeAck(ByteBuffer dst, int flagsSeq, int crc){
+		int start = begin(dst, 0, 0, 0, 0, MxDefs.CMD_ACK);
+		/* ACKs match against original SEQ and CRC */
+		dst.put((byte) flagsSeq);
+		dst.put((byte) crc);
+		finish(dst, start);
+	}
+
+	/**
+	 * Writes a packet header and command, leaving the data section to the
+	 * caller. Complete the packet with {@link #finish(ByteBuffer, int)}.
+	 * @param dst Buffer to write to.
+	 * @param flags Flags
+	 * @param seq Sequence number
+	 * @param src Source endpoint
+	 * @param dstFunc Destination endpoint
+	 * @param cmdId Command type
+	 * @return Position of the packet in dst, to pass to finish().
+	 */
+	public static int begin(ByteBuffer dst, int flags, int seq, int src,
+			int dstFunc, int cmdId){
+		int start = dst.position();
+		dst.put((byte) 0); // LOM high, set in finish()
+		dst.put((byte) 0); // LOM low, set in finish()
+		dst.put((byte) ((flags << 4) | (seq & 0x0F)));
+		dst.put((byte) src);
+		dst.put((byte) dstFunc);
+		dst.put((byte) 0); // CRC, set in finish()
+		dst.put((byte) cmdId);
+		return start;
+	}
+
+	/**
+	 * Fills in LOM and CRC of a packet whose data section ends at the
+	 * buffer's position.
+	 * @param dst Buffer written to.
+	 * @param start Position returned by begin().
+	 * @return LOM of the packet.
+	 */
+	public static int finish(ByteBuffer dst, int start){
+		int lom = dst.position() - start;
+		dst.put(start + MxDefs.LOM_LOW_OFFSET, (byte) lom);
+		int crc = 0;
+		for(int i=0;i<lom;i++){
+			if(i!=MxDefs.CRC_OFFSET) // Don't add the CRC to itself
+				crc += dst.get(start + i) & 0xFF;
+		}
+		dst.put(start + MxDefs.CRC_OFFSET, (byte) crc);
+		return lom;
+	}
+}
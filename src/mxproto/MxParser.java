@@ -1,186 +1,171 @@
 package mxproto;
 
-import java.math.RoundingMode;
-import java.sql.Timestamp;
-import java.text.DateFormat;
-import java.text.DecimalFormat;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-
-import utils.ByteUtils;
-import core.ClientSocket;
+import logger.Event;
+import logger.LogLevel;
+import core.Dispatcher;
+import core.MxSession;
+import core.PacketHandler;
 import database.DBHandler;
+import database.RtgRow;
 
 /**
  * Used to handle various types of incoming MX commands.
+ * <p>
+ * Only the GPS layout (see {@link GpsDecoder}) is known from the protocol
+ * docs. Analog and GPIO readings are decoded only if asked for, with an
+ * assumed layout: the analog or GPIO type in data bytes 0-1, the aux bytes
+ * as for GPS (3 in an event, 4 in a read reply), then
+ * <pre>
+ *  analog   0-1  value: mV for voltages, uA for the 4-20 mA loops,
+ *                signed tenths of a degree C for temperatures
+ *  GPIO     0    all digital inputs, input 1 in bit 0 (GPIO_DIG_IN_ALL)
+ * </pre>
  * @author jay
  *
  */
 public class MxParser {
-	public static void handleGpsData(ClientSocket cs, byte[] data, int arrayOffset){
-		//data[0 + arrayOffset]; // Timestamp
-		//data[1 + arrayOffset]; // Timestamp
-		//data[2 + arrayOffset]; // Timestamp
-		//data[3 + arrayOffset]; // Timestamp
-		//logInfo("Timestamp[0] => " + ByteUtils.make8(data[0 + arrayOffset]));
-		//logInfo("Timestamp[1] => " + ByteUtils.make8(data[1 + arrayOffset]));
-		//logInfo("Timestamp[2] => " + ByteUtils.make8(data[2 + arrayOffset]));
-		//logInfo("Timestamp[3] => " + ByteUtils.make8(data[3 + arrayOffset]));
-		//logInfo("TimestampInt => " + ByteUtils.make32(data[0 + arrayOffset], data[1 + arrayOffset], 
-		//	data[2 + arrayOffset], data[3 + arrayOffset]));
-		int timestampInt = ByteUtils.make32(data[0 + arrayOffset], data[1 + arrayOffset], data[2 + arrayOffset], data[3 + arrayOffset]);
-    	
-    	int second = timestampInt & 0x3f; /* 6 bits */
-    	timestampInt = timestampInt >> 6;
-    	
-    	int minute = timestampInt & 0x3f; /* 6 bits */
-    	timestampInt = timestampInt >> 6;
-    	
-    	int hour = timestampInt & 0x1f; /* 5 bits */
-    	timestampInt = timestampInt >> 5;
-    	
-    	int day = timestampInt & 0x1f;  /* 5 bits */
-    	timestampInt = timestampInt >> 5;
-    	
-    	int month = timestampInt & 0x0f; /* 4 bits */
-    	timestampInt = timestampInt >> 4;
-    	
-    	int year = timestampInt & 0x1f; /* 5 bits */
-    	timestampInt = timestampInt >> 5;
 
-    	//int valid = timestampInt & 0x01; /* 1 bit - unused? */ 
-    	
-    	String ddmmyy;
+	/* Logged for every reading */
+	private static final Event GPS_ASSEMBLED = new Event(LogLevel.INFO,
+			"GPS data assembled, lat {.6} long {.6} velocity {} direction {} " +
+			"fix {} satellites {}.");
+	private static final Event ANALOG_ASSEMBLED = new Event(LogLevel.INFO,
+			"Analog data assembled, type {} value {}.");
+	private static final Event GPIO_ASSEMBLED = new Event(LogLevel.INFO,
+			"GPIO data assembled, digital inputs {}.");
 
-    	if(day < 10) {
-    		ddmmyy = "0" + day;
-    	} else {
-    		ddmmyy = "" + day;
-    	}
+	/**
+	 * Handles a GPS sample, decoded without allocating into the session's
+	 * GPS record.
+	 * @param cs Session the sample came on.
+	 * @param data Packet holding the sample.
+	 * @param arrayOffset Aux bytes before the sample.
+	 * @return False if the sample could not be stored.
+	 */
+	public static boolean handleGpsData(MxSession cs, MxPacketView data, int arrayOffset){
+		GpsRecord gps = cs.getGpsRecord();
+		if(!GpsDecoder.decode(data, arrayOffset, gps)){
+			cs.logInfo("GPS data too short");
+			/* Sending it again would not help */
+			return true;
+		}
+		/* Merged with the readings around it when written; the sample time
+		 * of the row is the fix's, or the server's if the unit sent none */
+		RtgRow row = cs.newRow();
+		row.setGps(gps.getLatitude(), gps.getLongitude(), gps.getVelocity(), 
+				gps.getDirection(), (short) gps.getFix(), 
+				(short) gps.getSatellites());
+		if(gps.hasTimestamp()) row.setTimestampSample(gps.getTimestamp());
+		if(gps.hasTimestampLastValid())
+			row.setTimestampLastValid(gps.getTimestampLastValid());
+		DBHandler.getShadow().update(row);
+		if(!DBHandler.submit(row)) return false;
+		cs.logger.event(GPS_ASSEMBLED, cs.getId(), gps.getLatitudeMicros(), 
+				gps.getLongitudeMicros(), gps.getVelocity(), gps.getDirection(), 
+				gps.getFix(), gps.getSatellites());
+		return true;
+	}
 
-    	if(month < 10) {
-    		ddmmyy += "0" + month;
-    	} else {
-    		ddmmyy += month;
-    	}
+	/**
+	 * Handles an analog reading: a 16 bit value after the aux bytes.
+	 * @param cs Session the reading came on.
+	 * @param data Packet holding the reading.
+	 * @param arrayOffset Aux bytes before the value.
+	 * @param column rtg column the reading goes in.
+	 * @param scale Column units per unit sent.
+	 * @param signed True if the value is signed.
+	 * @return False if the reading could not be stored.
+	 */
+	public static boolean handleAnalogData(MxSession cs, MxPacketView data, 
+			int arrayOffset, int column, float scale, boolean signed){
+		if(data.getDataLength() < arrayOffset + 2){
+			cs.logInfo("Analog data too short");
+			return true;
+		}
+		int raw = data.getData16(arrayOffset);
+		RtgRow row = cs.newRow();
+		row.setReading(column, (signed ? (short) raw : raw) * scale);
+		DBHandler.getShadow().update(row);
+		if(!DBHandler.submit(row)) return false;
+		cs.logger.event(ANALOG_ASSEMBLED, cs.getId(), data.getData16(0), raw);
+		return true;
+	}
 
-    	if(year < 10) {
-    		ddmmyy += "0" + year;
-    	} else {
-    		ddmmyy += year;
-    	}
+	/**
+	 * Handles the state of all digital inputs at once: one byte after the
+	 * aux bytes, input 1 in bit 0.
+	 * @param cs Session the reading came on.
+	 * @param data Packet holding the reading.
+	 * @param arrayOffset Aux bytes before the value.
+	 * @return False if the reading could not be stored.
+	 */
+	public static boolean handleDigitalInputs(MxSession cs, MxPacketView data, int arrayOffset){
+		if(data.getDataLength() < arrayOffset + 1){
+			cs.logInfo("GPIO data too short");
+			return true;
+		}
+		RtgRow row = cs.newRow();
+		row.setDigitalIn(data.getData8(arrayOffset));
+		DBHandler.getShadow().update(row);
+		if(!DBHandler.submit(row)) return false;
+		cs.logger.event(GPIO_ASSEMBLED, cs.getId(), data.getData8(arrayOffset));
+		return true;
+	}
 
-    	String hhmmss;
+	/**
+	 * Registers the handlers of all data the server stores, as events and
+	 * as read replies.
+	 * @param dispatcher Dispatcher to register with.
+	 * @param sensors True to also decode analog and GPIO readings, in the
+	 * assumed layout above. Otherwise they are ACKed and logged as having
+	 * no handler.
+	 */
+	public static void registerAll(Dispatcher dispatcher, boolean sensors){
+		/* 3 bytes aux before the data of an event, 4 in a read reply */
+		register(dispatcher, MxDefs.CMD_EVENT, 3, sensors);
+		register(dispatcher, MxDefs.CMD_READ_REPLY, 4, sensors);
+	}
 
-    	if(hour < 10) {
-    		hhmmss = "0" + hour;
-    	} else {
-    		hhmmss = "" + hour;
-    	}
+	private static void register(Dispatcher dispatcher, int cmd, final int aux,
+			boolean sensors){
+		dispatcher.register(cmd, MxDefs.FUNC_GPS, Dispatcher.ANY_TYPE, 
+				new PacketHandler(){
+			public boolean handle(MxSession cs, MxPacketView packet){
+				return handleGpsData(cs, packet, aux);
+			}
+		});
+		if(!sensors) return;
 
-    	if(minute < 10) {
-    		hhmmss += "0" + minute;
-    	} else {
-    		hhmmss += minute;
-    	}
+		/* Voltages in mV, 4-20 mA loops in uA, temperatures in signed 
+		 * tenths of a degree C */
+		registerAnalog(dispatcher, cmd, aux, MxDefs.ANALOG_INPUT_VOLTAGE, 
+				RtgRow.MAIN_VOLTAGE, 0.001f, false);
+		registerAnalog(dispatcher, cmd, aux, MxDefs.ANALOG_LI_ION_VOLTAGE, 
+				RtgRow.LIION_VOLTAGE, 0.001f, false);
+		registerAnalog(dispatcher, cmd, aux, MxDefs.ANALOG_4_20_1_CURRENT, 
+				RtgRow.ANALOG_1, 0.001f, false);
+		registerAnalog(dispatcher, cmd, aux, MxDefs.ANALOG_4_20_2_CURRENT, 
+				RtgRow.ANALOG_2, 0.001f, false);
+		registerAnalog(dispatcher, cmd, aux, MxDefs.ANALOG_TEMP1, 
+				RtgRow.TEMP_1, 0.1f, true);
+		registerAnalog(dispatcher, cmd, aux, MxDefs.ANALOG_TEMP2, 
+				RtgRow.TEMP_2, 0.1f, true);
 
-    	if(second < 10) {
-    		hhmmss += "0" + second;
-    	} else {
-    		hhmmss+= second;
-    	}
-    	
-    	DateFormat dateFormat = new SimpleDateFormat("ddMMyyHHmmss");
-    	Date date = null;
-    	try{
-    		date = dateFormat.parse(ddmmyy + hhmmss);
-    	}
-    	catch(ParseException pe){
-    		// Swallow
-    	}
-    	
-    	Timestamp timestampSample;
-    	if(date!=null)
-    		timestampSample = new Timestamp(date.getTime());
-    	else
-    		timestampSample = new Timestamp(0);
-    	
-		//data[4 + arrayOffset]; // Timestamp fraction
-		//data[5 + arrayOffset]; // Timestamp fraction
-		//data[6 + arrayOffset]; // Timestamp last valid
-		//data[7 + arrayOffset]; // Timestamp last valid
-		//data[8 + arrayOffset]; // Timestamp last valid
-		//data[9 + arrayOffset]; // Timestamp last valid
-		//float lastValidTimestamp = Float.intBitsToFloat(
-		//		ByteUtils.make32(data[6 + arrayOffset], data[7 + arrayOffset], 
-    	//	data[8 + arrayOffset], data[9 + arrayOffset]));
-		//data[10 + arrayOffset]; // Fix valid
-		short fix = (short) ByteUtils.make8(data[10 + arrayOffset]);
-		//data[11 + arrayOffset]; // Latitude
-		//data[12 + arrayOffset]; // Latitude
-		//data[13 + arrayOffset]; // Latitude
-		//data[14 + arrayOffset]; // Latitude
-		//logInfo("Lat[0] => " + ByteUtils.make8(data[11 + arrayOffset]));
-		//logInfo("Lat[1] => " + ByteUtils.make8(data[12 + arrayOffset]));
-		//logInfo("Lat[2] => " + ByteUtils.make8(data[13 + arrayOffset]));
-		//logInfo("Lat[3] => " + ByteUtils.make8(data[14 + arrayOffset]));
-		//logInfo("LatInt => " + ByteUtils.make32(data[11 + arrayOffset], data[12 + arrayOffset], 
-		//	data[13 + arrayOffset], data[14 + arrayOffset]));
-		int latInt = ByteUtils.make32(data[11 + arrayOffset], data[12 + arrayOffset], 
-				data[13 + arrayOffset], data[14 + arrayOffset]);
-		DecimalFormat dec6 = new DecimalFormat("##.######");
-		dec6.setRoundingMode(RoundingMode.HALF_UP);
-		float latitude = (float) latInt / 1000000.0f;
-		latitude = Float.parseFloat(dec6.format(latitude));
-		//data[15 + arrayOffset]; // Longitude
-		//data[16 + arrayOffset]; // Longitude
-		//data[17 + arrayOffset]; // Longitude
-		//data[18 + arrayOffset]; // Longitude
-		//logInfo("Long[0] => " + ByteUtils.make8(data[15 + arrayOffset]));
-		//logInfo("Long[1] => " + ByteUtils.make8(data[16 + arrayOffset]));
-		//logInfo("Long[2] => " + ByteUtils.make8(data[17 + arrayOffset]));
-		//logInfo("Long[3] => " + ByteUtils.make8(data[18 + arrayOffset]));
-		//logInfo("LongInt => " + ByteUtils.make32(data[15 + arrayOffset], data[16 + arrayOffset], 
-		//	data[17 + arrayOffset], data[18 + arrayOffset]));
-		int longInt = ByteUtils.make32(data[15 + arrayOffset], data[16 + arrayOffset], 
-				data[17 + arrayOffset], data[18 + arrayOffset]);
-		float longitude = (float) longInt / 1000000.0f;
-		longitude = Float.parseFloat(dec6.format(longitude));
-		//data[19 + arrayOffset]; // Velocity
-		//data[20 + arrayOffset]; // Velocity
-		float velocity = (float) ByteUtils.make16(data[19 + arrayOffset], data[20 + arrayOffset]);
-		//data[21 + arrayOffset]; // Direction
-		//data[22 + arrayOffset]; // Direction
-		float direction = (float) ByteUtils.make16(data[21 + arrayOffset], data[22 + arrayOffset]);
-		//data[23 + arrayOffset]; // Satellites used
-		short satellites = (short) ByteUtils.make8(data[23 + arrayOffset]);
-		//data[24 + arrayOffset]; // Pdop
-		//data[25 + arrayOffset]; // Hdop
-		//data[26 + arrayOffset]; // Vdop
-		//data[27 + arrayOffset]; // Altitude
-		//data[28 + arrayOffset]; // Altitude
-		//data[29 + arrayOffset]; // Altitude
-		//data[30 + arrayOffset]; // Altitude
-		//data[31 + arrayOffset]; // Ids in fix
-		//data[32 + arrayOffset]; // Ids in fix
-		//data[33 + arrayOffset]; // Ids in fix
-		//data[34 + arrayOffset]; // Ids in fix
-		
-		cs.logInfo(String.format("Box Id: %s\n"
-				+ "Latitude: %f\n"
-				+ "Longitude: %f\n"
-				+ "Velocity: %f\n"
-				+ "Direction: %f\n"
-				+ "Fix: %d\n"
-				+ "SatInfo: %d", 
-				"Test Box", latitude, longitude, velocity, 
-				direction, fix, satellites));
+		dispatcher.register(cmd, MxDefs.FUNC_GPIO, MxDefs.GPIO_DIG_IN_ALL, 
+				new PacketHandler(){
+			public boolean handle(MxSession cs, MxPacketView packet){
+				return handleDigitalInputs(cs, packet, aux);
+			}
+		});
+	}
 
-		DBHandler.insertGpsData("Test Box", 
-				latitude, longitude, velocity, 
-				direction, fix, satellites, timestampSample);
-		
-		cs.logInfo("GPS data saved.");
+	private static void registerAnalog(Dispatcher dispatcher, int cmd, 
+			final int aux, int type, final int column, final float scale, 
+			final boolean signed){
+		dispatcher.register(cmd, MxDefs.FUNC_ANALOG, type, new PacketHandler(){
+			public boolean handle(MxSession cs, MxPacketView packet){
+				return handleAnalogData(cs, packet, aux, column, scale, signed);
+			}
+		});
 	}
 }
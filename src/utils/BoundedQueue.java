@@ -0,0 +1,100 @@
+package utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded, lock-free multi-producer multi-consumer queue over a ring of
+ * sequenced slots (after D. Vyukov). Neither offer() nor poll() ever
+ * blocks; offer() fails when the queue is full.
+ * @author jay
+ *
+ * @param <E> Element type.
+ */
+public class BoundedQueue<E> {
+
+	private AtomicReferenceArray<E> elements;
+
+	/* Per slot: equal to a producer's position when free for it, to a
+	 * consumer's position + 1 when filled for it */
+	private AtomicLongArray sequences;
+	private int mask;
+
+	private AtomicLong head;
+	private AtomicLong tail;
+
+	/**
+	 * Create a queue.
+	 * @param capacity Most elements held, rounded up to a power of two.
+	 */
+	public BoundedQueue(int capacity){
+		int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+		this.elements = new AtomicReferenceArray<E>(size);
+		this.sequences = new AtomicLongArray(size);
+		for(int i=0;i<size;i++) sequences.set(i, i);
+		this.mask = size - 1;
+		this.head = new AtomicLong(0);
+		this.tail = new AtomicLong(0);
+	}
+
+	/**
+	 * Adds an element if there is room.
+	 * @param e Element, not null.
+	 * @return False if the queue is full.
+	 */
+	public boolean offer(E e){
+		while(true){
+			long pos = tail.get();
+			int slot = (int) (pos & mask);
+			long diff = sequences.get(slot) - pos;
+			if(diff == 0){
+				if(tail.compareAndSet(pos, pos + 1)){
+					elements.lazySet(slot, e);
+					sequences.set(slot, pos + 1);
+					return true;
+				}
+			}
+			/* Slot still holds an element from a lap ago */
+			else if(diff < 0) return false;
+		}
+	}
+
+	/**
+	 * Takes the oldest element.
+	 * @return Element, or null if the queue is empty.
+	 */
+	public E poll(){
+		while(true){
+			long pos = head.get();
+			int slot = (int) (pos & mask);
+			long diff = sequences.get(slot) - (pos + 1);
+			if(diff == 0){
+				if(head.compareAndSet(pos, pos + 1)){
+					E e = elements.get(slot);
+					elements.lazySet(slot, null);
+					sequences.set(slot, pos + mask + 1);
+					return e;
+				}
+			}
+			else if(diff < 0) return null;
+		}
+	}
+
+	/**
+	 * Approximate number of elements, exact when no call is in progress.
+	 * @return Element count.
+	 */
+	public int size(){
+		long n = tail.get() - head.get();
+		return (int) Math.max(0, Math.min(n, capacity()));
+	}
+
+	public int capacity(){
+		return mask + 1;
+	}
+
+	public boolean isEmpty(){
+		return size() == 0;
+	}
+}
@@ -0,0 +1,239 @@
+package utils;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Numbered, memory mapped segment files of one size in a directory. Names
+ * are a prefix, the number zero padded to 20 digits and a suffix, so they
+ * sort by number.
+ * <p>
+ * A preparer thread can keep the next segment mapped ahead, and delete the
+ * oldest beyond a limit, so that the thread writing to the segments never
+ * touches the file system. Otherwise segments are mapped, renamed and
+ * deleted by the caller.
+ * @author jay
+ *
+ */
+public class SegmentFiles {
+
+	/* Wait before mapping again after a failure */
+	private static final long RETRY_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+	private File dir;
+	private String prefix;
+	private String suffix;
+	private long segmentSize;
+
+	/* Next segment, mapped ahead by the preparer; null while it works on it */
+	private volatile MappedByteBuffer next;
+	private volatile File nextFile;
+	private volatile boolean closed;
+	private Thread preparer;
+	/* Used by the preparer only, once started */
+	private long nextNumber;
+	private int maxSegments;
+
+	/**
+	 * Create the segment files of a directory.
+	 * @param dir Directory of the segments.
+	 * @param prefix File name before the number.
+	 * @param suffix File name after the number.
+	 * @param segmentSize Bytes per segment.
+	 */
+	public SegmentFiles(File dir, String prefix, String suffix, long segmentSize){
+		this.dir = dir;
+		this.prefix = prefix;
+		this.suffix = suffix;
+		this.segmentSize = segmentSize;
+	}
+
+	/**
+	 * Creates the directory if needed.
+	 * @throws IOException If it can't be created.
+	 */
+	public void createDir() throws IOException {
+		if(!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Cannot create " + dir);
+	}
+
+	/**
+	 * File of a segment, which need not exist.
+	 * @param number Segment number.
+	 * @return File.
+	 */
+	public File file(long number){
+		return new File(dir, String.format("%s%020d%s", prefix, number, suffix));
+	}
+
+	/**
+	 * Segments in the directory, oldest first.
+	 * @return Segment files.
+	 */
+	public File[] list(){
+		return list(dir, prefix, suffix);
+	}
+
+	/**
+	 * Segments in a directory, oldest first.
+	 * @param dir Directory.
+	 * @param prefix File name before the number.
+	 * @param suffix File name after the number.
+	 * @return Segment files.
+	 */
+	public static File[] list(File dir, final String prefix, final String suffix){
+		File[] files = dir.listFiles(new FileFilter(){
+			public boolean accept(File f){
+				String name = f.getName();
+				return name.startsWith(prefix) && name.endsWith(suffix);
+			}
+		});
+		if(files == null) return new File[0];
+		/* Zero padded, so names sort by number */
+		Arrays.sort(files);
+		return files;
+	}
+
+	/**
+	 * Number of a segment file.
+	 * @param f Segment file.
+	 * @return Segment number.
+	 */
+	public long numberOf(File f){
+		String name = f.getName();
+		return Long.parseLong(name.substring(prefix.length(),
+				name.length() - suffix.length()));
+	}
+
+	/**
+	 * Number after the newest segment.
+	 * @return Segment number, 0 if there are none.
+	 */
+	public long nextNumber(){
+		File[] files = list();
+		return files.length == 0 ? 0 : numberOf(files[files.length - 1]) + 1;
+	}
+
+	/**
+	 * Maps a segment, creating it if needed. New segments are sparse, only
+	 * what is written takes space.
+	 * @param number Segment number.
+	 * @return Mapping of the whole segment.
+	 * @throws IOException If the file can't be created or mapped.
+	 */
+	public MappedByteBuffer map(long number) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file(number), "rw");
+		try{
+			return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+					segmentSize);
+		}
+		finally{
+			/* The mapping stays valid */
+			raf.close();
+		}
+	}
+
+	/**
+	 * Gives a segment another number. A mapping of it stays valid and
+	 * keeps its contents.
+	 * @param number Segment number.
+	 * @param newNumber New segment number, not in use.
+	 * @return False if the file could not be renamed.
+	 */
+	public boolean renumber(long number, long newNumber){
+		return file(number).renameTo(file(newNumber));
+	}
+
+	/**
+	 * Deletes a segment. Its disk space is freed once any mapping of it is
+	 * collected.
+	 * @param number Segment number.
+	 */
+	public void delete(long number){
+		file(number).delete();
+	}
+
+	/**
+	 * Starts a thread that keeps the next segment mapped, for
+	 * {@link #takeNext()}, and deletes the oldest beyond maxSegments, the
+	 * spare not counted.
+	 * @param name Thread name, also used in warnings.
+	 * @param first Number of the first segment it maps.
+	 * @param maxSegments Segments kept.
+	 */
+	public void startPreparer(final String name, long first, int maxSegments){
+		this.nextNumber = first;
+		this.maxSegments = maxSegments;
+		preparer = new Thread(new Runnable(){
+			public void run(){
+				prepare(name);
+			}
+		}, name);
+		preparer.setDaemon(true);
+		preparer.start();
+	}
+
+	/**
+	 * Takes the segment mapped ahead, and has the preparer map another.
+	 * Never blocks.
+	 * @return Next segment, or null if it isn't mapped yet.
+	 */
+	public MappedByteBuffer takeNext(){
+		MappedByteBuffer n = next;
+		if(n == null) return null;
+		next = null;
+		LockSupport.unpark(preparer);
+		return n;
+	}
+
+	/* Preparer thread */
+	private void prepare(String name){
+		boolean failing = false;
+		while(!closed){
+			if(next == null){
+				try{
+					MappedByteBuffer n = map(nextNumber);
+					nextFile = file(nextNumber++);
+					next = n;
+					failing = false;
+				}
+				catch(IOException ioe){
+					if(!failing)
+						System.err.println("WARNING: " + name + ": cannot map the " +
+								"next segment, records are lost: " + ioe.toString());
+					failing = true;
+					LockSupport.parkNanos(RETRY_NANOS);
+					continue;
+				}
+				File[] files = list();
+				for(int i=0;i<files.length - maxSegments - 1;i++) files[i].delete();
+			}
+			LockSupport.park(this);
+		}
+	}
+
+	/**
+	 * Stops the preparer, if started, and deletes the spare segment.
+	 */
+	public void close(){
+		closed = true;
+		if(preparer != null){
+			LockSupport.unpark(preparer);
+			try{
+				preparer.join();
+			}
+			catch(InterruptedException ie){
+				Thread.currentThread().interrupt();
+			}
+		}
+		if(next != null) nextFile.delete();
+		next = null;
+	}
+}